@@ -15,12 +15,19 @@ limitations under the License.
 
 package org.tensorflow.lite.examples.transfer.api;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -34,6 +41,8 @@ public class LiteBottleneckModelTest {
   private static final int NUM_IMAGE_CHANNELS = 3;
   private static final float IMAGE_FILL = 0.3f;
   private static final float EPS = 1e-8f;
+  private static final int NUM_INTERPRETERS = 3;
+  private static final int NUM_CONCURRENT_IMAGES = 8;
 
   @Test
   public void shouldGenerateSaneBottlenecks() throws IOException {
@@ -60,4 +69,36 @@ public class LiteBottleneckModelTest {
     }
     assertTrue(nonZeroCount > 0);
   }
+
+  @Test
+  public void shouldGenerateSameBottlenecksConcurrently()
+      throws IOException, InterruptedException, ExecutionException {
+    LiteBottleneckModel model =
+        new LiteBottleneckModel(
+            new AssetModelLoader(InstrumentationRegistry.getInstrumentation().getContext(), "model")
+                .loadBaseModel(),
+            NUM_INTERPRETERS);
+
+    ByteBuffer image =
+        ByteBuffer.allocateDirect(IMAGE_SIZE * IMAGE_SIZE * NUM_IMAGE_CHANNELS * FLOAT_BYTES);
+    for (int idx = 0; idx < IMAGE_SIZE * IMAGE_SIZE * NUM_IMAGE_CHANNELS; idx++) {
+      image.putFloat(IMAGE_FILL);
+    }
+    image.rewind();
+    ByteBuffer expected = model.generateBottleneck(image.duplicate(), null);
+
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_CONCURRENT_IMAGES);
+    List<Future<ByteBuffer>> bottlenecks = new ArrayList<>();
+    for (int idx = 0; idx < NUM_CONCURRENT_IMAGES; idx++) {
+      bottlenecks.add(executor.submit(() -> model.generateBottleneck(image.duplicate(), null)));
+    }
+    for (Future<ByteBuffer> future : bottlenecks) {
+      ByteBuffer bottleneck = future.get();
+      for (int idx = 0; idx < NUM_BOTTLENECK_FEATURES; idx++) {
+        assertEquals(expected.getFloat(idx * FLOAT_BYTES), bottleneck.getFloat(), EPS);
+      }
+    }
+    executor.shutdown();
+    model.close();
+  }
 }
@@ -0,0 +1,124 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.examples.transfer.api.ParameterSnapshots.Snapshot;
+
+/** Unit tests for {@link ParameterSnapshots}. */
+@RunWith(AndroidJUnit4.class)
+public class ParameterSnapshotsTest {
+  private static final int[] PARAMETER_SIZES = {3, 5};
+  private static final int NUM_READERS = 4;
+  private static final int NUM_VERSIONS = 2000;
+
+  @Test
+  public void shouldReuseVersionsOnceReleased() {
+    ParameterSnapshots snapshots = new ParameterSnapshots(PARAMETER_SIZES);
+    fill(snapshots.latest(), 0);
+
+    Snapshot first = snapshots.acquire();
+    assertEquals(0, first.getVersion());
+    publish(snapshots, 1);
+    Snapshot third = snapshots.prepare();
+    // The first version is still held, and the second one is current.
+    assertNotSame(first, third);
+    assertNotSame(snapshots.latest(), third);
+    fill(third, 2);
+    snapshots.publish(third);
+    assertEquals(2, snapshots.latest().getVersion());
+
+    // Held versions are never modified.
+    check(first, 0);
+    snapshots.release(first);
+    assertSame(first, snapshots.prepare());
+  }
+
+  @Test
+  public void readersShouldSeeCompleteVersions() throws Exception {
+    ParameterSnapshots snapshots = new ParameterSnapshots(PARAMETER_SIZES);
+    fill(snapshots.latest(), 0);
+
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_READERS);
+    AtomicBoolean done = new AtomicBoolean();
+    List<Future<?>> readers = new ArrayList<>();
+    for (int readerIdx = 0; readerIdx < NUM_READERS; readerIdx++) {
+      readers.add(
+          executor.submit(
+              () -> {
+                long lastVersion = 0;
+                while (!done.get()) {
+                  Snapshot snapshot = snapshots.acquire();
+                  try {
+                    check(snapshot, snapshot.getVersion());
+                    if (snapshot.getVersion() < lastVersion) {
+                      throw new AssertionError("Went back to an older version");
+                    }
+                    lastVersion = snapshot.getVersion();
+                  } finally {
+                    snapshots.release(snapshot);
+                  }
+                }
+              }));
+    }
+
+    for (int version = 1; version <= NUM_VERSIONS; version++) {
+      publish(snapshots, version);
+    }
+    done.set(true);
+    for (Future<?> reader : readers) {
+      reader.get();
+    }
+    executor.shutdown();
+    assertEquals(NUM_VERSIONS, snapshots.latest().getVersion());
+  }
+
+  private static void publish(ParameterSnapshots snapshots, long version) {
+    Snapshot snapshot = snapshots.prepare();
+    fill(snapshot, version);
+    snapshots.publish(snapshot);
+  }
+
+  private static void fill(Snapshot snapshot, long version) {
+    for (ByteBuffer buffer : snapshot.getParameters()) {
+      while (buffer.hasRemaining()) {
+        buffer.putFloat(version);
+      }
+      buffer.rewind();
+    }
+  }
+
+  private static void check(Snapshot snapshot, long version) {
+    for (ByteBuffer buffer : snapshot.getParameters()) {
+      for (int idx = 0; idx < buffer.capacity(); idx += 4) {
+        assertEquals(version, buffer.getFloat(idx), 0);
+      }
+    }
+  }
+}
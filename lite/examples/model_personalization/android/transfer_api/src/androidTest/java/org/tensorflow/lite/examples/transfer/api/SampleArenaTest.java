@@ -0,0 +1,90 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link SampleArena}. */
+@RunWith(AndroidJUnit4.class)
+public class SampleArenaTest {
+  private static final int FLOAT_BYTES = 4;
+
+  private static final int NUM_FEATURES = 5;
+  private static final int SEGMENT_SAMPLES = 3;
+  private static final int NUM_SAMPLES = 10;
+
+  @Test
+  public void shouldKeepSamplesAcrossSegments() throws IOException {
+    SampleArena arena = createArena();
+
+    assertEquals(NUM_SAMPLES, arena.size());
+    for (int sampleIdx = 0; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      assertEquals(sampleIdx % 4, arena.getClassIndex(sampleIdx));
+      ByteBuffer bottleneck = arena.getBottleneck(sampleIdx);
+      assertEquals(NUM_FEATURES * FLOAT_BYTES, bottleneck.remaining());
+      for (int featureIdx = 0; featureIdx < NUM_FEATURES; featureIdx++) {
+        assertEquals(feature(sampleIdx, featureIdx), bottleneck.getFloat(), 0);
+      }
+    }
+  }
+
+  @Test
+  public void shouldGatherBottlenecksInOrder() throws IOException {
+    SampleArena arena = createArena();
+    // Includes runs of consecutive samples, within and across segments.
+    int[] sampleIndices = {9, 0, 1, 2, 3, 4, 7, 5};
+    int from = 1;
+    int count = sampleIndices.length - from;
+
+    ByteBuffer batch = ByteBuffer.allocateDirect(count * NUM_FEATURES * FLOAT_BYTES);
+    batch.order(ByteOrder.nativeOrder());
+    arena.gatherBottlenecks(sampleIndices, from, count, batch);
+    assertEquals(0, batch.remaining());
+
+    batch.rewind();
+    for (int idx = from; idx < sampleIndices.length; idx++) {
+      for (int featureIdx = 0; featureIdx < NUM_FEATURES; featureIdx++) {
+        assertEquals(feature(sampleIndices[idx], featureIdx), batch.getFloat(), 0);
+      }
+    }
+  }
+
+  private static SampleArena createArena() throws IOException {
+    SampleArena arena = new SampleArena(NUM_FEATURES * FLOAT_BYTES, SEGMENT_SAMPLES);
+    ByteBuffer bottleneck = ByteBuffer.allocateDirect(NUM_FEATURES * FLOAT_BYTES);
+    bottleneck.order(ByteOrder.nativeOrder());
+    for (int sampleIdx = 0; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      for (int featureIdx = 0; featureIdx < NUM_FEATURES; featureIdx++) {
+        bottleneck.putFloat(feature(sampleIdx, featureIdx));
+      }
+      bottleneck.rewind();
+      assertEquals(sampleIdx, arena.add(bottleneck, sampleIdx % 4));
+      assertEquals(0, bottleneck.position());
+    }
+    return arena;
+  }
+
+  private static float feature(int sampleIdx, int featureIdx) {
+    return sampleIdx * 100 + featureIdx;
+  }
+}
@@ -0,0 +1,163 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link SampleStore}. */
+@RunWith(AndroidJUnit4.class)
+public class SampleStoreTest {
+  private static final int FLOAT_BYTES = 4;
+
+  private static final int[] BOTTLENECK_SHAPE = {1, 2, 3};
+  private static final int NUM_FEATURES = 6;
+  private static final String[] CLASSES = {"1", "2", "3"};
+  // More than a segment.
+  private static final int NUM_SAMPLES = 20;
+  // Size of the header of these stores.
+  private static final int HEADER_BYTES = 4096;
+  // Offset of the sample count in the header.
+  private static final int NUM_SAMPLES_OFFSET = 16;
+
+  @Test
+  public void shouldRestoreSamplesWhenReopened() throws IOException {
+    File path = File.createTempFile("tflite-tl-samples", ".bin");
+    ByteBuffer model = createModel((byte) 1);
+
+    SampleStore store = new SampleStore(path, BOTTLENECK_SHAPE, model, CLASSES);
+    addSamples(store);
+    store.close();
+
+    store = new SampleStore(path, BOTTLENECK_SHAPE, model, CLASSES);
+    assertEquals(NUM_SAMPLES, store.size());
+    for (int sampleIdx = 0; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      assertEquals(sampleIdx % CLASSES.length, store.getClassIndex(sampleIdx));
+      ByteBuffer bottleneck = store.getBottleneck(sampleIdx);
+      for (int featureIdx = 0; featureIdx < NUM_FEATURES; featureIdx++) {
+        assertEquals(feature(sampleIdx, featureIdx), bottleneck.getFloat(), 0);
+      }
+    }
+
+    // Appending to a reopened store keeps the previous samples.
+    addSamples(store);
+    store.close();
+    store = new SampleStore(path, BOTTLENECK_SHAPE, model, CLASSES);
+    assertEquals(2 * NUM_SAMPLES, store.size());
+    store.close();
+
+    path.delete();
+  }
+
+  @Test
+  public void shouldStartOverForAnotherModel() throws IOException {
+    File path = File.createTempFile("tflite-tl-samples", ".bin");
+
+    SampleStore store = new SampleStore(path, BOTTLENECK_SHAPE, createModel((byte) 1), CLASSES);
+    addSamples(store);
+    store.close();
+
+    store = new SampleStore(path, BOTTLENECK_SHAPE, createModel((byte) 2), CLASSES);
+    assertEquals(0, store.size());
+    store.close();
+
+    path.delete();
+  }
+
+  @Test
+  public void shouldStartOverWhenDamaged() throws IOException {
+    File path = File.createTempFile("tflite-tl-samples", ".bin");
+    ByteBuffer model = createModel((byte) 1);
+
+    SampleStore store = new SampleStore(path, BOTTLENECK_SHAPE, model, CLASSES);
+    addSamples(store);
+    store.close();
+
+    // The records start after the page-aligned header: make their class indices invalid.
+    RandomAccessFile file = new RandomAccessFile(path, "rw");
+    for (long offset = HEADER_BYTES; offset < file.length(); offset++) {
+      file.seek(offset);
+      file.write(0xff);
+    }
+    file.close();
+
+    store = new SampleStore(path, BOTTLENECK_SHAPE, model, CLASSES);
+    assertEquals(0, store.size());
+    addSamples(store);
+    store.close();
+    store = new SampleStore(path, BOTTLENECK_SHAPE, model, CLASSES);
+    assertEquals(NUM_SAMPLES, store.size());
+    store.close();
+
+    path.delete();
+  }
+
+  @Test
+  public void shouldStartOverWhenCountIsDamaged() throws IOException {
+    File path = File.createTempFile("tflite-tl-samples", ".bin");
+    ByteBuffer model = createModel((byte) 1);
+
+    SampleStore store = new SampleStore(path, BOTTLENECK_SHAPE, model, CLASSES);
+    addSamples(store);
+    store.close();
+
+    // More samples than written, but fewer than the record slots of the mapped segments.
+    ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+    count.putLong(0, 1000);
+    RandomAccessFile file = new RandomAccessFile(path, "rw");
+    file.getChannel().write(count, NUM_SAMPLES_OFFSET);
+    file.close();
+
+    store = new SampleStore(path, BOTTLENECK_SHAPE, model, CLASSES);
+    assertEquals(0, store.size());
+    store.close();
+
+    path.delete();
+  }
+
+  private static void addSamples(SampleStore store) throws IOException {
+    ByteBuffer bottleneck = ByteBuffer.allocateDirect(NUM_FEATURES * FLOAT_BYTES);
+    bottleneck.order(ByteOrder.nativeOrder());
+    for (int sampleIdx = 0; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      for (int featureIdx = 0; featureIdx < NUM_FEATURES; featureIdx++) {
+        bottleneck.putFloat(feature(sampleIdx, featureIdx));
+      }
+      bottleneck.rewind();
+      store.add(bottleneck, sampleIdx % CLASSES.length);
+    }
+  }
+
+  private static ByteBuffer createModel(byte fill) {
+    ByteBuffer model = ByteBuffer.allocateDirect(64);
+    while (model.hasRemaining()) {
+      model.put(fill);
+    }
+    model.rewind();
+    return model;
+  }
+
+  private static float feature(int sampleIdx, int featureIdx) {
+    return sampleIdx * 100 + featureIdx;
+  }
+}
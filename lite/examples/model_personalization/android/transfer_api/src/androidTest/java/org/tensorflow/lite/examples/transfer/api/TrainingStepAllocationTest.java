@@ -0,0 +1,164 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertTrue;
+
+import android.os.Debug;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Checks that training steps do not allocate once warmed up.
+ *
+ * <p>The TFLite Java runtime makes a few small allocations of its own on every run, so a step is
+ * compared with bare interpreter runs on the same inputs and outputs: the wrappers must not add
+ * anything to those.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrainingStepAllocationTest {
+  private static final int FLOAT_BYTES = 4;
+
+  private static final int NUM_CLASSES = 5;
+  private static final int NUM_WARMUP_STEPS = 3;
+  private static final int NUM_STEPS = 20;
+
+  @Test
+  @SuppressWarnings("deprecation") // Thread allocation counting is still supported.
+  public void trainingStepShouldNotAllocate() throws IOException {
+    ModelLoader loader =
+        new AssetModelLoader(InstrumentationRegistry.getInstrumentation().getContext(), "model");
+    LiteModelWrapper trainModelWrapper = loader.loadTrainModel();
+    LiteModelWrapper optimizerModelWrapper = loader.loadOptimizerModel();
+    LiteTrainHeadModel trainHeadModel = new LiteTrainHeadModel(trainModelWrapper);
+    LiteOptimizerModel optimizerModel = new LiteOptimizerModel(optimizerModelWrapper);
+
+    Interpreter trainInterpreter = trainModelWrapper.getInterpreter();
+    ByteBuffer bottlenecks = allocateBuffer(trainInterpreter.getInputTensor(0).numBytes());
+    ByteBuffer classes = allocateBuffer(trainInterpreter.getInputTensor(1).numBytes());
+    for (int sampleIdx = 0; sampleIdx < trainHeadModel.getBatchSize(); sampleIdx++) {
+      classes.putFloat((sampleIdx * NUM_CLASSES + sampleIdx % NUM_CLASSES) * FLOAT_BYTES, 1);
+    }
+
+    int[] parameterSizes = trainHeadModel.getParameterSizes();
+    ByteBuffer[] parameters = allocateBuffers(parameterSizes);
+    ByteBuffer[] nextParameters = allocateBuffers(parameterSizes);
+    ByteBuffer[] gradients = allocateBuffers(parameterSizes);
+    int[] stateSizes = optimizerModel.stateElementSizes();
+    ByteBuffer[] state = allocateBuffers(stateSizes);
+    ByteBuffer[] nextState = allocateBuffers(stateSizes);
+
+    // The same bindings as the wrappers, for the bare interpreter runs.
+    Object[] trainInputs = new Object[2 + parameters.length];
+    trainInputs[0] = bottlenecks;
+    trainInputs[1] = classes;
+    System.arraycopy(parameters, 0, trainInputs, 2, parameters.length);
+    Object[] trainOutputBuffers = new Object[1 + gradients.length];
+    trainOutputBuffers[0] = allocateBuffer(FLOAT_BYTES);
+    System.arraycopy(gradients, 0, trainOutputBuffers, 1, gradients.length);
+    Map<Integer, Object> trainOutputs = bind(trainOutputBuffers);
+    Object[] optimizerInputs = new Object[2 * parameters.length + state.length];
+    System.arraycopy(parameters, 0, optimizerInputs, 0, parameters.length);
+    System.arraycopy(gradients, 0, optimizerInputs, parameters.length, gradients.length);
+    System.arraycopy(state, 0, optimizerInputs, 2 * parameters.length, state.length);
+    Object[] optimizerOutputBuffers = new Object[nextParameters.length + nextState.length];
+    System.arraycopy(nextParameters, 0, optimizerOutputBuffers, 0, nextParameters.length);
+    System.arraycopy(
+        nextState, 0, optimizerOutputBuffers, nextParameters.length, nextState.length);
+    Map<Integer, Object> optimizerOutputs = bind(optimizerOutputBuffers);
+
+    for (int step = 0; step < NUM_WARMUP_STEPS; step++) {
+      trainHeadModel.calculateGradients(bottlenecks, classes, parameters, gradients);
+      optimizerModel.performStep(parameters, gradients, state, nextParameters, nextState);
+      trainInterpreter.runForMultipleInputsOutputs(trainInputs, trainOutputs);
+      rewind(trainInputs);
+      rewind(trainOutputBuffers);
+      optimizerModelWrapper.getInterpreter()
+          .runForMultipleInputsOutputs(optimizerInputs, optimizerOutputs);
+      rewind(optimizerInputs);
+      rewind(optimizerOutputBuffers);
+    }
+
+    Debug.startAllocCounting();
+    try {
+      Debug.resetThreadAllocCount();
+      for (int step = 0; step < NUM_STEPS; step++) {
+        trainHeadModel.calculateGradients(bottlenecks, classes, parameters, gradients);
+        optimizerModel.performStep(parameters, gradients, state, nextParameters, nextState);
+      }
+      int stepAllocations = Debug.getThreadAllocCount();
+
+      Debug.resetThreadAllocCount();
+      for (int step = 0; step < NUM_STEPS; step++) {
+        trainInterpreter.runForMultipleInputsOutputs(trainInputs, trainOutputs);
+        rewind(trainInputs);
+        rewind(trainOutputBuffers);
+        optimizerModelWrapper.getInterpreter()
+            .runForMultipleInputsOutputs(optimizerInputs, optimizerOutputs);
+        rewind(optimizerInputs);
+        rewind(optimizerOutputBuffers);
+      }
+      int runtimeAllocations = Debug.getThreadAllocCount();
+
+      assertTrue(
+          String.format(
+              "%d steps allocated %d objects, the interpreters alone %d",
+              NUM_STEPS, stepAllocations, runtimeAllocations),
+          stepAllocations <= runtimeAllocations);
+    } finally {
+      Debug.stopAllocCounting();
+    }
+
+    trainHeadModel.close();
+    optimizerModel.close();
+  }
+
+  private static Map<Integer, Object> bind(Object[] outputBuffers) {
+    Map<Integer, Object> outputs = new TreeMap<>();
+    for (int outputIdx = 0; outputIdx < outputBuffers.length; outputIdx++) {
+      outputs.put(outputIdx, outputBuffers[outputIdx]);
+    }
+    return outputs;
+  }
+
+  private static void rewind(Object[] buffers) {
+    for (Object buffer : buffers) {
+      ((ByteBuffer) buffer).rewind();
+    }
+  }
+
+  private static ByteBuffer[] allocateBuffers(int[] numElements) {
+    ByteBuffer[] result = new ByteBuffer[numElements.length];
+    for (int idx = 0; idx < numElements.length; idx++) {
+      result[idx] = allocateBuffer(numElements[idx] * FLOAT_BYTES);
+    }
+    return result;
+  }
+
+  private static ByteBuffer allocateBuffer(int capacity) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+}
@@ -17,6 +17,7 @@ package org.tensorflow.lite.examples.transfer.api;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
@@ -67,4 +68,35 @@ public class TransferLearningModelTest {
 
     Files.delete(tempFilePath);
   }
+
+  @Test
+  public void loadShouldRejectTruncatedParameters() throws IOException {
+    TransferLearningModel model =
+        new TransferLearningModel(
+            new AssetModelLoader(
+                InstrumentationRegistry.getInstrumentation().getContext(), "model"),
+            Arrays.asList("1", "2", "3", "4", "5"));
+
+    Path tempFilePath = Files.createTempFile("tflite-tl-test", ".bin");
+
+    model.saveParameters(FileChannel.open(tempFilePath, StandardOpenOption.WRITE));
+    byte[] contents = Files.readAllBytes(tempFilePath);
+    Files.write(tempFilePath, Arrays.copyOf(contents, contents.length - 1));
+
+    try {
+      model.loadParameters(FileChannel.open(tempFilePath, StandardOpenOption.READ));
+      Assert.fail("Truncated parameters were loaded");
+    } catch (EOFException e) {
+      // Expected.
+    }
+
+    // The parameters in use are left alone.
+    model.saveParameters(
+        FileChannel.open(
+            tempFilePath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    Assert.assertArrayEquals(contents, Files.readAllBytes(tempFilePath));
+
+    model.close();
+    Files.delete(tempFilePath);
+  }
 }
@@ -17,31 +17,76 @@ package org.tensorflow.lite.examples.transfer.api;
 
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 
 /**
  * A wrapper for TFLite model that generates bottlenecks from images.
+ *
+ * <p>Bottlenecks can be generated from several threads at once: each call checks out an
+ * interpreter from a pool, which grows on demand up to the given size, and returns it when done.
+ * All interpreters share the same model data.
  */
 class LiteBottleneckModel implements Closeable {
   private static final int FLOAT_BYTES = 4;
 
   private final LiteModelWrapper modelWrapper;
+  private final int maxInterpreters;
+  private final int numBottleneckFeatures;
+  private final int[] bottleneckShape;
+
+  // All interpreters created so far, including [modelWrapper]. Guarded by [this].
+  private final List<LiteModelWrapper> interpreters = new ArrayList<>();
+
+  // Interpreters that are not in use. Guarded by [this].
+  private final Deque<LiteModelWrapper> idleInterpreters = new ArrayDeque<>();
+
+  // Interpreters being created, which count towards the pool size. Guarded by [this].
+  private int numPendingInterpreters = 0;
 
   LiteBottleneckModel(LiteModelWrapper modelWrapper) {
+    this(modelWrapper, 1);
+  }
+
+  /**
+   * @param modelWrapper the first interpreter of the pool, which the others duplicate.
+   * @param maxInterpreters how many bottlenecks can be generated concurrently.
+   */
+  LiteBottleneckModel(LiteModelWrapper modelWrapper, int maxInterpreters) {
+    if (maxInterpreters < 1) {
+      throw new IllegalArgumentException("At least one interpreter is needed");
+    }
     this.modelWrapper = modelWrapper;
+    this.maxInterpreters = maxInterpreters;
+    interpreters.add(modelWrapper);
+    idleInterpreters.push(modelWrapper);
+
+    numBottleneckFeatures = modelWrapper.getInterpreter().getOutputTensor(0).numElements();
+    bottleneckShape = modelWrapper.getInterpreter().getOutputTensor(0).shape();
   }
 
   /**
    * Passes a single image through the bottleneck model.
+   *
+   * <p>Blocks until an interpreter is available, if all are in use.
+   *
    * @param image image RGB data.
    * @param outBottleneck where to store the bottleneck. A new buffer is allocated if null.
    * @return bottleneck data. This is either [outBottleneck], or a newly allocated buffer.
    */
-  synchronized ByteBuffer generateBottleneck(ByteBuffer image, ByteBuffer outBottleneck) {
+  ByteBuffer generateBottleneck(ByteBuffer image, ByteBuffer outBottleneck) {
     if (outBottleneck == null) {
       outBottleneck = ByteBuffer.allocateDirect(getNumBottleneckFeatures() * FLOAT_BYTES);
     }
 
-    modelWrapper.getInterpreter().run(image, outBottleneck);
+    LiteModelWrapper interpreter = checkOut();
+    try {
+      interpreter.getInterpreter().run(image, outBottleneck);
+    } finally {
+      checkIn(interpreter);
+    }
     image.rewind();
     outBottleneck.rewind();
 
@@ -49,15 +94,68 @@ class LiteBottleneckModel implements Closeable {
   }
 
   int getNumBottleneckFeatures() {
-    return modelWrapper.getInterpreter().getOutputTensor(0).numElements();
+    return numBottleneckFeatures;
   }
 
   int[] getBottleneckShape() {
-    return modelWrapper.getInterpreter().getOutputTensor(0).shape();
+    return bottleneckShape.clone();
   }
 
+  /** Closes all interpreters. None may be in use. */
   @Override
-  public void close() {
-    modelWrapper.close();
+  public synchronized void close() {
+    for (LiteModelWrapper interpreter : interpreters) {
+      interpreter.close();
+    }
+    interpreters.clear();
+    idleInterpreters.clear();
+  }
+
+  private LiteModelWrapper checkOut() {
+    synchronized (this) {
+      boolean interrupted = false;
+      try {
+        while (idleInterpreters.isEmpty()
+            && interpreters.size() + numPendingInterpreters >= maxInterpreters) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            // An interpreter is bound to be returned shortly, so keep waiting, but let the caller
+            // see the interruption.
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (!idleInterpreters.isEmpty()) {
+        return idleInterpreters.pop();
+      }
+      numPendingInterpreters++;
+    }
+
+    // Creating an interpreter takes a while, so others can be checked out meanwhile.
+    LiteModelWrapper interpreter = null;
+    try {
+      interpreter = modelWrapper.duplicate();
+      return interpreter;
+    } finally {
+      synchronized (this) {
+        numPendingInterpreters--;
+        if (interpreter != null) {
+          interpreters.add(interpreter);
+        } else {
+          // Let a waiting thread try again.
+          notify();
+        }
+      }
+    }
+  }
+
+  private synchronized void checkIn(LiteModelWrapper interpreter) {
+    idleInterpreters.push(interpreter);
+    notify();
   }
 }
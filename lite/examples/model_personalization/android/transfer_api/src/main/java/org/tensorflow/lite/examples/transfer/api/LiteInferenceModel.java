@@ -18,48 +18,175 @@ package org.tensorflow.lite.examples.transfer.api;
 import java.io.Closeable;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+/**
+ * A wrapper for TFLite model that predicts class confidences from a bottleneck.
+ *
+ * <p>Predictions can be made from several threads at once: like {@link LiteBottleneckModel},
+ * each call checks out an interpreter from a pool, which grows on demand up to the given size.
+ * The inputs and outputs of each interpreter are bound once, and only re-pointed at the buffers
+ * of each call.
+ */
 class LiteInferenceModel implements Closeable {
   private static final int FLOAT_BYTES = 4;
 
+  // An interpreter with its bindings.
+  private static class Runner {
+    final LiteModelWrapper modelWrapper;
+    final ByteBuffer predictionsBuffer;
+    final Object[] inputs;
+    final Map<Integer, Object> outputs = new TreeMap<>();
+
+    Runner(LiteModelWrapper modelWrapper, int numClasses) {
+      this.modelWrapper = modelWrapper;
+      predictionsBuffer = ByteBuffer.allocateDirect(numClasses * FLOAT_BYTES);
+      predictionsBuffer.order(ByteOrder.nativeOrder());
+      inputs = new Object[modelWrapper.getInterpreter().getInputTensorCount()];
+      outputs.put(0, predictionsBuffer);
+    }
+  }
+
   private final LiteModelWrapper modelWrapper;
   private final int numClasses;
+  private final int maxInterpreters;
+
+  // All runners created so far. Guarded by [this].
+  private final List<Runner> runners = new ArrayList<>();
+
+  // Runners that are not in use. Guarded by [this].
+  private final Deque<Runner> idleRunners = new ArrayDeque<>();
+
+  // Runners being created, which count towards the pool size. Guarded by [this].
+  private int numPendingRunners = 0;
 
   LiteInferenceModel(LiteModelWrapper modelWrapper, int numClasses) {
+    this(modelWrapper, numClasses, 1);
+  }
+
+  /**
+   * @param modelWrapper the first interpreter of the pool, which the others duplicate.
+   * @param numClasses number of classes the model predicts.
+   * @param maxInterpreters how many predictions can be made concurrently.
+   */
+  LiteInferenceModel(LiteModelWrapper modelWrapper, int numClasses, int maxInterpreters) {
+    if (maxInterpreters < 1) {
+      throw new IllegalArgumentException("At least one interpreter is needed");
+    }
     this.modelWrapper = modelWrapper;
     this.numClasses = numClasses;
+    this.maxInterpreters = maxInterpreters;
+
+    Runner runner = new Runner(modelWrapper, numClasses);
+    runners.add(runner);
+    idleRunners.push(runner);
   }
 
   float[] runInference(ByteBuffer bottleneck, ByteBuffer[] modelParameters) {
-    ByteBuffer predictionsBuffer = ByteBuffer.allocateDirect(numClasses * FLOAT_BYTES);
-    predictionsBuffer.order(ByteOrder.nativeOrder());
+    return runInference(bottleneck, modelParameters, new float[numClasses]);
+  }
 
-    Map<Integer, Object> outputs = new TreeMap<>();
-    outputs.put(0, predictionsBuffer);
+  /**
+   * Predicts class confidences.
+   *
+   * <p>Blocks until an interpreter is available, if all are in use.
+   *
+   * @param bottleneck image bottleneck.
+   * @param modelParameters current model trainable parameter values, in direct buffers of native
+   *     order. These are read in place and left untouched, so several calls can share them.
+   * @param outPredictions where to store the confidences, by class index.
+   * @return [outPredictions].
+   */
+  float[] runInference(
+      ByteBuffer bottleneck, ByteBuffer[] modelParameters, float[] outPredictions) {
+    Runner runner = checkOut();
+    try {
+      Object[] inputs = runner.inputs;
+      if (modelParameters.length + 1 != inputs.length) {
+        throw new IllegalArgumentException(String.format(
+            "Model expected %d parameter tensors, but got %d",
+            inputs.length - 1,
+            modelParameters.length));
+      }
 
-    Object[] inputs = new Object[modelParameters.length + 1];
-    inputs[0] = bottleneck;
-    System.arraycopy(modelParameters, 0, inputs, 1, modelParameters.length);
+      inputs[0] = bottleneck;
+      System.arraycopy(modelParameters, 0, inputs, 1, modelParameters.length);
 
-    modelWrapper.getInterpreter().runForMultipleInputsOutputs(inputs, outputs);
-    bottleneck.rewind();
-    for (ByteBuffer buffer : modelParameters) {
-      buffer.rewind();
-    }
-    predictionsBuffer.rewind();
+      runner.modelWrapper.getInterpreter().runForMultipleInputsOutputs(inputs, runner.outputs);
+      bottleneck.rewind();
 
-    float[] predictions = new float[numClasses];
-    for (int classIdx = 0; classIdx < numClasses; classIdx++) {
-      predictions[classIdx] = predictionsBuffer.getFloat();
+      ByteBuffer predictionsBuffer = runner.predictionsBuffer;
+      predictionsBuffer.rewind();
+      for (int classIdx = 0; classIdx < numClasses; classIdx++) {
+        outPredictions[classIdx] = predictionsBuffer.getFloat();
+      }
+      predictionsBuffer.rewind();
+    } finally {
+      checkIn(runner);
     }
 
-    return predictions;
+    return outPredictions;
   }
 
+  /** Closes all interpreters. None may be in use. */
   @Override
-  public void close() {
-    modelWrapper.close();
+  public synchronized void close() {
+    for (Runner runner : runners) {
+      runner.modelWrapper.close();
+    }
+    runners.clear();
+    idleRunners.clear();
+  }
+
+  private Runner checkOut() {
+    synchronized (this) {
+      boolean interrupted = false;
+      try {
+        while (idleRunners.isEmpty() && runners.size() + numPendingRunners >= maxInterpreters) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            // A runner is bound to be returned shortly, so keep waiting, but let the caller see
+            // the interruption.
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (!idleRunners.isEmpty()) {
+        return idleRunners.pop();
+      }
+      numPendingRunners++;
+    }
+
+    // Creating an interpreter takes a while, so others can be checked out meanwhile.
+    Runner runner = null;
+    try {
+      runner = new Runner(modelWrapper.duplicate(), numClasses);
+      return runner;
+    } finally {
+      synchronized (this) {
+        numPendingRunners--;
+        if (runner != null) {
+          runners.add(runner);
+        } else {
+          // Let a waiting thread try again.
+          notify();
+        }
+      }
+    }
+  }
+
+  private synchronized void checkIn(Runner runner) {
+    idleRunners.push(runner);
+    notify();
   }
 }
@@ -25,9 +25,11 @@ import org.tensorflow.lite.Interpreter;
  * Superclass for TFLite model wrappers that handles model resource management.
  */
 final class LiteModelWrapper implements Closeable {
+  private final ByteBuffer model;
   private final Interpreter interpreter;
 
   private LiteModelWrapper(ByteBuffer model) {
+    this.model = model;
     interpreter = new Interpreter(model);
   }
 
@@ -51,6 +53,21 @@ final class LiteModelWrapper implements Closeable {
     return interpreter;
   }
 
+  /** Raw model data, read-only. */
+  ByteBuffer getModel() {
+    return model.asReadOnlyBuffer();
+  }
+
+  /**
+   * Create another interpreter instance for the same model.
+   *
+   * <p>The model data is shared rather than copied, and an interpreter never modifies it, so
+   * instances can run concurrently. Each one has to be closed separately.
+   */
+  LiteModelWrapper duplicate() {
+    return new LiteModelWrapper(model);
+  }
+
   @Override
   public void close() {
     interpreter.close();
@@ -20,15 +20,31 @@ import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
-/** A wrapper for TFLite optimizer model. */
+/**
+ * A wrapper for TFLite optimizer model.
+ *
+ * <p>The interpreter inputs and outputs are bound once, and only re-pointed at the buffers of
+ * each step, so that steps do not allocate. Not thread-safe.
+ */
 public class LiteOptimizerModel implements Closeable {
 
   private static final int FLOAT_BYTES = 4;
 
   private final LiteModelWrapper modelWrapper;
 
+  private final Object[] inputs;
+  private final Map<Integer, Object> outputs = new TreeMap<>();
+
   LiteOptimizerModel(LiteModelWrapper modelWrapper) {
     this.modelWrapper = modelWrapper;
+
+    inputs = new Object[modelWrapper.getInterpreter().getInputTensorCount()];
+    // The keys are added now so that binding does not allocate.
+    for (int outputIdx = 0;
+        outputIdx < modelWrapper.getInterpreter().getOutputTensorCount();
+        outputIdx++) {
+      outputs.put(outputIdx, null);
+    }
   }
 
   /**
@@ -46,14 +62,31 @@ public class LiteOptimizerModel implements Closeable {
       ByteBuffer[] optimizerState,
       ByteBuffer[] newParams,
       ByteBuffer[] newOptimizerState) {
-    Object[] inputs = new Object[currentParams.length + gradients.length];
+    if (currentParams.length + gradients.length + optimizerState.length != inputs.length
+        || newParams.length + newOptimizerState.length != outputs.size()) {
+      throw new IllegalArgumentException(String.format(
+          "Model expected %d inputs and %d outputs, but got %d and %d",
+          inputs.length,
+          outputs.size(),
+          currentParams.length + gradients.length + optimizerState.length,
+          newParams.length + newOptimizerState.length));
+    }
+
     System.arraycopy(currentParams, 0, inputs, 0, currentParams.length);
     System.arraycopy(gradients, 0, inputs, currentParams.length, gradients.length);
+    System.arraycopy(
+        optimizerState,
+        0,
+        inputs,
+        currentParams.length + gradients.length,
+        optimizerState.length);
 
-    Map<Integer, Object> outputs = new TreeMap<>();
     for (int paramIdx = 0; paramIdx < newParams.length; paramIdx++) {
       outputs.put(paramIdx, newParams[paramIdx]);
     }
+    for (int elemIdx = 0; elemIdx < newOptimizerState.length; elemIdx++) {
+      outputs.put(newParams.length + elemIdx, newOptimizerState[elemIdx]);
+    }
 
     modelWrapper.getInterpreter().runForMultipleInputsOutputs(inputs, outputs);
     for (ByteBuffer buffer : currentParams) {
@@ -62,9 +95,15 @@ public class LiteOptimizerModel implements Closeable {
     for (ByteBuffer buffer : gradients) {
       buffer.rewind();
     }
+    for (ByteBuffer buffer : optimizerState) {
+      buffer.rewind();
+    }
     for (ByteBuffer buffer : newParams) {
       buffer.rewind();
     }
+    for (ByteBuffer buffer : newOptimizerState) {
+      buffer.rewind();
+    }
   }
 
   /**
@@ -25,14 +25,32 @@ import org.tensorflow.lite.Tensor;
 
 /**
  * A wrapper for TFLite model that calculates the gradients of trainable layers.
+ *
+ * <p>The interpreter inputs and outputs are bound once, and only re-pointed at the buffers of
+ * each call, so that training steps do not allocate. Not thread-safe.
  */
 class LiteTrainHeadModel implements Closeable {
   private static final int FLOAT_BYTES = 4;
 
   private LiteModelWrapper modelWrapper;
 
+  private final ByteBuffer lossBuffer;
+  private final Object[] inputs;
+  private final Map<Integer, Object> outputs = new TreeMap<>();
+
   LiteTrainHeadModel(LiteModelWrapper modelWrapper) {
     this.modelWrapper = modelWrapper;
+
+    lossBuffer = ByteBuffer.allocateDirect(FLOAT_BYTES);
+    lossBuffer.order(ByteOrder.nativeOrder());
+    inputs = new Object[modelWrapper.getInterpreter().getInputTensorCount()];
+    outputs.put(0, lossBuffer);
+    // Gradients are bound on each call; the keys are added now so that binding does not allocate.
+    for (int outputIndex = 1;
+        outputIndex < modelWrapper.getInterpreter().getOutputTensorCount();
+        outputIndex++) {
+      outputs.put(outputIndex, null);
+    }
   }
 
   /**
@@ -55,25 +73,17 @@ class LiteTrainHeadModel implements Closeable {
           modelParameters.length,
           modelGradients.length));
     }
-    if (modelWrapper.getInterpreter().getOutputTensorCount() != modelParameters.length + 1) {
+    if (outputs.size() != modelParameters.length + 1) {
       throw new IllegalArgumentException(String.format(
           "Model expected %d parameter tensors, but got %d",
           modelWrapper.getInterpreter().getInputTensorCount() - 1,
           modelParameters.length));
     }
 
-    ByteBuffer lossBuffer = ByteBuffer.allocateDirect(FLOAT_BYTES);
-    lossBuffer.order(ByteOrder.nativeOrder());
-
-    Map<Integer, Object> outputs = new TreeMap<>();
-    outputs.put(0, lossBuffer);
-    for (int outputIndex = 1;
-        outputIndex < modelWrapper.getInterpreter().getOutputTensorCount();
-        outputIndex++) {
+    for (int outputIndex = 1; outputIndex < outputs.size(); outputIndex++) {
       outputs.put(outputIndex, modelGradients[outputIndex - 1]);
     }
 
-    Object[] inputs = new Object[modelParameters.length + 2];
     inputs[0] = bottleneckBatch;
     inputs[1] = classBatch;
     System.arraycopy(modelParameters, 0, inputs, 2, modelParameters.length);
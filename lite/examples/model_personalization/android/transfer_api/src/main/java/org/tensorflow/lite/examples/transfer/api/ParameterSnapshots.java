@@ -0,0 +1,157 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Versions of the trainable parameters, published to readers without locking.
+ *
+ * <p>A version is never modified once published. Readers {@link #acquire} the current one and
+ * {@link #release} it when done, while a writer fills a new version and {@link #publish}es it,
+ * read-copy-update style: neither waits for the other. A version that has been replaced and is
+ * no longer held by any reader is retired, and its buffers are reused for a later version, so
+ * there are only ever as many versions as concurrent readers, plus two.
+ *
+ * <p>Readers can use any number of threads. Writers must be serialized by the caller.
+ */
+final class ParameterSnapshots {
+  private static final int FLOAT_BYTES = 4;
+
+  /** A single version of the parameters. */
+  static final class Snapshot {
+    private final ByteBuffer[] parameters;
+    private long version;
+
+    // Readers holding the snapshot, plus one while it is the current version. Zero once retired,
+    // after which the count can only be raised again by publishing.
+    private final AtomicInteger references = new AtomicInteger();
+
+    private Snapshot(int[] parameterSizes) {
+      parameters = new ByteBuffer[parameterSizes.length];
+      for (int parameterIdx = 0; parameterIdx < parameterSizes.length; parameterIdx++) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(parameterSizes[parameterIdx] * FLOAT_BYTES);
+        buffer.order(ByteOrder.nativeOrder());
+        parameters[parameterIdx] = buffer;
+      }
+    }
+
+    /**
+     * Parameter values, which must not be modified once published. They are shared by all
+     * holders of the snapshot, so use duplicates to change their positions.
+     */
+    ByteBuffer[] getParameters() {
+      return parameters;
+    }
+
+    /** Number of versions published before this one. */
+    long getVersion() {
+      return version;
+    }
+
+    private boolean tryRetain() {
+      int count;
+      while ((count = references.get()) > 0) {
+        if (references.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private final int[] parameterSizes;
+  private final AtomicReference<Snapshot> current;
+
+  // All snapshots created so far. Only used by the writer.
+  private final List<Snapshot> snapshots = new ArrayList<>();
+
+  /**
+   * Creates the first version, with buffers to be filled before any reader acquires it.
+   *
+   * @param parameterSizes number of elements of each parameter.
+   */
+  ParameterSnapshots(int[] parameterSizes) {
+    this.parameterSizes = parameterSizes.clone();
+    Snapshot initial = new Snapshot(parameterSizes);
+    initial.references.set(1);
+    snapshots.add(initial);
+    current = new AtomicReference<>(initial);
+  }
+
+  /** Returns the current version, which must be released afterwards. Never blocks. */
+  Snapshot acquire() {
+    while (true) {
+      Snapshot snapshot = current.get();
+      // Fails if the snapshot has been retired since, in which case there is a newer one.
+      if (snapshot.tryRetain()) {
+        return snapshot;
+      }
+    }
+  }
+
+  /** Releases a version returned by {@link #acquire}. */
+  void release(Snapshot snapshot) {
+    if (snapshot.references.decrementAndGet() < 0) {
+      throw new IllegalStateException("Parameter snapshot released too many times");
+    }
+  }
+
+  /**
+   * Returns the current version, for the writer only. It remains valid until the writer publishes
+   * another version, without having to be released.
+   */
+  Snapshot latest() {
+    return current.get();
+  }
+
+  /**
+   * Returns a version for the writer to fill and then publish. Its buffers are those of a retired
+   * version, or new ones if none is retired yet, so their contents are undefined.
+   */
+  Snapshot prepare() {
+    Snapshot latest = current.get();
+    for (Snapshot snapshot : snapshots) {
+      if (snapshot != latest && snapshot.references.get() == 0) {
+        return snapshot;
+      }
+    }
+    Snapshot snapshot = new Snapshot(parameterSizes);
+    snapshots.add(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Makes a version returned by {@link #prepare} the current one. The previous version is
+   * retired once its last reader releases it.
+   */
+  void publish(Snapshot snapshot) {
+    Snapshot previous = current.get();
+    snapshot.version = previous.version + 1;
+    for (ByteBuffer buffer : snapshot.parameters) {
+      buffer.rewind();
+    }
+    // Published with the count, so that readers retaining the snapshot see its contents.
+    snapshot.references.set(1);
+    current.set(snapshot);
+    release(previous);
+  }
+}
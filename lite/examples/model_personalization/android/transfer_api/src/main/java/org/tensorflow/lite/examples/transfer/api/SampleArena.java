@@ -0,0 +1,201 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Storage for training samples: bottlenecks stored back-to-back in large direct buffers
+ * (segments), with their class indices in a parallel array.
+ *
+ * <p>Compared to a buffer per sample, this makes a handful of native allocations per session
+ * instead of one per sample, and lets batches be assembled with bulk copies.
+ *
+ * <p>Segments are direct buffers by default; subclasses can provide them otherwise, e.g. mapped
+ * from a file, and reserve room after each bottleneck in its record for their own data.
+ *
+ * <p>Not thread-safe: callers synchronize access.
+ */
+class SampleArena {
+  // Bottlenecks per segment. With MobileNetV2 bottlenecks (7 * 7 * 1280 floats), a segment is
+  // about 4 MB.
+  private static final int DEFAULT_SEGMENT_SAMPLES = 16;
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final int bottleneckBytes;
+  private final int recordBytes;
+  private final int segmentSamples;
+
+  private final List<ByteBuffer> segments = new ArrayList<>();
+  private int[] classIndices = new int[INITIAL_CAPACITY];
+  private int size = 0;
+
+  /** @param bottleneckBytes size of a single bottleneck, in bytes. */
+  SampleArena(int bottleneckBytes) {
+    this(bottleneckBytes, DEFAULT_SEGMENT_SAMPLES);
+  }
+
+  SampleArena(int bottleneckBytes, int segmentSamples) {
+    this(bottleneckBytes, bottleneckBytes, segmentSamples);
+  }
+
+  /**
+   * @param bottleneckBytes size of a single bottleneck, in bytes.
+   * @param recordBytes space taken by a sample in a segment, bottleneck first.
+   * @param segmentSamples samples per segment.
+   */
+  SampleArena(int bottleneckBytes, int recordBytes, int segmentSamples) {
+    if (bottleneckBytes <= 0 || segmentSamples <= 0) {
+      throw new IllegalArgumentException("Bottleneck and segment sizes must be positive");
+    }
+    if (recordBytes < bottleneckBytes) {
+      throw new IllegalArgumentException("Record must have room for the bottleneck");
+    }
+    this.bottleneckBytes = bottleneckBytes;
+    this.recordBytes = recordBytes;
+    this.segmentSamples = segmentSamples;
+  }
+
+  /**
+   * Copies a sample into the arena.
+   *
+   * @param bottleneck bottleneck data, read from its position, which is left unchanged.
+   * @param classIdx index of the sample class.
+   * @return index of the sample.
+   * @throws IOException if a new segment cannot be allocated.
+   */
+  int add(ByteBuffer bottleneck, int classIdx) throws IOException {
+    if (bottleneck.remaining() != bottleneckBytes) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Bottleneck has %d bytes, expected %d", bottleneck.remaining(), bottleneckBytes));
+    }
+    reserve();
+    getRecord(size).put(bottleneck.duplicate());
+    classIndices[size] = classIdx;
+    return size++;
+  }
+
+  /**
+   * Takes a sample that is already in the segments, e.g. read back from a file, as added.
+   *
+   * @param classIdx index of the sample class.
+   * @return index of the sample.
+   * @throws IOException if a new segment cannot be allocated.
+   */
+  int restore(int classIdx) throws IOException {
+    reserve();
+    classIndices[size] = classIdx;
+    return size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int getClassIndex(int sampleIdx) {
+    checkIndex(sampleIdx);
+    return classIndices[sampleIdx];
+  }
+
+  /**
+   * Returns a view of the bottleneck of a sample, without copying it. The view is only valid
+   * until the arena is cleared.
+   */
+  ByteBuffer getBottleneck(int sampleIdx) {
+    checkIndex(sampleIdx);
+    ByteBuffer view = getRecord(sampleIdx);
+    view.limit(view.position() + bottleneckBytes);
+    return view.slice().order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Copies the bottlenecks of several samples back-to-back into a buffer, from its position,
+   * which is advanced.
+   *
+   * @param sampleIndices indices of the samples to copy.
+   * @param from first element of [sampleIndices] to use.
+   * @param count number of samples to copy.
+   * @param out where to copy the bottlenecks.
+   */
+  void gatherBottlenecks(int[] sampleIndices, int from, int count, ByteBuffer out) {
+    for (int idx = from; idx < from + count; idx++) {
+      int sampleIdx = sampleIndices[idx];
+      checkIndex(sampleIdx);
+
+      // Consecutive samples of the same segment are copied at once, when their bottlenecks are
+      // back-to-back.
+      int runLength = 1;
+      while (recordBytes == bottleneckBytes
+          && idx + runLength < from + count
+          && sampleIndices[idx + runLength] == sampleIdx + runLength
+          && (sampleIdx + runLength) % segmentSamples != 0) {
+        runLength++;
+      }
+
+      ByteBuffer source = getRecord(sampleIdx);
+      source.limit(source.position() + runLength * bottleneckBytes);
+      out.put(source);
+      idx += runLength - 1;
+    }
+  }
+
+  /** Removes all samples. Memory is kept for reuse. */
+  void clear() {
+    size = 0;
+  }
+
+  /**
+   * Allocates a segment of the given size, in native byte order.
+   *
+   * @param segmentIdx index of the segment, which is allocated after all previous ones.
+   */
+  ByteBuffer allocateSegment(int segmentIdx, int segmentBytes) throws IOException {
+    ByteBuffer segment = ByteBuffer.allocateDirect(segmentBytes);
+    segment.order(ByteOrder.nativeOrder());
+    return segment;
+  }
+
+  /** Returns a view of the segment positioned at the record of a sample, which may be unused. */
+  ByteBuffer getRecord(int sampleIdx) {
+    ByteBuffer record = segments.get(sampleIdx / segmentSamples).duplicate();
+    record.order(ByteOrder.nativeOrder());
+    record.position((sampleIdx % segmentSamples) * recordBytes);
+    return record;
+  }
+
+  // Makes room for one more sample.
+  private void reserve() throws IOException {
+    if (size == segments.size() * segmentSamples) {
+      segments.add(allocateSegment(segments.size(), segmentSamples * recordBytes));
+    }
+    if (size == classIndices.length) {
+      classIndices = Arrays.copyOf(classIndices, classIndices.length * 2);
+    }
+  }
+
+  private void checkIndex(int sampleIdx) {
+    if (sampleIdx < 0 || sampleIdx >= size) {
+      throw new IndexOutOfBoundsException(
+          String.format("Sample %d out of %d", sampleIdx, size));
+    }
+  }
+}
@@ -0,0 +1,277 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link SampleArena} whose segments are memory-mapped from a file, so that the samples
+ * survive restarts without their bottlenecks being recomputed or loaded onto the heap.
+ *
+ * <p>The file is append-only. It starts with a header holding the bottleneck shape, a hash of
+ * the base model, the class table and the number of samples, followed by fixed-size records: a
+ * bottleneck, then the class index of the sample. A record is written before the sample count,
+ * so a sample interrupted by a crash is simply missing.
+ *
+ * <p>When the file was written for another base model, bottleneck shape or class table, or a record
+ * is damaged, its samples cannot be used, and it is started over.
+ *
+ * <p>Not thread-safe: callers synchronize access.
+ */
+final class SampleStore extends SampleArena implements Closeable {
+  private static final int MAGIC = 0x544c5353; // "TLSS"
+  private static final int VERSION = 1;
+
+  private static final int FLOAT_BYTES = 4;
+  private static final int INT_BYTES = 4;
+  private static final int HASH_BYTES = 32;
+
+  // Headers are padded to this size, so that records start page-aligned.
+  private static final int HEADER_ALIGNMENT = 4096;
+
+  // Fixed header fields. The bottleneck shape, model hash and class table follow.
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int HEADER_BYTES_OFFSET = 8;
+  private static final int RECORD_BYTES_OFFSET = 12;
+  private static final int NUM_SAMPLES_OFFSET = 16;
+  private static final int FIXED_HEADER_BYTES = 24;
+
+  // Records per segment, which is mapped as a whole.
+  private static final int SEGMENT_SAMPLES = 16;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final int bottleneckBytes;
+  private final int recordBytes;
+  private final int headerBytes;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final MappedByteBuffer header;
+  private final List<MappedByteBuffer> mappedSegments = new ArrayList<>();
+
+  /**
+   * Opens a store, creating it if needed, and restores the samples it holds.
+   *
+   * @param path the store file.
+   * @param bottleneckShape shape of the bottlenecks, in floats.
+   * @param baseModel data of the model that generated the bottlenecks.
+   * @param classes class names, by index.
+   * @throws IOException if the file cannot be read or written.
+   */
+  SampleStore(File path, int[] bottleneckShape, ByteBuffer baseModel, String[] classes)
+      throws IOException {
+    this(path, bottleneckShape, hash(baseModel), classes, numFloatBytes(bottleneckShape));
+  }
+
+  private SampleStore(
+      File path, int[] bottleneckShape, byte[] modelHash, String[] classes, int bottleneckBytes)
+      throws IOException {
+    super(bottleneckBytes, bottleneckBytes + INT_BYTES, SEGMENT_SAMPLES);
+    this.bottleneckBytes = bottleneckBytes;
+    this.recordBytes = bottleneckBytes + INT_BYTES;
+
+    ByteBuffer expectedHeader = createHeader(bottleneckShape, modelHash, classes);
+    headerBytes = expectedHeader.capacity();
+
+    file = new RandomAccessFile(path, "rw");
+    try {
+      channel = file.getChannel();
+      boolean compatible = channel.size() >= headerBytes && matches(expectedHeader);
+      // Checked before anything is mapped, as mappings must not outlive the file contents.
+      int[] classIndices = compatible ? readClassIndices(classes.length) : null;
+      if (classIndices == null) {
+        channel.truncate(0);
+        channel.write(expectedHeader, 0);
+        classIndices = new int[0];
+      }
+      header = channel.map(MapMode.READ_WRITE, 0, headerBytes);
+      header.order(ByteOrder.nativeOrder());
+
+      for (int classIdx : classIndices) {
+        restore(classIdx);
+      }
+      header.putLong(NUM_SAMPLES_OFFSET, size());
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  @Override
+  int add(ByteBuffer bottleneck, int classIdx) throws IOException {
+    int sampleIdx = super.add(bottleneck, classIdx);
+    getRecord(sampleIdx).putInt(recordClassOffset(sampleIdx), classIdx);
+    header.putLong(NUM_SAMPLES_OFFSET, size());
+    return sampleIdx;
+  }
+
+  /** Removes all samples, from the file as well. */
+  @Override
+  void clear() {
+    super.clear();
+    header.putLong(NUM_SAMPLES_OFFSET, 0);
+  }
+
+  @Override
+  ByteBuffer allocateSegment(int segmentIdx, int segmentBytes) throws IOException {
+    long offset = headerBytes + (long) segmentIdx * segmentBytes;
+    // Mapping past the end of the file grows it.
+    MappedByteBuffer segment = channel.map(MapMode.READ_WRITE, offset, segmentBytes);
+    segment.order(ByteOrder.nativeOrder());
+    mappedSegments.add(segment);
+    return segment;
+  }
+
+  /** Writes the samples to the storage device. */
+  void flush() {
+    for (MappedByteBuffer segment : mappedSegments) {
+      segment.force();
+    }
+    header.force();
+  }
+
+  /**
+   * Flushes and closes the file. The mappings themselves are released once garbage collected, so
+   * views of the bottlenecks must not be used anymore.
+   */
+  @Override
+  public void close() throws IOException {
+    flush();
+    file.close();
+  }
+
+  // Offset of the class index of a sample within its segment.
+  private int recordClassOffset(int sampleIdx) {
+    return (sampleIdx % SEGMENT_SAMPLES) * recordBytes + bottleneckBytes;
+  }
+
+  // Whether the file starts with the expected header, apart from the sample count.
+  private boolean matches(ByteBuffer expectedHeader) throws IOException {
+    ByteBuffer actualHeader = ByteBuffer.allocate(headerBytes).order(ByteOrder.nativeOrder());
+    readFully(actualHeader, 0);
+    actualHeader.putLong(NUM_SAMPLES_OFFSET, 0);
+    return Arrays.equals(actualHeader.array(), expectedHeader.array());
+  }
+
+  /**
+   * Reads the class indices of the samples in a file with a matching header.
+   *
+   * @return the class indices, or null if the sample count or one of them is out of range.
+   */
+  private int[] readClassIndices(int numClasses) throws IOException {
+    ByteBuffer value = ByteBuffer.allocate(Long.SIZE / Byte.SIZE).order(ByteOrder.nativeOrder());
+    readFully(value, NUM_SAMPLES_OFFSET);
+    long numSamples = value.getLong(0);
+    long maxSamples = (channel.size() - headerBytes) / recordBytes;
+    // Damaged: the file holds whole segments, so the records past the count are zero padding
+    // that must not be restored as samples.
+    if (numSamples < 0 || numSamples > Math.min(maxSamples, Integer.MAX_VALUE)) {
+      return null;
+    }
+
+    int[] classIndices = new int[(int) numSamples];
+    for (int sampleIdx = 0; sampleIdx < classIndices.length; sampleIdx++) {
+      // Segments are back-to-back in the file, and so are the records.
+      value.clear().limit(INT_BYTES);
+      readFully(value, headerBytes + (long) sampleIdx * recordBytes + bottleneckBytes);
+      int classIdx = value.getInt(0);
+      if (classIdx < 0 || classIdx >= numClasses) {
+        return null;
+      }
+      classIndices[sampleIdx] = classIdx;
+    }
+    return classIndices;
+  }
+
+  private void readFully(ByteBuffer dst, long position) throws IOException {
+    while (dst.hasRemaining()) {
+      int numBytes = channel.read(dst, position);
+      if (numBytes < 0) {
+        throw new EOFException("Sample store ends unexpectedly");
+      }
+      position += numBytes;
+    }
+  }
+
+  private static ByteBuffer createHeader(
+      int[] bottleneckShape, byte[] modelHash, String[] classes) {
+    int size =
+        FIXED_HEADER_BYTES + INT_BYTES * (1 + bottleneckShape.length) + HASH_BYTES + INT_BYTES;
+    byte[][] classNames = new byte[classes.length][];
+    for (int classIdx = 0; classIdx < classes.length; classIdx++) {
+      classNames[classIdx] = classes[classIdx].getBytes(UTF_8);
+      size += INT_BYTES + classNames[classIdx].length;
+    }
+    int headerBytes = (size + HEADER_ALIGNMENT - 1) / HEADER_ALIGNMENT * HEADER_ALIGNMENT;
+
+    ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.nativeOrder());
+    header.putInt(MAGIC_OFFSET, MAGIC);
+    header.putInt(VERSION_OFFSET, VERSION);
+    header.putInt(HEADER_BYTES_OFFSET, headerBytes);
+    header.putInt(RECORD_BYTES_OFFSET, numFloatBytes(bottleneckShape) + INT_BYTES);
+    header.putLong(NUM_SAMPLES_OFFSET, 0);
+    header.position(FIXED_HEADER_BYTES);
+    header.putInt(bottleneckShape.length);
+    for (int dim : bottleneckShape) {
+      header.putInt(dim);
+    }
+    header.put(modelHash);
+    header.putInt(classes.length);
+    for (byte[] className : classNames) {
+      header.putInt(className.length);
+      header.put(className);
+    }
+    header.rewind();
+    return header;
+  }
+
+  private static int numFloatBytes(int[] shape) {
+    int result = FLOAT_BYTES;
+    for (int size : shape) {
+      result *= size;
+    }
+    return result;
+  }
+
+  private static byte[] hash(ByteBuffer model) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      ByteBuffer data = model.duplicate();
+      data.rewind();
+      digest.update(data);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -16,6 +16,8 @@ limitations under the License.
 package org.tensorflow.lite.examples.transfer.api;
 
 import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -24,11 +26,12 @@ import java.nio.channels.ScatteringByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -37,6 +40,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.tensorflow.lite.examples.transfer.api.ParameterSnapshots.Snapshot;
 
 /**
  * Represents a "partially" trainable model that is based on some other,
@@ -65,13 +69,14 @@ public final class TransferLearningModel implements Closeable {
     }
   }
 
-  private static class TrainingSample {
-    ByteBuffer bottleneck;
-    String className;
+  // Inputs of a training step.
+  private static class TrainingBatch {
+    final ByteBuffer bottlenecks;
+    final ByteBuffer classes;
 
-    TrainingSample(ByteBuffer bottleneck, String className) {
-      this.bottleneck = bottleneck;
-      this.className = className;
+    TrainingBatch(ByteBuffer bottlenecks, ByteBuffer classes) {
+      this.bottlenecks = bottlenecks;
+      this.classes = classes;
     }
   }
 
@@ -85,10 +90,14 @@ public final class TransferLearningModel implements Closeable {
   private static final int FLOAT_BYTES = 4;
 
   // Setting this to a higher value allows to calculate bottlenecks for more samples while
-  // adding them to the bottleneck collection is blocked by an active training thread.
+  // adding them to the bottleneck collection is blocked by an active training thread. Each
+  // worker thread gets its own bottleneck interpreter.
   private static final int NUM_THREADS =
       Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
 
+  // How many predictions can run at once, each on its own bottleneck and inference interpreters.
+  private static final int NUM_INFERENCE_THREADS = 2;
+
   private final int[] bottleneckShape;
 
   private final Map<String, Integer> classes;
@@ -100,79 +109,160 @@ public final class TransferLearningModel implements Closeable {
   private final LiteInferenceModel inferenceModel;
   private final LiteOptimizerModel optimizerModel;
 
-  private final List<TrainingSample> trainingSamples = new ArrayList<>();
+  // Bottlenecks and class indices of the samples added so far.
+  private final SampleArena trainingSamples;
+
+  // Where the samples are persisted, if they are. This is also [trainingSamples].
+  private final SampleStore sampleStore;
 
-  private ByteBuffer[] modelParameters;
+  // Order in which the samples are used in the current epoch. Only used by the batch thread.
+  private int[] sampleOrder = new int[0];
+  private final Random random = new Random();
 
-  // Where to store the optimizer outputs.
-  private ByteBuffer[] nextModelParameters;
+  // Where each worker thread stores the bottleneck of a sample before adding it.
+  private final ThreadLocal<ByteBuffer> sampleBottleneck =
+      new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+          return allocateBuffer(numBottleneckFeatures() * FLOAT_BYTES);
+        }
+      };
+
+  // Published versions of the trainable parameters. Predictions use the latest one, without
+  // waiting for training.
+  private final ParameterSnapshots modelParameters;
 
   private ByteBuffer[] optimizerState;
 
   // Where to store the updated optimizer state.
   private ByteBuffer[] nextOptimizerState;
 
-  // Where to store training inputs.
-  private final ByteBuffer trainingBatchBottlenecks;
-  private final ByteBuffer trainingBatchClasses;
+  // Where to store training inputs. While a step trains on one batch, the next one is prepared
+  // in the other.
+  private final TrainingBatch[] trainingBatches = new TrainingBatch[2];
 
-  // A zero-filled buffer of the same size as `trainingBatchClasses`.
+  // A zero-filled buffer of the same size as batch classes.
   private final ByteBuffer zeroBatchClasses;
 
   // Where to store calculated gradients.
   private final ByteBuffer[] modelGradients;
 
-  // Where to store bottlenecks produced during inference.
-  private ByteBuffer inferenceBottleneck;
+  // Where each inference thread stores images, bottlenecks and confidences.
+  private final ThreadLocal<ByteBuffer> inferenceImage = new ThreadLocal<>();
+  private final ThreadLocal<ByteBuffer> inferenceBottleneck =
+      new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+          return allocateBuffer(numBottleneckFeatures() * FLOAT_BYTES);
+        }
+      };
+  private final ThreadLocal<float[]> inferenceConfidences =
+      new ThreadLocal<float[]>() {
+        @Override
+        protected float[] initialValue() {
+          return new float[classes.size()];
+        }
+      };
 
   // Used to spawn background threads.
   private final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
 
+  // Prepares training batches ahead of the training thread. Separate from [executor], which a
+  // training thread could otherwise wait on while occupying its last thread.
+  private final ExecutorService batchExecutor = Executors.newSingleThreadExecutor();
+
   // This lock guarantees that only one thread is performing training at any point in time.
   // It also protects the sample collection from being modified while in use by a training
   // thread.
-  private final Lock trainingLock = new ReentrantLock();
+  private final ReentrantLock trainingLock = new ReentrantLock();
 
-  // This lock guards access to trainable parameters.
-  private final ReadWriteLock parameterLock = new ReentrantReadWriteLock();
+  // This lock serializes the updates of trainable parameters: training steps and loading.
+  // Readers of the parameters do not take it.
+  private final Lock parameterUpdateLock = new ReentrantLock();
 
-  // This lock allows [close] method to assure that no threads are performing inference.
-  private final Lock inferenceLock = new ReentrantLock();
+  // This lock allows [close] method to assure that no threads are performing inference. Any
+  // number of predictions hold it at once.
+  private final ReadWriteLock inferenceLock = new ReentrantReadWriteLock();
 
   // Set to true when [close] has been called.
   private volatile boolean isTerminating = false;
 
   public TransferLearningModel(ModelLoader modelLoader, Collection<String> classes) {
+    this(modelLoader, classes, null);
+  }
+
+  /**
+   * Creates a model whose training samples are persisted in a file, so that they do not have to
+   * be added again after a restart.
+   *
+   * <p>The samples already in the file are available for training right away, provided they were
+   * added with the same base model and classes; otherwise the file is started over. The file is
+   * memory-mapped rather than loaded, so reopening it takes little time and memory.
+   *
+   * @param sampleStoreFile where to persist the samples. If null, they are only kept in memory.
+   */
+  public TransferLearningModel(
+      ModelLoader modelLoader, Collection<String> classes, File sampleStoreFile) {
     classesByIdx = classes.toArray(new String[0]);
     this.classes = new TreeMap<>();
     for (int classIdx = 0; classIdx < classes.size(); classIdx++) {
       this.classes.put(classesByIdx[classIdx], classIdx);
     }
 
+    // Models created so far, closed again if construction fails.
+    List<Closeable> openedModels = new ArrayList<>();
+    LiteModelWrapper baseModel;
     try {
-      initializeModel = new LiteInitializeModel(modelLoader.loadInitializeModel());
-      bottleneckModel = new LiteBottleneckModel(modelLoader.loadBaseModel());
-      trainHeadModel = new LiteTrainHeadModel(modelLoader.loadTrainModel());
-      inferenceModel = new LiteInferenceModel(modelLoader.loadInferenceModel(), classes.size());
-      optimizerModel = new LiteOptimizerModel(modelLoader.loadOptimizerModel());
+      initializeModel =
+          opened(openedModels, new LiteInitializeModel(modelLoader.loadInitializeModel()));
+      baseModel = modelLoader.loadBaseModel();
+      // One bottleneck interpreter per worker thread, so that samples are added in parallel, and
+      // one per inference thread.
+      bottleneckModel =
+          opened(
+              openedModels,
+              new LiteBottleneckModel(baseModel, NUM_THREADS + NUM_INFERENCE_THREADS));
+      trainHeadModel =
+          opened(openedModels, new LiteTrainHeadModel(modelLoader.loadTrainModel()));
+      inferenceModel =
+          opened(
+              openedModels,
+              new LiteInferenceModel(
+                  modelLoader.loadInferenceModel(), classes.size(), NUM_INFERENCE_THREADS));
+      optimizerModel =
+          opened(openedModels, new LiteOptimizerModel(modelLoader.loadOptimizerModel()));
     } catch (IOException e) {
+      closeAll(openedModels);
       throw new RuntimeException("Couldn't read underlying models for TransferLearningModel", e);
+    } catch (RuntimeException e) {
+      closeAll(openedModels);
+      throw e;
     }
 
     this.bottleneckShape = bottleneckModel.getBottleneckShape();
+    if (sampleStoreFile != null) {
+      try {
+        sampleStore =
+            new SampleStore(sampleStoreFile, bottleneckShape, baseModel.getModel(), classesByIdx);
+      } catch (IOException | RuntimeException e) {
+        closeAll(openedModels);
+        throw new RuntimeException("Couldn't open the training sample store", e);
+      }
+      trainingSamples = sampleStore;
+    } else {
+      sampleStore = null;
+      trainingSamples = new SampleArena(numBottleneckFeatures() * FLOAT_BYTES);
+    }
     int[] modelParameterSizes = trainHeadModel.getParameterSizes();
 
-    modelParameters = new ByteBuffer[modelParameterSizes.length];
+    modelParameters = new ParameterSnapshots(modelParameterSizes);
     modelGradients = new ByteBuffer[modelParameterSizes.length];
-    nextModelParameters = new ByteBuffer[modelParameterSizes.length];
 
     for (int parameterIndex = 0; parameterIndex < modelParameterSizes.length; parameterIndex++) {
       int bufferSize = modelParameterSizes[parameterIndex] * FLOAT_BYTES;
-      modelParameters[parameterIndex] = allocateBuffer(bufferSize);
       modelGradients[parameterIndex] = allocateBuffer(bufferSize);
-      nextModelParameters[parameterIndex] = allocateBuffer(bufferSize);
     }
-    initializeModel.initializeParameters(modelParameters);
+    initializeModel.initializeParameters(modelParameters.latest().getParameters());
 
     int[] optimizerStateElementSizes = optimizerModel.stateElementSizes();
     optimizerState = new ByteBuffer[optimizerStateElementSizes.length];
@@ -185,18 +275,18 @@ public final class TransferLearningModel implements Closeable {
       fillBufferWithZeros(optimizerState[elemIdx]);
     }
 
-    trainingBatchBottlenecks =
-        allocateBuffer(getTrainBatchSize() * numBottleneckFeatures() * FLOAT_BYTES);
-
     int batchClassesNumElements = getTrainBatchSize() * classes.size();
-    trainingBatchClasses = allocateBuffer(batchClassesNumElements * FLOAT_BYTES);
+    for (int batchIdx = 0; batchIdx < trainingBatches.length; batchIdx++) {
+      trainingBatches[batchIdx] =
+          new TrainingBatch(
+              allocateBuffer(getTrainBatchSize() * numBottleneckFeatures() * FLOAT_BYTES),
+              allocateBuffer(batchClassesNumElements * FLOAT_BYTES));
+    }
     zeroBatchClasses = allocateBuffer(batchClassesNumElements * FLOAT_BYTES);
     for (int idx = 0; idx < batchClassesNumElements; idx++) {
       zeroBatchClasses.putFloat(0);
     }
     zeroBatchClasses.rewind();
-
-    inferenceBottleneck = allocateBuffer(numBottleneckFeatures() * FLOAT_BYTES);
   }
 
   /**
@@ -226,11 +316,12 @@ public final class TransferLearningModel implements Closeable {
       if (Thread.interrupted()) {
         return null;
       }
-      ByteBuffer bottleneck = bottleneckModel.generateBottleneck(imageBuffer, null);
+      ByteBuffer bottleneck =
+          bottleneckModel.generateBottleneck(imageBuffer, sampleBottleneck.get());
 
       trainingLock.lockInterruptibly();
       try {
-        trainingSamples.add(new TrainingSample(bottleneck, className));
+        trainingSamples.add(bottleneck, classes.get(className));
       } finally {
         trainingLock.unlock();
       }
@@ -259,108 +350,155 @@ public final class TransferLearningModel implements Closeable {
     return executor.submit(
         () -> {
           trainingLock.lock();
+          Future<?> nextBatch = null;
           try {
-            epochLoop:
-            for (int epoch = 0; epoch < numEpochs; epoch++) {
-              float totalLoss = 0;
-              int numBatchesProcessed = 0;
-
-              for (List<TrainingSample> batch : trainingBatches()) {
-                if (Thread.interrupted()) {
-                  break epochLoop;
-                }
-
-                trainingBatchClasses.put(zeroBatchClasses);
-                trainingBatchClasses.rewind();
-                zeroBatchClasses.rewind();
-
-                for (int sampleIdx = 0; sampleIdx < batch.size(); sampleIdx++) {
-                  TrainingSample sample = batch.get(sampleIdx);
-                  trainingBatchBottlenecks.put(sample.bottleneck);
-                  sample.bottleneck.rewind();
-
-                  // Fill trainingBatchClasses with one-hot.
-                  int position =
-                      (sampleIdx * classes.size() + classes.get(sample.className)) * FLOAT_BYTES;
-                  trainingBatchClasses.putFloat(position, 1);
-                }
-                trainingBatchBottlenecks.rewind();
-
+            // Samples cannot be added while the training lock is held.
+            int numSamples = trainingSamples.size();
+            int batchSize = getTrainBatchSize();
+            int numBatchesPerEpoch = (numSamples + batchSize - 1) / batchSize;
+            int numSteps = numEpochs * numBatchesPerEpoch;
+
+            float totalLoss = 0;
+            if (numSteps > 0) {
+              nextBatch = prepareBatch(0, numBatchesPerEpoch, numSamples);
+            }
+            for (int step = 0; step < numSteps; step++) {
+              if (Thread.interrupted()) {
+                break;
+              }
+              try {
+                nextBatch.get();
+              } catch (InterruptedException e) {
+                break;
+              } catch (ExecutionException e) {
+                throw new RuntimeException("Couldn't prepare a training batch", e.getCause());
+              }
+              TrainingBatch batch = trainingBatches[step % 2];
+              nextBatch =
+                  step + 1 < numSteps
+                      ? prepareBatch(step + 1, numBatchesPerEpoch, numSamples)
+                      : null;
+
+              parameterUpdateLock.lock();
+              try {
+                ByteBuffer[] parameters = modelParameters.latest().getParameters();
                 float loss =
                     trainHeadModel.calculateGradients(
-                        trainingBatchBottlenecks,
-                        trainingBatchClasses,
-                        modelParameters,
-                        modelGradients);
+                        batch.bottlenecks, batch.classes, parameters, modelGradients);
                 totalLoss += loss;
-                numBatchesProcessed++;
 
+                // Predictions may still be using the current parameters, so the step writes a
+                // new version.
+                Snapshot nextParameters = modelParameters.prepare();
                 optimizerModel.performStep(
-                    modelParameters,
+                    parameters,
                     modelGradients,
                     optimizerState,
-                    nextModelParameters,
+                    nextParameters.getParameters(),
                     nextOptimizerState);
-
-                ByteBuffer[] swapBufferArray;
-
-                // Swap optimizer state with its next version.
-                swapBufferArray = optimizerState;
-                optimizerState = nextOptimizerState;
-                nextOptimizerState = swapBufferArray;
-
-                // Swap model parameters with their next versions.
-                parameterLock.writeLock().lock();
-                try {
-                  swapBufferArray = modelParameters;
-                  modelParameters = nextModelParameters;
-                  nextModelParameters = swapBufferArray;
-                } finally {
-                  parameterLock.writeLock().unlock();
-                }
+                modelParameters.publish(nextParameters);
+              } finally {
+                parameterUpdateLock.unlock();
               }
 
-              float avgLoss = totalLoss / numBatchesProcessed;
-              if (lossConsumer != null) {
-                lossConsumer.onLoss(epoch, avgLoss);
+              // Swap optimizer state with its next version.
+              ByteBuffer[] swapBufferArray = optimizerState;
+              optimizerState = nextOptimizerState;
+              nextOptimizerState = swapBufferArray;
+
+              if ((step + 1) % numBatchesPerEpoch == 0) {
+                float avgLoss = totalLoss / numBatchesPerEpoch;
+                totalLoss = 0;
+                if (lossConsumer != null) {
+                  lossConsumer.onLoss(step / numBatchesPerEpoch, avgLoss);
+                }
               }
             }
 
             return null;
           } finally {
+            // The batch being prepared reads the samples, which must not change meanwhile.
+            if (nextBatch != null) {
+              awaitUninterruptibly(nextBatch);
+            }
             trainingLock.unlock();
           }
         });
   }
 
+  /**
+   * Starts preparing the inputs of a training step on the batch thread, into the batch buffers
+   * the step uses.
+   *
+   * <p>The samples are shuffled at the start of each epoch. To keep batch size consistent, the
+   * last batch of an epoch may include some elements from the next-to-last batch.
+   *
+   * @param step index of the step, counted from the start of training.
+   * @return future that is resolved when the batch is ready.
+   */
+  private Future<?> prepareBatch(int step, int numBatchesPerEpoch, int numSamples) {
+    TrainingBatch batch = trainingBatches[step % 2];
+    return batchExecutor.submit(
+        () -> {
+          int batchIdx = step % numBatchesPerEpoch;
+          if (batchIdx == 0) {
+            shuffleSamples(numSamples);
+          }
+          int batchSize = getTrainBatchSize();
+          int batchStart = Math.min(batchIdx * batchSize, numSamples - batchSize);
+
+          batch.classes.put(zeroBatchClasses);
+          batch.classes.rewind();
+          zeroBatchClasses.rewind();
+
+          trainingSamples.gatherBottlenecks(sampleOrder, batchStart, batchSize, batch.bottlenecks);
+          batch.bottlenecks.rewind();
+
+          // Fill batch classes with one-hot.
+          for (int sampleIdx = 0; sampleIdx < batchSize; sampleIdx++) {
+            int classIdx = trainingSamples.getClassIndex(sampleOrder[batchStart + sampleIdx]);
+            int position = (sampleIdx * classes.size() + classIdx) * FLOAT_BYTES;
+            batch.classes.putFloat(position, 1);
+          }
+        });
+  }
+
   /**
    * Runs model inference on a given image.
+   *
+   * <p>Several threads can run inference at once, and training does not hold them up: they use
+   * the latest parameters published by a training step.
+   *
    * @param image image RGB data.
    * @return predictions sorted by confidence decreasing. Can be null if model is terminating.
    */
   public Prediction[] predict(float[] image) {
     checkNotTerminating();
-    inferenceLock.lock();
+    inferenceLock.readLock().lock();
 
     try {
       if (isTerminating) {
         return null;
       }
 
-      ByteBuffer imageBuffer = allocateBuffer(image.length * FLOAT_BYTES);
-      for (float f : image) {
-        imageBuffer.putFloat(f);
+      ByteBuffer imageBuffer = inferenceImage.get();
+      if (imageBuffer == null || imageBuffer.capacity() != image.length * FLOAT_BYTES) {
+        imageBuffer = allocateBuffer(image.length * FLOAT_BYTES);
+        inferenceImage.set(imageBuffer);
       }
-      imageBuffer.rewind();
+      imageBuffer.asFloatBuffer().put(image);
 
-      ByteBuffer bottleneck = bottleneckModel.generateBottleneck(imageBuffer, inferenceBottleneck);
+      ByteBuffer bottleneck =
+          bottleneckModel.generateBottleneck(imageBuffer, inferenceBottleneck.get());
 
       float[] confidences;
-      parameterLock.readLock().lock();
+      Snapshot parameters = modelParameters.acquire();
       try {
-        confidences = inferenceModel.runInference(bottleneck, modelParameters);
+        confidences =
+            inferenceModel.runInference(
+                bottleneck, parameters.getParameters(), inferenceConfidences.get());
       } finally {
-        parameterLock.readLock().unlock();
+        modelParameters.release(parameters);
       }
 
       Prediction[] predictions = new Prediction[classes.size()];
@@ -371,7 +509,7 @@ public final class TransferLearningModel implements Closeable {
       Arrays.sort(predictions, (a, b) -> -Float.compare(a.confidence, b.confidence));
       return predictions;
     } finally {
-      inferenceLock.unlock();
+      inferenceLock.readLock().unlock();
     }
   }
 
@@ -385,14 +523,16 @@ public final class TransferLearningModel implements Closeable {
    * @throws IOException if an I/O error occurs.
    */
   public void saveParameters(GatheringByteChannel outputChannel) throws IOException {
-    parameterLock.readLock().lock();
+    Snapshot parameters = modelParameters.acquire();
     try {
-      outputChannel.write(modelParameters);
-      for (ByteBuffer buffer : modelParameters) {
-        buffer.rewind();
+      // The buffers are shared with other readers, so their positions are left alone.
+      ByteBuffer[] buffers = new ByteBuffer[parameters.getParameters().length];
+      for (int parameterIdx = 0; parameterIdx < buffers.length; parameterIdx++) {
+        buffers[parameterIdx] = parameters.getParameters()[parameterIdx].duplicate();
       }
+      outputChannel.write(buffers);
     } finally {
-      parameterLock.readLock().unlock();
+      modelParameters.release(parameters);
     }
   }
 
@@ -403,17 +543,32 @@ public final class TransferLearningModel implements Closeable {
    * {@link #saveParameters(GatheringByteChannel)} for the same underlying model.
    *
    * @param inputChannel where to read the parameters from.
+   * @throws EOFException if the channel ends before all parameters are read, in which case the
+   *     current values are kept.
    * @throws IOException if an I/O error occurs.
    */
   public void loadParameters(ScatteringByteChannel inputChannel) throws IOException {
-    parameterLock.writeLock().lock();
+    parameterUpdateLock.lock();
     try {
-      inputChannel.read(modelParameters);
-      for (ByteBuffer buffer : modelParameters) {
-        buffer.rewind();
+      Snapshot parameters = modelParameters.prepare();
+      ByteBuffer[] buffers = parameters.getParameters();
+      // The snapshot may have been left partially filled by a failed load.
+      long remaining = 0;
+      for (ByteBuffer buffer : buffers) {
+        buffer.clear();
+        remaining += buffer.remaining();
+      }
+      // A channel may read fewer bytes than requested.
+      while (remaining > 0) {
+        long read = inputChannel.read(buffers);
+        if (read < 0) {
+          throw new EOFException("Parameters end before all values were read");
+        }
+        remaining -= read;
       }
+      modelParameters.publish(parameters);
     } finally {
-      parameterLock.writeLock().unlock();
+      parameterUpdateLock.unlock();
     }
   }
 
@@ -423,40 +578,26 @@ public final class TransferLearningModel implements Closeable {
   }
 
   /**
-   * Constructs an iterator that iterates over training sample batches.
-   * @return iterator over batches.
+   * Shuffles the order in which samples are used for training.
+   * @param numSamples number of samples to put in [sampleOrder].
    */
-  private Iterable<List<TrainingSample>> trainingBatches() {
-    if (!trainingLock.tryLock()) {
-      throw new RuntimeException("Thread calling trainingBatches() must hold the training lock");
+  private void shuffleSamples(int numSamples) {
+    if (!trainingLock.isLocked()) {
+      throw new RuntimeException("shuffleSamples() must be called while training holds the lock");
     }
-    trainingLock.unlock();
-
-    Collections.shuffle(trainingSamples);
-    return () ->
-        new Iterator<List<TrainingSample>>() {
-          private int nextIndex = 0;
-
-          @Override
-          public boolean hasNext() {
-            return nextIndex < trainingSamples.size();
-          }
 
-          @Override
-          public List<TrainingSample> next() {
-            int fromIndex = nextIndex;
-            int toIndex = nextIndex + getTrainBatchSize();
-            nextIndex = toIndex;
-            if (toIndex >= trainingSamples.size()) {
-              // To keep batch size consistent, last batch may include some elements from the
-              // next-to-last batch.
-              return trainingSamples.subList(
-                  trainingSamples.size() - getTrainBatchSize(), trainingSamples.size());
-            } else {
-              return trainingSamples.subList(fromIndex, toIndex);
-            }
-          }
-        };
+    if (sampleOrder.length < numSamples) {
+      sampleOrder = new int[Math.max(numSamples, sampleOrder.length * 2)];
+    }
+    for (int idx = 0; idx < numSamples; idx++) {
+      sampleOrder[idx] = idx;
+    }
+    for (int idx = numSamples - 1; idx > 0; idx--) {
+      int swapIdx = random.nextInt(idx + 1);
+      int swap = sampleOrder[idx];
+      sampleOrder[idx] = sampleOrder[swapIdx];
+      sampleOrder[swapIdx] = swap;
+    }
   }
 
   private void checkNotTerminating() {
@@ -475,8 +616,8 @@ public final class TransferLearningModel implements Closeable {
   }
 
   /**
-   * Terminates all model operation safely. Will block until current inference request is finished
-   * (if any).
+   * Terminates all model operation safely. Will block until current inference requests are
+   * finished (if any).
    *
    * <p>Calling any other method on this object after [close] is not allowed.
    */
@@ -486,23 +627,85 @@ public final class TransferLearningModel implements Closeable {
     executor.shutdownNow();
 
     // Make sure that all threads doing inference are finished.
-    inferenceLock.lock();
+    inferenceLock.writeLock().lock();
 
     try {
+      // A training thread waits for the batch it submitted before it terminates, so the batch
+      // thread is only stopped after the training threads. Any batch still queued then is
+      // cancelled, so that nothing waits for it.
       boolean ok = executor.awaitTermination(5, TimeUnit.SECONDS);
+      shutDownBatchExecutor();
+      ok = ok && batchExecutor.awaitTermination(5, TimeUnit.SECONDS);
       if (!ok) {
         throw new RuntimeException("Model thread pool failed to terminate");
       }
-
-      initializeModel.close();
-      bottleneckModel.close();
-      trainHeadModel.close();
-      inferenceModel.close();
-      optimizerModel.close();
     } catch (InterruptedException e) {
-      // no-op
+      shutDownBatchExecutor();
+      Thread.currentThread().interrupt();
     } finally {
-      inferenceLock.unlock();
+      try {
+        // The interpreters are released even if the threads could not be waited for.
+        closeModels();
+      } finally {
+        inferenceLock.writeLock().unlock();
+      }
+    }
+  }
+
+  private void closeModels() {
+    initializeModel.close();
+    bottleneckModel.close();
+    trainHeadModel.close();
+    inferenceModel.close();
+    optimizerModel.close();
+    if (sampleStore != null) {
+      try {
+        sampleStore.close();
+      } catch (IOException e) {
+        throw new RuntimeException("Couldn't close the training sample store", e);
+      }
+    }
+  }
+
+  private static <T extends Closeable> T opened(List<Closeable> openedModels, T model) {
+    openedModels.add(model);
+    return model;
+  }
+
+  private static void closeAll(List<Closeable> models) {
+    for (Closeable model : models) {
+      try {
+        model.close();
+      } catch (IOException e) {
+        // Construction is failing already, with the more relevant exception.
+      }
+    }
+  }
+
+  // Stops the batch thread, cancelling the batches still queued.
+  private void shutDownBatchExecutor() {
+    for (Runnable task : batchExecutor.shutdownNow()) {
+      if (task instanceof Future) {
+        ((Future<?>) task).cancel(false);
+      }
+    }
+  }
+
+  // Waits for a task to finish, but keeps the interrupted status of the calling thread.
+  private static void awaitUninterruptibly(Future<?> future) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        future.get();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      } catch (ExecutionException | CancellationException e) {
+        break;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
     }
   }
 
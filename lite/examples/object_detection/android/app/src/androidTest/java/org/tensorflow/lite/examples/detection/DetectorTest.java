@@ -34,6 +34,7 @@ import androidx.test.platform.app.InstrumentationRegistry;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 import org.junit.Before;
@@ -107,6 +108,36 @@ public class DetectorTest {
     }
   }
 
+  @Test
+  public void batchedResultsShouldMatchSingleImageResults() throws Exception {
+    Canvas canvas = new Canvas(croppedBitmap);
+    canvas.drawBitmap(loadImage("table.jpg"), frameToCropTransform, null);
+    final Bitmap flippedBitmap =
+        Bitmap.createBitmap(croppedBitmap.getWidth(), croppedBitmap.getHeight(), Config.ARGB_8888);
+    Matrix flip = new Matrix();
+    flip.postScale(-1, 1, croppedBitmap.getWidth() / 2f, 0);
+    new Canvas(flippedBitmap).drawBitmap(croppedBitmap, flip, null);
+
+    final List<List<Recognition>> batchResults =
+        detector.recognizeImages(Arrays.asList(croppedBitmap, flippedBitmap, croppedBitmap));
+
+    assertThat(batchResults).hasSize(3);
+    assertSameRecognitions(batchResults.get(0), detector.recognizeImage(croppedBitmap));
+    assertSameRecognitions(batchResults.get(1), detector.recognizeImage(flippedBitmap));
+    assertSameRecognitions(batchResults.get(2), detector.recognizeImage(croppedBitmap));
+  }
+
+  private static void assertSameRecognitions(List<Recognition> actual, List<Recognition> expected) {
+    assertThat(actual).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(actual.get(i).getTitle()).isEqualTo(expected.get(i).getTitle());
+      assertThat(matchConfidence(actual.get(i).getConfidence(), expected.get(i).getConfidence()))
+          .isTrue();
+      assertThat(matchBoundingBoxes(actual.get(i).getLocation(), expected.get(i).getLocation()))
+          .isTrue();
+    }
+  }
+
   // Confidence tolerance: absolute 1%
   private static boolean matchConfidence(float a, float b) {
     return abs(a - b) < 0.01;
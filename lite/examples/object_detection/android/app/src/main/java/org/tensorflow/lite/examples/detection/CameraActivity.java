@@ -21,6 +21,7 @@ import android.app.Fragment;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
@@ -50,9 +51,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
+import java.io.File;
 import java.nio.ByteBuffer;
-import org.tensorflow.lite.examples.detection.env.ImageUtils;
+import org.tensorflow.lite.examples.detection.env.FrameTracer;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvConverter;
+import org.tensorflow.lite.examples.detection.env.YuvSampler;
 
 public abstract class CameraActivity extends AppCompatActivity
     implements OnImageAvailableListener,
@@ -63,19 +67,35 @@ public abstract class CameraActivity extends AppCompatActivity
 
   private static final int PERMISSIONS_REQUEST = 1;
 
+  // High resolution frames held back, enough to cover the detection latency of a preview frame.
+  private static final int NUM_HIGH_RES_FRAMES = 4;
+
   private static final String PERMISSION_CAMERA = Manifest.permission.CAMERA;
   protected int previewWidth = 0;
   protected int previewHeight = 0;
   private boolean debug = false;
   private Handler handler;
   private HandlerThread handlerThread;
+  private volatile Handler postProcessingHandler;
+  private HandlerThread postProcessingThread;
   private boolean useCamera2API;
   private boolean isProcessingFrame = false;
   private byte[][] yuvBytes = new byte[3][];
   private int[] rgbBytes = null;
   private int yRowStride;
+  private int uvRowStride;
+  private int uvPixelStride;
+  // Whether the current frame comes from the legacy camera API, as a single NV21 array.
+  private boolean isNv21;
+  // Capture time of the current frame, 0 with the legacy camera API.
+  private long frameTimestampNs;
+  // Frames of the high resolution stream, when one was asked for and the camera supports it.
+  private HighResFrameCache highResFrames;
+  private volatile Size highResSize;
   private Runnable postInferenceCallback;
   private Runnable imageConverter;
+  private YuvConverter yuvConverter;
+  private FrameTracer frameTracer;
 
   private LinearLayout bottomSheetLayout;
   private LinearLayout gestureLayout;
@@ -91,6 +111,8 @@ public abstract class CameraActivity extends AppCompatActivity
   protected void onCreate(final Bundle savedInstanceState) {
     LOGGER.d("onCreate " + this);
     super.onCreate(null);
+    yuvConverter = new YuvConverter(Runtime.getRuntime().availableProcessors());
+    frameTracer = new FrameTracer(getNumTracedFrames());
     getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
     setContentView(R.layout.tfe_od_activity_camera);
@@ -184,11 +206,50 @@ public abstract class CameraActivity extends AppCompatActivity
     return yuvBytes[0];
   }
 
+  /** Capture time of the current frame, which identifies it in the high resolution stream. */
+  protected long getFrameTimestampNs() {
+    return frameTimestampNs;
+  }
+
+  /** Tracer of the frames going through the pipeline; a no-op unless tracing is enabled. */
+  protected FrameTracer getFrameTracer() {
+    return frameTracer;
+  }
+
+  /** Size of the high resolution stream, or null if frames come from the preview stream only. */
+  protected Size getHighResFrameSize() {
+    return highResSize;
+  }
+
+  /**
+   * Copies {@code region} of the luminance plane of the high resolution frame captured at {@code
+   * timestampNs} into {@code out}, laid out with a row stride of the region width. Returns false if
+   * that frame is not available, in which case the preview frame is all there is.
+   */
+  protected boolean copyHighResLuminance(
+      final long timestampNs, final Rect region, final ByteBuffer out) {
+    return highResSize != null && highResFrames.copyLuminance(timestampNs, region, out);
+  }
+
+  /**
+   * Writes the current frame, resampled to the detector input by {@code sampler}, into {@code out}
+   * without converting the whole frame to ARGB.
+   */
+  protected void sampleFrame(final YuvSampler sampler, final ByteBuffer out) {
+    if (isNv21) {
+      sampler.sampleNv21(yuvBytes[0], out);
+    } else {
+      sampler.samplePlanar(
+          yuvBytes[0], yuvBytes[1], yuvBytes[2], yRowStride, uvRowStride, uvPixelStride, out);
+    }
+  }
+
   /** Callback for android.hardware.Camera API */
   @Override
   public void onPreviewFrame(final byte[] bytes, final Camera camera) {
     if (isProcessingFrame) {
       LOGGER.w("Dropping frame!");
+      frameTracer.onDropped(FrameTracer.Drop.CAMERA_BUSY);
       return;
     }
 
@@ -209,12 +270,14 @@ public abstract class CameraActivity extends AppCompatActivity
     isProcessingFrame = true;
     yuvBytes[0] = bytes;
     yRowStride = previewWidth;
+    isNv21 = true;
+    frameTimestampNs = 0;
 
     imageConverter =
         new Runnable() {
           @Override
           public void run() {
-            ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
+            yuvConverter.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
           }
         };
 
@@ -248,6 +311,7 @@ public abstract class CameraActivity extends AppCompatActivity
 
       if (isProcessingFrame) {
         image.close();
+        frameTracer.onDropped(FrameTracer.Drop.CAMERA_BUSY);
         return;
       }
       isProcessingFrame = true;
@@ -255,14 +319,16 @@ public abstract class CameraActivity extends AppCompatActivity
       final Plane[] planes = image.getPlanes();
       fillBytes(planes, yuvBytes);
       yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
+      uvRowStride = planes[1].getRowStride();
+      uvPixelStride = planes[1].getPixelStride();
+      isNv21 = false;
+      frameTimestampNs = image.getTimestamp();
 
       imageConverter =
           new Runnable() {
             @Override
             public void run() {
-              ImageUtils.convertYUV420ToARGB8888(
+              yuvConverter.convertYUV420ToARGB8888(
                   yuvBytes[0],
                   yuvBytes[1],
                   yuvBytes[2],
@@ -307,12 +373,16 @@ public abstract class CameraActivity extends AppCompatActivity
     handlerThread = new HandlerThread("inference");
     handlerThread.start();
     handler = new Handler(handlerThread.getLooper());
+    postProcessingThread = new HandlerThread("postprocessing");
+    postProcessingThread.start();
+    postProcessingHandler = new Handler(postProcessingThread.getLooper());
   }
 
   @Override
   public synchronized void onPause() {
     LOGGER.d("onPause " + this);
 
+    // Inference hands frames over to post-processing, so drain it first.
     handlerThread.quitSafely();
     try {
       handlerThread.join();
@@ -321,7 +391,29 @@ public abstract class CameraActivity extends AppCompatActivity
     } catch (final InterruptedException e) {
       LOGGER.e(e, "Exception!");
     }
+    postProcessingThread.quitSafely();
+    try {
+      postProcessingThread.join();
+      postProcessingThread = null;
+      postProcessingHandler = null;
+    } catch (final InterruptedException e) {
+      LOGGER.e(e, "Exception!");
+    }
 
+    // Nothing is in flight any more. The export formats and writes files, so it runs off the UI
+    // thread.
+    if (frameTracer.isEnabled()) {
+      final FrameTracer tracer = frameTracer;
+      new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  tracer.exportTrace(new File(getExternalFilesDir(null), "frame_trace.json"));
+                }
+              },
+              "frame-trace-export")
+          .start();
+    }
     super.onPause();
   }
 
@@ -334,13 +426,25 @@ public abstract class CameraActivity extends AppCompatActivity
   @Override
   public synchronized void onDestroy() {
     LOGGER.d("onDestroy " + this);
+    yuvConverter.close();
     super.onDestroy();
   }
 
-  protected synchronized void runInBackground(final Runnable r) {
-    if (handler != null) {
-      handler.post(r);
-    }
+  /** Runs {@code r} on the inference thread. Returns false if the activity is paused. */
+  protected synchronized boolean runInBackground(final Runnable r) {
+    return handler != null && handler.post(r);
+  }
+
+  /**
+   * Runs {@code r} on the post-processing thread, which handles the results of a frame while the
+   * inference thread already works on the next one. Returns false if the activity is paused.
+   *
+   * <p>Not synchronized: it is called from the inference thread, which {@link #onPause} joins
+   * while holding the lock.
+   */
+  protected boolean runInPostProcessing(final Runnable r) {
+    final Handler postProcessingHandler = this.postProcessingHandler;
+    return postProcessingHandler != null && postProcessingHandler.post(r);
   }
 
   @Override
@@ -438,6 +542,10 @@ public abstract class CameraActivity extends AppCompatActivity
 
     Fragment fragment;
     if (useCamera2API) {
+      final Size desiredHighResSize = getDesiredHighResFrameSize();
+      if (desiredHighResSize != null && highResFrames == null) {
+        highResFrames = new HighResFrameCache(NUM_HIGH_RES_FRAMES);
+      }
       CameraConnectionFragment camera2Fragment =
           CameraConnectionFragment.newInstance(
               new CameraConnectionFragment.ConnectionCallback() {
@@ -447,10 +555,17 @@ public abstract class CameraActivity extends AppCompatActivity
                   previewWidth = size.getWidth();
                   CameraActivity.this.onPreviewSizeChosen(size, rotation);
                 }
+
+                @Override
+                public void onHighResSizeChosen(final Size size) {
+                  highResSize = size;
+                }
               },
               this,
               getLayoutId(),
-              getDesiredPreviewFrameSize());
+              getDesiredPreviewFrameSize(),
+              desiredHighResSize,
+              highResFrames);
 
       camera2Fragment.setCamera(cameraId);
       fragment = camera2Fragment;
@@ -498,6 +613,15 @@ public abstract class CameraActivity extends AppCompatActivity
     }
   }
 
+  /** Shows settings the detector was set up with elsewhere, without applying them again. */
+  protected void showDetectorSettings(final int numThreads, final boolean useNNAPI) {
+    threadsTextView.setText(String.valueOf(numThreads));
+    apiSwitchCompat.setOnCheckedChangeListener(null);
+    apiSwitchCompat.setChecked(useNNAPI);
+    apiSwitchCompat.setText(useNNAPI ? "NNAPI" : "TFLITE");
+    apiSwitchCompat.setOnCheckedChangeListener(this);
+  }
+
   @Override
   public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
     setUseNNAPI(isChecked);
@@ -550,6 +674,22 @@ public abstract class CameraActivity extends AppCompatActivity
 
   protected abstract Size getDesiredPreviewFrameSize();
 
+  /**
+   * Largest size wanted for a second, high resolution stream captured alongside the preview, or
+   * null for none. Its frames are only read through {@link #copyHighResLuminance}.
+   */
+  protected Size getDesiredHighResFrameSize() {
+    return null;
+  }
+
+  /**
+   * Frames whose stages are kept by the frame tracer and exported to {@code frame_trace.json} in
+   * the external files directory when the activity pauses, or 0 to disable tracing.
+   */
+  protected int getNumTracedFrames() {
+    return 0;
+  }
+
   protected abstract void setNumThreads(int numThreads);
 
   protected abstract void setUseNNAPI(boolean isChecked);
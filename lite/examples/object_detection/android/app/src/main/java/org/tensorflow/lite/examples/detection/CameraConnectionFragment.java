@@ -92,6 +92,10 @@ public class CameraConnectionFragment extends Fragment {
   private final Size inputSize;
   /** The layout identifier to inflate for this Fragment. */
   private final int layout;
+  /** The largest size wanted for the high resolution stream, or null for a single stream. */
+  private final Size highResInputSize;
+  /** Receives the frames of the high resolution stream. */
+  private final HighResFrameCache highResFrames;
 
   private final ConnectionCallback cameraConnectionCallback;
   private final CameraCaptureSession.CaptureCallback captureCallback =
@@ -120,12 +124,19 @@ public class CameraConnectionFragment extends Fragment {
   private Integer sensorOrientation;
   /** The {@link Size} of camera preview. */
   private Size previewSize;
+  /** The {@link Size} of the high resolution stream, or null if there is none. */
+  private Size highResSize;
   /** An additional thread for running tasks that shouldn't block the UI. */
   private HandlerThread backgroundThread;
   /** A {@link Handler} for running tasks in the background. */
   private Handler backgroundHandler;
   /** An {@link ImageReader} that handles preview frame capture. */
   private ImageReader previewReader;
+  /** An {@link ImageReader} that handles the high resolution frames. */
+  private ImageReader highResReader;
+
+  /** Set once a session with the high resolution stream failed to configure on this camera. */
+  private boolean highResUnsupported;
   /** {@link CaptureRequest.Builder} for the camera preview */
   private CaptureRequest.Builder previewRequestBuilder;
   /** {@link CaptureRequest} generated by {@link #previewRequestBuilder} */
@@ -190,11 +201,15 @@ public class CameraConnectionFragment extends Fragment {
       final ConnectionCallback connectionCallback,
       final OnImageAvailableListener imageListener,
       final int layout,
-      final Size inputSize) {
+      final Size inputSize,
+      final Size highResInputSize,
+      final HighResFrameCache highResFrames) {
     this.cameraConnectionCallback = connectionCallback;
     this.imageListener = imageListener;
     this.layout = layout;
     this.inputSize = inputSize;
+    this.highResInputSize = highResInputSize;
+    this.highResFrames = highResFrames;
   }
 
   /**
@@ -247,12 +262,58 @@ public class CameraConnectionFragment extends Fragment {
     }
   }
 
+  /**
+   * Given {@code choices} of {@code Size}s supported by a camera, chooses the largest one with the
+   * aspect ratio of {@code previewSize} that is bigger than it and no bigger than {@code
+   * maxSize}. Streams of the same aspect ratio cover the same field of view, so that coordinates
+   * map from one to the other by scaling.
+   *
+   * @return The chosen {@code Size}, or null if none qualifies
+   */
+  protected static Size chooseHighResSize(
+      final Size[] choices, final Size previewSize, final Size maxSize) {
+    Size chosenSize = null;
+    for (final Size option : choices) {
+      if ((long) option.getWidth() * previewSize.getHeight()
+              != (long) option.getHeight() * previewSize.getWidth()
+          || option.getWidth() <= previewSize.getWidth()
+          || option.getWidth() > maxSize.getWidth()
+          || option.getHeight() > maxSize.getHeight()) {
+        continue;
+      }
+      if (chosenSize == null || option.getWidth() > chosenSize.getWidth()) {
+        chosenSize = option;
+      }
+    }
+    if (chosenSize == null) {
+      LOGGER.w("No high resolution size with the aspect ratio of " + previewSize);
+    } else {
+      LOGGER.i("Chosen high resolution size: " + chosenSize);
+    }
+    return chosenSize;
+  }
+
   public static CameraConnectionFragment newInstance(
       final ConnectionCallback callback,
       final OnImageAvailableListener imageListener,
       final int layout,
       final Size inputSize) {
-    return new CameraConnectionFragment(callback, imageListener, layout, inputSize);
+    return newInstance(callback, imageListener, layout, inputSize, null, null);
+  }
+
+  /**
+   * Creates a fragment that, besides the preview stream, captures a high resolution stream of up
+   * to {@code highResInputSize} into {@code highResFrames}.
+   */
+  public static CameraConnectionFragment newInstance(
+      final ConnectionCallback callback,
+      final OnImageAvailableListener imageListener,
+      final int layout,
+      final Size inputSize,
+      final Size highResInputSize,
+      final HighResFrameCache highResFrames) {
+    return new CameraConnectionFragment(
+        callback, imageListener, layout, inputSize, highResInputSize, highResFrames);
   }
 
   /**
@@ -337,6 +398,12 @@ public class CameraConnectionFragment extends Fragment {
               inputSize.getWidth(),
               inputSize.getHeight());
 
+      if (highResFrames != null && !highResUnsupported) {
+        highResSize =
+            chooseHighResSize(
+                map.getOutputSizes(ImageFormat.YUV_420_888), previewSize, highResInputSize);
+      }
+
       // We fit the aspect ratio of TextureView to the size of preview we picked.
       final int orientation = getResources().getConfiguration().orientation;
       if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
@@ -354,6 +421,9 @@ public class CameraConnectionFragment extends Fragment {
       throw new IllegalStateException(getString(R.string.tfe_od_camera_error));
     }
 
+    if (highResFrames != null) {
+      cameraConnectionCallback.onHighResSizeChosen(highResSize);
+    }
     cameraConnectionCallback.onPreviewSizeChosen(previewSize, sensorOrientation);
   }
 
@@ -391,6 +461,11 @@ public class CameraConnectionFragment extends Fragment {
         previewReader.close();
         previewReader = null;
       }
+      if (null != highResReader) {
+        highResFrames.clear();
+        highResReader.close();
+        highResReader = null;
+      }
     } catch (final InterruptedException e) {
       throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
     } finally {
@@ -443,9 +518,26 @@ public class CameraConnectionFragment extends Fragment {
       previewReader.setOnImageAvailableListener(imageListener, backgroundHandler);
       previewRequestBuilder.addTarget(previewReader.getSurface());
 
+      final List<Surface> outputs =
+          new ArrayList<>(Arrays.asList(surface, previewReader.getSurface()));
+      if (highResSize != null) {
+        // Every capture also fills the high resolution stream, so that the frame matching a
+        // preview frame is at hand; it is only read when a detection asks for it.
+        LOGGER.i("Opening high resolution stream: " + highResSize);
+        highResReader =
+            ImageReader.newInstance(
+                highResSize.getWidth(),
+                highResSize.getHeight(),
+                ImageFormat.YUV_420_888,
+                highResFrames.getMaxImages());
+        highResReader.setOnImageAvailableListener(highResFrames, backgroundHandler);
+        previewRequestBuilder.addTarget(highResReader.getSurface());
+        outputs.add(highResReader.getSurface());
+      }
+
       // Here, we create a CameraCaptureSession for camera preview.
       cameraDevice.createCaptureSession(
-          Arrays.asList(surface, previewReader.getSurface()),
+          outputs,
           new CameraCaptureSession.StateCallback() {
 
             @Override
@@ -477,6 +569,13 @@ public class CameraConnectionFragment extends Fragment {
 
             @Override
             public void onConfigureFailed(final CameraCaptureSession cameraCaptureSession) {
+              if (highResSize != null) {
+                // Not every device can stream a third YUV output: keep the preview going
+                // without it.
+                LOGGER.w("Camera session failed to configure, retrying without high resolution");
+                retryWithoutHighRes();
+                return;
+              }
               showToast("Failed");
             }
           },
@@ -486,6 +585,36 @@ public class CameraConnectionFragment extends Fragment {
     }
   }
 
+  /** Drops the high resolution stream and creates the preview session again. */
+  private void retryWithoutHighRes() {
+    try {
+      cameraOpenCloseLock.acquire();
+    } catch (final InterruptedException e) {
+      throw new RuntimeException("Interrupted while trying to lock camera reconfiguration.", e);
+    }
+    try {
+      // The camera is already closed
+      if (null == cameraDevice) {
+        return;
+      }
+      highResUnsupported = true;
+      highResSize = null;
+      cameraConnectionCallback.onHighResSizeChosen(null);
+      if (null != previewReader) {
+        previewReader.close();
+        previewReader = null;
+      }
+      if (null != highResReader) {
+        highResFrames.clear();
+        highResReader.close();
+        highResReader = null;
+      }
+    } finally {
+      cameraOpenCloseLock.release();
+    }
+    createCameraPreviewSession();
+  }
+
   /**
    * Configures the necessary {@link Matrix} transformation to `mTextureView`. This method should be
    * called after the camera preview size is determined in setUpCameraOutputs and also the size of
@@ -526,6 +655,13 @@ public class CameraConnectionFragment extends Fragment {
    */
   public interface ConnectionCallback {
     void onPreviewSizeChosen(Size size, int cameraRotation);
+
+    /**
+     * Called before {@link #onPreviewSizeChosen} when a high resolution stream was requested, with
+     * its size or null if the camera has no suitable one. Called again with null if the camera
+     * cannot stream it alongside the preview after all.
+     */
+    void onHighResSizeChosen(Size size);
   }
 
   /** Compares two {@code Size}s based on their areas. */
@@ -25,7 +25,6 @@ import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
-import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Typeface;
@@ -40,26 +39,13 @@ import android.util.TypedValue;
 import android.widget.ImageView;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
 import com.example.zxingcpp.BarcodeReader;
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.android.gms.tasks.Task;
+import com.example.zxingcpp.ImageProcessor;
 import com.google.mlkit.vision.barcode.Barcode;
-import com.google.mlkit.vision.barcode.BarcodeScanner;
 import com.google.mlkit.vision.barcode.BarcodeScannerOptions;
-import com.google.mlkit.vision.barcode.BarcodeScanning;
-import com.google.mlkit.vision.common.InputImage;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.BinaryBitmap;
-import com.google.zxing.DecodeHintType;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.RGBLuminanceSource;
-import com.google.zxing.Result;
-import com.google.zxing.common.HybridBinarizer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -68,22 +54,33 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import org.tensorflow.lite.examples.detection.customview.OverlayView;
 import org.tensorflow.lite.examples.detection.customview.OverlayView.DrawCallback;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
+import org.tensorflow.lite.examples.detection.env.FrameRecorder;
+import org.tensorflow.lite.examples.detection.env.FrameTracer;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvSampler;
+import org.tensorflow.lite.examples.detection.keydot.AdaptiveDecodeStrategy;
+import org.tensorflow.lite.examples.detection.keydot.KeydotDecodePool;
+import org.tensorflow.lite.examples.detection.keydot.MlKitKeydotScanner;
+import org.tensorflow.lite.examples.detection.keydot.ZxingCppKeydotDecoder;
+import org.tensorflow.lite.examples.detection.keydot.ZxingJavaKeydotDecoder;
 import org.tensorflow.lite.examples.detection.tflite.Detector;
 import org.tensorflow.lite.examples.detection.tflite.TFLiteObjectDetectionAPIModel;
+import org.tensorflow.lite.examples.detection.tracking.BoxPropagator;
 import org.tensorflow.lite.examples.detection.tracking.MultiBoxTracker;
 
 /**
@@ -93,17 +90,100 @@ import org.tensorflow.lite.examples.detection.tracking.MultiBoxTracker;
 public class DetectorActivity extends CameraActivity implements OnImageAvailableListener {
     private static final Logger LOGGER = new Logger();
 
+    /** Buffers of one frame, owned by a single pipeline stage at a time. */
+    private static class FrameSlot {
+        // Full frame, only needed to crop keydot bitmaps when they are not decoded from the
+        // luminance plane. Otherwise the slots only hold buffers of the detector input size.
+        final Bitmap rgbFrameBitmap;
+        // Detector input, either as a bitmap or, with fused preprocessing, as the input tensor.
+        final Bitmap croppedBitmap;
+        final ByteBuffer input;
+        // Snapshot of the Y plane, as the camera buffer is reused for the next frame.
+        ByteBuffer luminance;
+        int luminanceStride;
+        long timestamp;
+        // Capture time, which identifies the frame in the high resolution stream.
+        long sensorTimestampNs;
+        // Whether the detector runs on the frame, or the boxes of the last detection are moved.
+        boolean detect;
+        // Recycled by every frame that goes through the slot.
+        final Detector.RecognitionList results = new Detector.RecognitionList();
+
+        FrameSlot(int previewWidth, int previewHeight, int cropSize, YuvSampler yuvSampler) {
+            rgbFrameBitmap = DECODE_FROM_LUMINANCE
+                    ? null
+                    : Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
+            if (yuvSampler == null) {
+                croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+                input = null;
+            } else {
+                croppedBitmap = null;
+                input = ByteBuffer.allocateDirect(yuvSampler.getOutputByteSize())
+                        .order(ByteOrder.nativeOrder());
+            }
+        }
+    }
+
     // Configuration values for the prepackaged SSD model.
     private static final int TF_OD_API_INPUT_SIZE = 320;
     private static final boolean TF_OD_API_IS_QUANTIZED = false;
+    // Normalization the float model was trained with.
+    private static final float TF_OD_API_INPUT_MEAN = 127.5f;
+    private static final float TF_OD_API_INPUT_STD = 127.5f;
     private static final String TF_OD_API_MODEL_FILE = "key_android2.tflite";
     private static final String TF_OD_API_LABELS_FILE = "labelmap2.txt";
+    // Quantized variant of TF_OD_API_MODEL_FILE, which the tuner also tries when it is packaged.
+    private static final String TF_OD_API_QUANTIZED_MODEL_FILE = "key_android2_quant.tflite";
     private static final DetectorMode MODE = DetectorMode.TF_OD_API;
     // Minimum detection confidence to track a detection.
     private static final float MINIMUM_CONFIDENCE_TF_OD_API = 0.6f;
     private static final boolean MAINTAIN_ASPECT = true;
     private static final Size DESIRED_PREVIEW_SIZE = new Size(3840, 2160);
     private static final boolean SAVE_PREVIEW_BITMAP = false;
+    // Sample the detector input straight from the YUV frame, skipping the full-frame ARGB
+    // conversion and the cropped bitmap, when the detector accepts a prepared input tensor.
+    private static final boolean FUSED_PREPROCESSING = true;
+    // Decode keydots straight from the camera Y plane instead of cropping and inverting bitmaps.
+    private static final boolean DECODE_FROM_LUMINANCE = true;
+    // Detect on a DETECTION_PREVIEW_SIZE stream and decode the keydots from a DESIRED_PREVIEW_SIZE
+    // stream captured alongside, which is only read for frames with detections. Needs
+    // DECODE_FROM_LUMINANCE and the camera2 API; without a matching high resolution stream the
+    // keydots are decoded from the detection stream.
+    private static final boolean DUAL_RESOLUTION = false;
+    private static final Size DETECTION_PREVIEW_SIZE = new Size(1280, 720);
+    // How long a frame waits for its keydot decodes; late decodes are reported with the next frame.
+    private static final long DECODE_DEADLINE_MS = 60;
+    private static final int NUM_DECODE_THREADS =
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    // Failed keydot decodes are retried trying harder, with the opposite polarity and rotated, up
+    // to this level, on every backend.
+    private static final AdaptiveDecodeStrategy.Level LAST_DECODE_LEVEL =
+            AdaptiveDecodeStrategy.Level.ROTATED;
+    // Race the two cheapest decoder backends on the first attempt instead of trying them in turn.
+    // Cuts the latency when their speeds are close, at the cost of a second core per keydot.
+    private static final boolean RACE_DECODERS = false;
+    // ML Kit scans running at once when decoding cropped bitmaps; further keydots wait, one per
+    // track, and the oldest waiting ones are dropped.
+    private static final int MAX_ML_KIT_SCANS_IN_FLIGHT = 2;
+    // Frames that can be in flight at once. With 3, frame N+2 is converted while N+1 is detected
+    // and N is decoded; with 1, the stages run strictly one after another.
+    private static final int NUM_FRAME_SLOTS = 3;
+    // Run the detector on one frame in DETECTION_INTERVAL only, and move the boxes of the last
+    // detection along with the image on the frames in between (see BoxPropagator), which costs a
+    // few milliseconds instead of a full inference. A frame is detected early when the scene
+    // changed or a box was lost. 1 detects every frame.
+    private static final int DETECTION_INTERVAL = 1;
+    // Record frames and their keydots for the host benchmark (keydot_bench). Needs
+    // DECODE_FROM_LUMINANCE, as the Y plane snapshot is what gets recorded.
+    private static final boolean RECORD_FRAMES = false;
+    private static final int NUM_RECORDED_FRAMES = 100;
+    // Trace every frame from capture to overlay draw, with drops counted by reason; the latest
+    // NUM_TRACED_FRAMES frames and a latency summary are exported when the activity pauses.
+    private static final boolean TRACE_FRAMES = false;
+    private static final int NUM_TRACED_FRAMES = 300;
+    // Time the model variants, thread counts and XNNPACK or NNAPI on first launch, and start with
+    // the fastest on later launches (see DetectorTuner). The manual settings still override it.
+    private static final boolean AUTO_TUNE = true;
     private static final float TEXT_SIZE_DIP = 10;
     OverlayView trackingOverlay;
     private Integer sensorOrientation;
@@ -111,18 +191,48 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     final private int REQUEST_CODE_ASK_PERMISSIONS = 123;
 
     private Detector detector;
-    private MultiFormatReader readerJava = new MultiFormatReader();
-
-    private long lastProcessingTimeMs;
-    private Bitmap rgbFrameBitmap = null;
-    private Bitmap croppedBitmap = null;
-    private Bitmap cropCopyBitmap = null;
-    private Bitmap keydotBitmap = null;
+    // Whether the detector in use takes quantized input, which the frame slots are prepared for.
+    private boolean isQuantized = TF_OD_API_IS_QUANTIZED;
+    private DetectorTuner detectorTuner;
+    private KeydotDecodePool decodePool;
+    private AdaptiveDecodeStrategy decodeStrategy;
+    private FrameRecorder frameRecorder;
+    private MlKitKeydotScanner mlKitScanner;
+    private ImageProcessor imageProcessor;
+    // Only used on the post-processing thread.
+    private BoxPropagator boxPropagator;
+    // Set by post-processing when propagation failed, so that the next frame is detected.
+    private volatile boolean forceDetection = true;
+    private int framesSinceDetection;
+    private long framesPropagated;
+    // Last frame handed to the overlay, which ends when the overlay draws it.
+    private volatile long frameToDraw = -1;
+    // Frames in flight between conversion, detection and decoding. A frame arriving while none
+    // is free is dropped.
+    private ArrayBlockingQueue<FrameSlot> freeSlots;
+    private long framesAccepted;
+    private long framesDropped;
+
+    // Written by the pipeline threads and shown on the UI thread.
+    private volatile long lastProcessingTimeMs;
+    private volatile Bitmap cropCopyBitmap = null;
+    private volatile Bitmap keydotBitmap = null;
+    // Frame converted on the camera thread to be cropped, when the slots have no full frame
+    // bitmap of their own. Only used on the camera thread.
+    private Bitmap rgbFrameBitmap;
+    // Reused by postProcess, on the post-processing thread only. The ROIs and keydot bitmaps
+    // themselves are handed to asynchronous decodes, so each frame has its own.
+    private final Paint cropDebugPaint = createCropDebugPaint();
+    private final RectF detectionLocation = new RectF();
+    private final List<Detector.Recognition> mappedRecognitions = new ArrayList<>();
+    private final List<Rect> keydotRois = new ArrayList<>();
+    private final List<Bitmap> keydotBitmaps = new ArrayList<>();
+    private final List<RectF> keydotLocations = new ArrayList<>();
     private int total = 1;
-    private boolean computingDetection = false;
 
     private long timestamp = 0;
 
+    private YuvSampler yuvSampler;
     private Matrix frameToCropTransform;
     private Matrix cropToFrameTransform;
 
@@ -134,9 +244,6 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     private int aumentoDeBorda = 20;
 
 
-    Map<DecodeHintType, Object> hints = new HashMap<>();
-
-
     @Override
     public void onPreviewSizeChosen(final Size size, final int rotation) {
         final float textSizePx =
@@ -149,14 +256,40 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
         int cropSize = TF_OD_API_INPUT_SIZE;
 
+        DetectorTuner.Choice tuned = null;
+        if (AUTO_TUNE) {
+            detectorTuner = new DetectorTuner(
+                    this,
+                    Arrays.asList(
+                            new DetectorTuner.Variant(TF_OD_API_MODEL_FILE, TF_OD_API_IS_QUANTIZED),
+                            new DetectorTuner.Variant(TF_OD_API_QUANTIZED_MODEL_FILE, true)),
+                    TF_OD_API_LABELS_FILE,
+                    TF_OD_API_INPUT_SIZE);
+            tuned = detectorTuner.load();
+        }
+
         try {
-            detector =
-                    TFLiteObjectDetectionAPIModel.create(
-                            this,
-                            TF_OD_API_MODEL_FILE,
-                            TF_OD_API_LABELS_FILE,
-                            TF_OD_API_INPUT_SIZE,
-                            TF_OD_API_IS_QUANTIZED);
+            if (tuned != null) {
+                LOGGER.i("Using the tuned detector %s", tuned);
+                isQuantized = tuned.variant.isQuantized;
+                detector =
+                        TFLiteObjectDetectionAPIModel.create(
+                                this,
+                                tuned.variant.modelFile,
+                                TF_OD_API_LABELS_FILE,
+                                TF_OD_API_INPUT_SIZE,
+                                isQuantized,
+                                tuned.config);
+                showDetectorSettings(tuned.config.numThreads, tuned.config.useNNAPI);
+            } else {
+                detector =
+                        TFLiteObjectDetectionAPIModel.create(
+                                this,
+                                TF_OD_API_MODEL_FILE,
+                                TF_OD_API_LABELS_FILE,
+                                TF_OD_API_INPUT_SIZE,
+                                TF_OD_API_IS_QUANTIZED);
+            }
             cropSize = TF_OD_API_INPUT_SIZE;
         } catch (final IOException e) {
             e.printStackTrace();
@@ -171,17 +304,38 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         previewWidth = size.getWidth();
         previewHeight = size.getHeight();
 
-        hints.put(DecodeHintType.POSSIBLE_FORMATS, Arrays.asList(BarcodeFormat.DATA_MATRIX));
-        hints.put(DecodeHintType.TRY_HARDER, true);
+        final Set<BarcodeReader.Format> keydotFormats =
+                Collections.singleton(BarcodeReader.Format.DATA_MATRIX);
+        decodeStrategy = new AdaptiveDecodeStrategy(
+                Arrays.asList(
+                        ZxingCppKeydotDecoder.factory(keydotFormats),
+                        ZxingJavaKeydotDecoder.factory(keydotFormats)),
+                LAST_DECODE_LEVEL,
+                RACE_DECODERS,
+                NUM_DECODE_THREADS);
+        decodePool = new KeydotDecodePool(
+                NUM_DECODE_THREADS, DECODE_DEADLINE_MS, true, decodeStrategy);
+        if (RECORD_FRAMES && DECODE_FROM_LUMINANCE) {
+            frameRecorder = new FrameRecorder(
+                    new File(getExternalFilesDir(null), "keydot_frames"), NUM_RECORDED_FRAMES);
+        }
+        if (DETECTION_INTERVAL > 1) {
+            boxPropagator = new BoxPropagator();
+        }
+        if (!DECODE_FROM_LUMINANCE) {
+            imageProcessor = new ImageProcessor();
+            mlKitScanner = new MlKitKeydotScanner(
+                    new BarcodeScannerOptions.Builder()
+                            .setBarcodeFormats(
+                                    Barcode.FORMAT_DATA_MATRIX)
+                            .build(),
+                    MAX_ML_KIT_SCANS_IN_FLIGHT);
+        }
 
         sensorOrientation = rotation - getScreenOrientation();
         LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
         LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-        croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
-
-
 
         frameToCropTransform =
                 ImageUtils.getTransformationMatrix(
@@ -192,20 +346,80 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         cropToFrameTransform = new Matrix();
         frameToCropTransform.invert(cropToFrameTransform);
 
+        if (FUSED_PREPROCESSING && detector != null && detector.supportsTensorInput()) {
+            yuvSampler = new YuvSampler(
+                    previewWidth, previewHeight, cropSize, cropToFrameTransform,
+                    isQuantized, TF_OD_API_INPUT_MEAN, TF_OD_API_INPUT_STD);
+        }
+        if (yuvSampler == null && DECODE_FROM_LUMINANCE) {
+            rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
+        }
+        freeSlots = new ArrayBlockingQueue<>(NUM_FRAME_SLOTS);
+        for (int i = 0; i < NUM_FRAME_SLOTS; i++) {
+            freeSlots.add(new FrameSlot(previewWidth, previewHeight, cropSize, yuvSampler));
+        }
+
         trackingOverlay = (OverlayView) findViewById(R.id.tracking_overlay);
         trackingOverlay.addCallback(
                 new DrawCallback() {
                     @Override
                     public void drawCallback(final Canvas canvas) {
+                        final FrameTracer frameTracer = getFrameTracer();
+                        final long frameId = frameToDraw;
+                        frameTracer.beginStage(frameId, FrameTracer.Stage.DRAW);
                         tracker.draw(canvas);
                         if (isDebug()) {
                             tracker.drawDebug(canvas);
                         }
+                        frameTracer.endStage(frameId, FrameTracer.Stage.DRAW);
+                        frameTracer.endFrame(frameId);
                     }
                 });
 
         tracker.setFrameConfiguration(previewWidth, previewHeight, sensorOrientation);
         requestPermission();
+
+        if (AUTO_TUNE && tuned == null && detector != null && runInBackground(this::tuneDetector)) {
+            Toast.makeText(this, "Tuning the detector for this device", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // Runs on the inference thread, so that no detection competes with the timings; frames arriving
+    // meanwhile are dropped.
+    private void tuneDetector() {
+        final DetectorTuner.Choice choice = detectorTuner.tune();
+        if (choice == null) {
+            return;
+        }
+        if (choice.variant.isQuantized != isQuantized) {
+            // The frame slots are prepared for the input of the current variant.
+            LOGGER.i("Detector %s will be used from the next launch", choice.variant.modelFile);
+            return;
+        }
+        try {
+            final Detector tunedDetector =
+                    TFLiteObjectDetectionAPIModel.create(
+                            this,
+                            choice.variant.modelFile,
+                            TF_OD_API_LABELS_FILE,
+                            TF_OD_API_INPUT_SIZE,
+                            choice.variant.isQuantized,
+                            choice.config);
+            detector.close();
+            detector = tunedDetector;
+        } catch (final IOException e) {
+            LOGGER.e(e, "Failed to create the tuned detector");
+            return;
+        }
+        runOnUiThread(
+                () -> {
+                    showDetectorSettings(choice.config.numThreads, choice.config.useNNAPI);
+                    Toast.makeText(
+                            this,
+                            String.format(Locale.US, "Detector tuned: %.0f ms", choice.latencyMs),
+                            Toast.LENGTH_SHORT)
+                            .show();
+                });
     }
 
     private void requestPermission() {
@@ -238,254 +452,403 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         ++timestamp;
         final long currTimestamp = timestamp;
         trackingOverlay.postInvalidate();
-        BarcodeReader readerCpp = new BarcodeReader();
-
-        BarcodeScannerOptions options =
-                new BarcodeScannerOptions.Builder()
-                        .setBarcodeFormats(
-                                Barcode.FORMAT_DATA_MATRIX)
-                        .build();
 
         // No mutex needed as this method is not reentrant.
-        if (computingDetection) {
+        final FrameTracer frameTracer = getFrameTracer();
+        final FrameSlot slot = freeSlots.poll();
+        if (slot == null) {
+            // Every slot is still being detected or decoded: drop the frame here, before paying
+            // for its conversion, rather than queueing it behind the slower stage.
+            framesDropped++;
+            frameTracer.onDropped(FrameTracer.Drop.NO_FREE_SLOT);
             readyForNextImage();
             return;
         }
-        computingDetection = true;
-        LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
-
-        rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+        logPipelineStats();
+        slot.timestamp = currTimestamp;
+        slot.sensorTimestampNs = getFrameTimestampNs();
+        slot.detect = shouldDetect();
+        frameTracer.beginFrame(currTimestamp, slot.sensorTimestampNs);
+        LOGGER.v("Preparing image %d for detection in bg thread.", currTimestamp);
+
+        // The detector input is only prepared for the frames that get detected.
+        if (slot.input != null && slot.detect) {
+            frameTracer.beginStage(currTimestamp, FrameTracer.Stage.CROP);
+            sampleFrame(yuvSampler, slot.input);
+            frameTracer.endStage(currTimestamp, FrameTracer.Stage.CROP);
+        }
+        frameTracer.beginStage(currTimestamp, FrameTracer.Stage.CONVERT);
+        final Bitmap frameBitmap =
+                slot.rgbFrameBitmap != null ? slot.rgbFrameBitmap : rgbFrameBitmap;
+        if (frameBitmap != null && (slot.detect || !DECODE_FROM_LUMINANCE)) {
+            frameBitmap.setPixels(
+                    getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+        }
+        if (DECODE_FROM_LUMINANCE || boxPropagator != null) {
+            copyLuminance(slot);
+        }
+        frameTracer.endStage(currTimestamp, FrameTracer.Stage.CONVERT);
 
         readyForNextImage();
 
-        final Canvas canvas = new Canvas(croppedBitmap);
-        canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-        // For examining the actual TF input.
-        if (SAVE_PREVIEW_BITMAP) {
-            ImageUtils.saveBitmap(croppedBitmap);
+        if (slot.croppedBitmap != null && slot.detect) {
+            frameTracer.beginStage(currTimestamp, FrameTracer.Stage.CROP);
+            final Canvas canvas = new Canvas(slot.croppedBitmap);
+            canvas.drawBitmap(frameBitmap, frameToCropTransform, null);
+            frameTracer.endStage(currTimestamp, FrameTracer.Stage.CROP);
+            // For examining the actual TF input.
+            if (SAVE_PREVIEW_BITMAP) {
+                ImageUtils.saveBitmap(slot.croppedBitmap);
+            }
         }
 
+        if (!runInBackground(() -> detect(slot))) {
+            frameTracer.onDropped(currTimestamp, FrameTracer.Drop.PAUSED);
+            releaseSlot(slot);
+        }
+    }
 
-        runInBackground(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        LOGGER.i("Running detection on image " + currTimestamp);
-                        final long startTime = SystemClock.uptimeMillis();
-                        final List<Detector.Recognition> results = detector.recognizeImage(croppedBitmap);
-                        lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-                        cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-                        final Canvas canvas = new Canvas(cropCopyBitmap);
-                        final Paint paint = new Paint();
-                        paint.setColor(Color.RED);
-                        paint.setStyle(Style.STROKE);
-                        paint.setStrokeWidth(2.0f);
-
-                        float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                        switch (MODE) {
-                            case TF_OD_API:
-                                minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                                break;
-                        }
-
-                        final List<Detector.Recognition> mappedRecognitions =
-                                new ArrayList<Detector.Recognition>();
-
-                        for (final Detector.Recognition result : results) {
-                            final RectF location = result.getLocation();
-
-
-                            String resultText = "";
-
-                            if (location != null && result.getConfidence() >= minimumConfidence) {
-
-                                // DESENHO DO QUADRADO NA IMAGEM
-                                canvas.drawRect(location, paint);
-
-                                cropToFrameTransform.mapRect(location);
-                                Rect realLocation = new Rect(
-                                        Math.max(0, Math.round(location.left - aumentoDeBorda)),
-                                        Math.max(0, Math.round(location.top - aumentoDeBorda)),
-                                        Math.min(rgbFrameBitmap.getWidth(), Math.round(location.right + aumentoDeBorda)),
-                                        Math.min(rgbFrameBitmap.getHeight(), Math.round(location.bottom + aumentoDeBorda)));
+    // Whether the frame about to be processed is detected; the others get the boxes of the last
+    // detection moved along with the image. Called on the camera thread only.
+    private boolean shouldDetect() {
+        if (boxPropagator != null && !forceDetection
+                && framesSinceDetection + 1 < DETECTION_INTERVAL) {
+            framesSinceDetection++;
+            framesPropagated++;
+            return false;
+        }
+        forceDetection = false;
+        framesSinceDetection = 0;
+        return true;
+    }
 
-                                Bitmap tempKeydotBitmap = Bitmap.createBitmap(rgbFrameBitmap,
-                                        realLocation.left,
-                                        realLocation.top,
-                                        realLocation.width(),
-                                        realLocation.height());
+    // Second stage, on the inference thread. Frames that are not detected still pass through, so
+    // that they reach post-processing after the detected frame their boxes are propagated from.
+    private void detect(final FrameSlot slot) {
+        final FrameTracer frameTracer = getFrameTracer();
+        if (slot.detect) {
+            LOGGER.v("Running detection on image %d", slot.timestamp);
+            frameTracer.beginStage(slot.timestamp, FrameTracer.Stage.INFER);
+            final long startTime = SystemClock.uptimeMillis();
+            if (slot.input != null) {
+                detector.recognizeImage(slot.input, slot.results);
+            } else {
+                detector.recognizeImage(slot.croppedBitmap, slot.results);
+            }
+            lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
+            frameTracer.endStage(slot.timestamp, FrameTracer.Stage.INFER);
+        }
 
-                                keydotBitmap = readerCpp.invertBitmap(tempKeydotBitmap);
+        if (!runInPostProcessing(() -> postProcess(slot))) {
+            frameTracer.onDropped(slot.timestamp, FrameTracer.Drop.PAUSED);
+            releaseSlot(slot);
+        }
+    }
 
-                                int width = tempKeydotBitmap.getWidth();
-                                int height = tempKeydotBitmap.getHeight();
-/*
-                                float scaleWidth = ((float) width * 2) / width;
-                                float scaleHeight = ((float) height * 2) / height;
+    // Last stage, on the post-processing thread: map the detections back to the frame, track and
+    // decode them. Frames reach it in order, as the previous stages are single threaded too.
+    private void postProcess(final FrameSlot slot) {
+        final long currTimestamp = slot.timestamp;
+        final Detector.RecognitionList results = slot.results;
+        if (!slot.detect) {
+            // The propagated boxes already are in frame coordinates.
+            if (!boxPropagator.propagate(slot.luminance, previewWidth, previewHeight,
+                    slot.luminanceStride, results)) {
+                forceDetection = true;
+            }
+        }
 
-                                Matrix matrix = new Matrix();
-                                // RESIZE THE BIT MAP
-                                matrix.postScale(scaleWidth, scaleHeight);
-                                matrix.postRotate(sensorOrientation);
-*/
-                                // "RECREATE" THE NEW BITMAP
-//                                keydotBitmap = Bitmap.createBitmap(
-//                                        tempKeydotBitmap, 0, 0, width, height, matrix, false);
-                                tempKeydotBitmap.recycle();
+        // Debug copy of the detector input with the detections drawn on, when there is a bitmap.
+        Canvas canvas = null;
+        if (slot.croppedBitmap != null && slot.detect) {
+            cropCopyBitmap = Bitmap.createBitmap(slot.croppedBitmap);
+            canvas = new Canvas(cropCopyBitmap);
+        }
 
-                                mlBarcodeScanner(options);
+        float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+        switch (MODE) {
+            case TF_OD_API:
+                minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+                break;
+        }
 
-//                                javaDecode();
+        mappedRecognitions.clear();
+        keydotRois.clear();
+        keydotBitmaps.clear();
+        keydotLocations.clear();
 
+        for (int i = 0; i < results.size(); i++) {
+            final Detector.Recognition result = results.get(i);
 
-//                                decodeCpp(realLocation, readerCpp);
+            if (result.location() != null && result.confidence() >= minimumConfidence) {
+                detectionLocation.set(result.location());
 
+                // DESENHO DO QUADRADO NA IMAGEM
+                if (canvas != null) {
+                    canvas.drawRect(detectionLocation, cropDebugPaint);
+                }
 
-                                result.setLocation(location);
-                                mappedRecognitions.add(result);
-                            }
-                        }
+                if (slot.detect) {
+                    cropToFrameTransform.mapRect(detectionLocation);
+                }
+                Rect realLocation = new Rect(
+                        Math.max(0, Math.round(detectionLocation.left - aumentoDeBorda)),
+                        Math.max(0, Math.round(detectionLocation.top - aumentoDeBorda)),
+                        Math.min(previewWidth,
+                                Math.round(detectionLocation.right + aumentoDeBorda)),
+                        Math.min(previewHeight,
+                                Math.round(detectionLocation.bottom + aumentoDeBorda)));
+
+                keydotRois.add(realLocation);
+                if (DECODE_FROM_LUMINANCE) {
+                    if (frameRecorder != null) {
+                        keydotLocations.add(new RectF(detectionLocation));
+                    }
+                    result.setLocation(detectionLocation);
+                    mappedRecognitions.add(result);
+                    continue;
+                }
 
-                        tracker.trackResults(mappedRecognitions, currTimestamp);
-                        trackingOverlay.postInvalidate();
+                // Crop into a bitmap of its own, as ML Kit holds on to it, and make it gray and
+                // inverted in place.
+                keydotBitmap = Bitmap.createBitmap(
+                        realLocation.width(), realLocation.height(), Config.ARGB_8888);
+                new Canvas(keydotBitmap).drawBitmap(
+                        slot.rgbFrameBitmap, -realLocation.left, -realLocation.top, null);
+                imageProcessor.grayscale(keydotBitmap, true);
+                keydotBitmaps.add(keydotBitmap);
+
+                result.setLocation(detectionLocation);
+                mappedRecognitions.add(result);
+            }
+        }
 
-                        computingDetection = false;
+        if (slot.detect && boxPropagator != null) {
+            boxPropagator.reset(slot.luminance, previewWidth, previewHeight,
+                    slot.luminanceStride, mappedRecognitions);
+        }
+        final int[] trackIds = tracker.trackResults(mappedRecognitions, currTimestamp);
 
-                        runOnUiThread(
-                                new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        showFrameInfo(previewWidth + "x" + previewHeight);
-                                        showCropInfo(cropCopyBitmap.getWidth() + "x" + cropCopyBitmap.getHeight());
-                                        showInference(lastProcessingTimeMs + "ms");
-                                        showKeydot(keydotBitmap);
-                                    }
-                                });
-                    }
-                });
-    }
+        final FrameTracer frameTracer = getFrameTracer();
+        if (DECODE_FROM_LUMINANCE) {
+            if (frameRecorder != null) {
+                frameRecorder.record(slot.luminance, previewWidth, previewHeight,
+                        slot.luminanceStride, sensorOrientation, keydotLocations);
+            }
+            frameTracer.beginStage(currTimestamp, FrameTracer.Stage.DECODE);
+            decodeLuminance(slot, keydotRois, trackIds);
+        } else {
+            frameTracer.beginStage(currTimestamp, FrameTracer.Stage.DECODE);
+            scanKeydots(slot, keydotRois, keydotBitmaps, trackIds);
+        }
+        frameTracer.endStage(currTimestamp, FrameTracer.Stage.DECODE);
+        releaseSlot(slot);
 
-    private void mlBarcodeScanner(BarcodeScannerOptions options) {
-        InputImage image = InputImage.fromBitmap(keydotBitmap, 0);
-        BarcodeScanner scanner = BarcodeScanning.getClient(options);
+        frameToDraw = currTimestamp;
+        trackingOverlay.postInvalidate();
 
-        Task<List<Barcode>> resultMl = scanner.process(image)
-                .addOnSuccessListener(new OnSuccessListener<List<Barcode>>() {
+        runOnUiThread(
+                new Runnable() {
                     @Override
-                    public void onSuccess(List<Barcode> barcodes) {
-                        // Task completed successfully
-                        // ...
-
-                        for (Barcode barcode: barcodes) {
-                            Rect bounds = barcode.getBoundingBox();
-                            Point[] corners = barcode.getCornerPoints();
-
-                            String rawValue = barcode.getRawValue();
-
-                            Toast toast =
-                                    Toast.makeText(
-                                            getApplicationContext(), rawValue, Toast.LENGTH_SHORT);
-                            toast.show();
-
-                            int valueType = barcode.getValueType();
-                            // See API reference for complete list of supported types
-                            switch (valueType) {
-                                case Barcode.TYPE_WIFI:
-                                    String ssid = barcode.getWifi().getSsid();
-                                    String password = barcode.getWifi().getPassword();
-                                    int type = barcode.getWifi().getEncryptionType();
-                                    break;
-                                case Barcode.TYPE_URL:
-                                    String title = barcode.getUrl().getTitle();
-                                    String url = barcode.getUrl().getUrl();
-                                    break;
-                            }
+                    public void run() {
+                        showFrameInfo(previewWidth + "x" + previewHeight);
+                        showCropInfo(TF_OD_API_INPUT_SIZE + "x" + TF_OD_API_INPUT_SIZE);
+                        showInference(lastProcessingTimeMs + "ms");
+                        if (keydotBitmap != null) {
+                            showKeydot(keydotBitmap);
                         }
                     }
-                })
-                .addOnFailureListener(new OnFailureListener() {
-                    @Override
-                    public void onFailure(@NonNull Exception e) {
-                        // Task failed with an exception
-                        // ...
-                        e.printStackTrace();
-                        LOGGER.e(e, "Exception detectando keydot!");
-                        Toast toast =
-                                Toast.makeText(
-                                        getApplicationContext(), "Erro ao detectar keydot", Toast.LENGTH_SHORT);
-                        toast.show();
-                    }
                 });
-
-        LOGGER.e(resultMl.toString(), "O que tem no resultado");
     }
 
-    private void decodeCpp(Rect realLocation, BarcodeReader readerCpp) {
-        String resultText;
-        try {
-
-            readerCpp.setOptions(new BarcodeReader.Options(
-                   new HashSet(Arrays.asList(BarcodeReader.Format.DATA_MATRIX)),
-                    true,
-                    true
-            ));
+    private static Paint createCropDebugPaint() {
+        final Paint paint = new Paint();
+        paint.setColor(Color.RED);
+        paint.setStyle(Style.STROKE);
+        paint.setStrokeWidth(2.0f);
+        return paint;
+    }
 
-            BarcodeReader.Result reconhecido = readerCpp.read(keydotBitmap, realLocation, sensorOrientation);
+    private void releaseSlot(final FrameSlot slot) {
+        if (slot.luminance != null) {
+            decodePool.releaseBuffer(slot.luminance);
+            slot.luminance = null;
+        }
+        slot.results.clear();
+        freeSlots.offer(slot);
+    }
 
-            if(reconhecido != null) {
-                resultText = reconhecido.getFormat() + ": " + reconhecido.getText();
-                Toast toast =
-                        Toast.makeText(
-                                getApplicationContext(), resultText, Toast.LENGTH_SHORT);
-                toast.show();
+    private void logPipelineStats() {
+        if (++framesAccepted % 100 == 0) {
+            LOGGER.i("Pipeline: %d frames processed, %d dropped because all %d slots were busy",
+                    framesAccepted, framesDropped, NUM_FRAME_SLOTS);
+            if (boxPropagator != null) {
+                LOGGER.i("Detection: %d frames detected, %d propagated",
+                        framesAccepted - framesPropagated, framesPropagated);
+            }
+            final AdaptiveDecodeStrategy strategy = decodeStrategy;
+            if (strategy != null) {
+                LOGGER.i("Keydot decoders:\n%s", strategy.getStatString());
+            }
+            final MlKitKeydotScanner scanner = mlKitScanner;
+            if (scanner != null) {
+                LOGGER.i("Keydot scanner: %s", scanner.getStatString());
             }
-        } catch (final Throwable e) {
-            e.printStackTrace();
-            LOGGER.e(e, "Exception detectando keydot!");
-            Toast toast =
-                    Toast.makeText(
-                            getApplicationContext(), "Erro ao detectar keydot", Toast.LENGTH_SHORT);
-            toast.show();
-
         }
     }
 
-    private void javaDecode() {
-        String resultText;
+    // Hands the keydot crops to ML Kit without waiting, and announces the keydots scanned since
+    // the last frame.
+    private void scanKeydots(
+            FrameSlot slot, List<Rect> keydotRois, List<Bitmap> keydotBitmaps, int[] trackIds) {
+        final long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < keydotRois.size(); i++) {
+            if (tracker.needsDecode(trackIds[i], now)) {
+                tracker.onDecodeSubmitted(trackIds[i]);
+                mlKitScanner.scan(
+                        slot.timestamp, trackIds[i], keydotRois.get(i), keydotBitmaps.get(i));
+            }
+        }
 
+        List<KeydotDecodePool.Decoded> decoded = new ArrayList<>();
+        KeydotDecodePool.Decoded keydot;
+        while ((keydot = mlKitScanner.poll()) != null) {
+            decoded.add(keydot);
+        }
+        int failedTrackId;
+        while ((failedTrackId = mlKitScanner.pollFailed()) != -1) {
+            tracker.onDecodeFailed(failedTrackId);
+        }
+        announceDecoded(decoded, now);
+    }
 
-        try {
+    private void copyLuminance(FrameSlot slot) {
+        final byte[] luminance = getLuminance();
+        slot.luminance = decodePool.obtainBuffer(luminance.length);
+        slot.luminance.put(luminance);
+        slot.luminance.rewind();
+        slot.luminanceStride = getLuminanceStride();
+    }
 
-            int width = keydotBitmap.getWidth(), height = keydotBitmap.getHeight();
+    // Decodes all keydots of the frame in parallel, in place from the Y plane: no ARGB crop, no
+    // inverted copy, no bitmap lock. Keydots whose track already holds a fresh payload are skipped.
+    // With DUAL_RESOLUTION, the Y plane is the one of the matching high resolution frame.
+    private void decodeLuminance(FrameSlot slot, List<Rect> keydotRois, int[] trackIds) {
+        final long now = SystemClock.uptimeMillis();
+        List<Rect> rois = new ArrayList<>();
+        int[] roiTrackIds = new int[keydotRois.size()];
+        for (int i = 0; i < keydotRois.size(); i++) {
+            if (tracker.needsDecode(trackIds[i], now)) {
+                tracker.onDecodeSubmitted(trackIds[i]);
+                roiTrackIds[rois.size()] = trackIds[i];
+                rois.add(keydotRois.get(i));
+            }
+        }
 
-            int[] pixels = new int[width * height];
-            keydotBitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-            RGBLuminanceSource source = new RGBLuminanceSource(width, height, pixels);
+        ByteBuffer luminance = slot.luminance;
+        int width = previewWidth;
+        int height = previewHeight;
+        int rowStride = slot.luminanceStride;
+        ByteBuffer highResLuminance = null;
+        final Size highResSize = getHighResFrameSize();
+        if (highResSize != null && !rois.isEmpty()) {
+            final List<Rect> highResRois = toHighRes(rois, highResSize);
+            final Rect region = new Rect(highResRois.get(0));
+            for (Rect roi : highResRois) {
+                region.union(roi);
+            }
+            // Only the region spanned by the keydots is copied out of the high resolution frame,
+            // and the ROIs are moved into it.
+            highResLuminance = decodePool.obtainBuffer(region.width() * region.height());
+            if (copyHighResLuminance(slot.sensorTimestampNs, region, highResLuminance)) {
+                luminance = highResLuminance;
+                width = region.width();
+                height = region.height();
+                rowStride = width;
+                for (Rect roi : highResRois) {
+                    roi.offset(-region.left, -region.top);
+                }
+                rois = highResRois;
+            }
+        }
 
-            BinaryBitmap bBitmap = new BinaryBitmap(new HybridBinarizer(source.invert()));
+        KeydotDecodePool.FrameResult frameResult = decodePool.decode(
+                slot.timestamp, luminance, width, height, rowStride,
+                rois, roiTrackIds, sensorOrientation, true);
+        if (highResLuminance != null) {
+            decodePool.releaseBuffer(highResLuminance);
+        }
 
-            Result resultJava = readerJava.decode(bBitmap, hints);
+        for (int trackId : frameResult.failedTrackIds) {
+            tracker.onDecodeFailed(trackId);
+        }
+        List<KeydotDecodePool.Decoded> decoded = new ArrayList<>(frameResult.decoded);
+        decoded.addAll(frameResult.late);
+        announceDecoded(decoded, now);
+    }
 
-            if(resultJava != null) {
-                resultText = resultJava.getBarcodeFormat() + ": " + resultJava.getText();
+    // Maps ROIs of the preview frame to the high resolution frame, which has the same aspect ratio.
+    private List<Rect> toHighRes(List<Rect> rois, Size highResSize) {
+        final float scaleX = (float) highResSize.getWidth() / previewWidth;
+        final float scaleY = (float) highResSize.getHeight() / previewHeight;
+        final List<Rect> highResRois = new ArrayList<>(rois.size());
+        for (Rect roi : rois) {
+            highResRois.add(new Rect(
+                    (int) (roi.left * scaleX),
+                    (int) (roi.top * scaleY),
+                    Math.min(highResSize.getWidth(), (int) Math.ceil(roi.right * scaleX)),
+                    Math.min(highResSize.getHeight(), (int) Math.ceil(roi.bottom * scaleY))));
+        }
+        return highResRois;
+    }
 
-                Toast toast =
-                        Toast.makeText(
-                                getApplicationContext(), resultText, Toast.LENGTH_SHORT);
-                toast.show();
+    private void announceDecoded(List<KeydotDecodePool.Decoded> decoded, long now) {
+        for (KeydotDecodePool.Decoded keydot : decoded) {
+            // Only announce payloads that are new for their track.
+            if (!tracker.onDecoded(keydot.trackId, keydot.result.getText(), now)) {
+                continue;
             }
-
-        }catch (final Exception e) {
-            e.printStackTrace();
-            LOGGER.e(e, "Exception detectando keydot!");
+            String resultText = keydot.result.getFormat() + ": " + keydot.result.getText();
             Toast toast =
                     Toast.makeText(
-                            getApplicationContext(), "Erro ao detectar keydot", Toast.LENGTH_SHORT);
+                            getApplicationContext(), resultText, Toast.LENGTH_SHORT);
             toast.show();
         }
     }
 
+    @Override
+    public synchronized void onPause() {
+        // Pausing joins the inference thread, which should not wait for the whole tuning.
+        if (detectorTuner != null) {
+            detectorTuner.cancel();
+        }
+        super.onPause();
+    }
+
+    @Override
+    public synchronized void onDestroy() {
+        if (mlKitScanner != null) {
+            mlKitScanner.close();
+            mlKitScanner = null;
+        }
+        if (imageProcessor != null) {
+            imageProcessor.close();
+            imageProcessor = null;
+        }
+        if (decodePool != null) {
+            // Also closes the decode strategy.
+            decodePool.close();
+            decodePool = null;
+            decodeStrategy = null;
+        }
+        if (detector != null) {
+            // The inference thread, which swaps and runs the detector, was joined by onPause.
+            detector.close();
+            detector = null;
+        }
+        super.onDestroy();
+    }
+
     @Override
     protected int getLayoutId() {
         return R.layout.tfe_od_camera_connection_fragment_tracking;
@@ -493,7 +856,14 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     @Override
     protected Size getDesiredPreviewFrameSize() {
-        return DESIRED_PREVIEW_SIZE;
+        return DUAL_RESOLUTION && DECODE_FROM_LUMINANCE
+                ? DETECTION_PREVIEW_SIZE
+                : DESIRED_PREVIEW_SIZE;
+    }
+
+    @Override
+    protected Size getDesiredHighResFrameSize() {
+        return DUAL_RESOLUTION && DECODE_FROM_LUMINANCE ? DESIRED_PREVIEW_SIZE : null;
     }
 
     // Which detection model to use: by default uses Tensorflow Object Detection API frozen
@@ -518,6 +888,11 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                 });
     }
 
+    @Override
+    protected int getNumTracedFrames() {
+        return TRACE_FRAMES ? NUM_TRACED_FRAMES : 0;
+    }
+
     @Override
     protected void setNumThreads(final int numThreads) {
         runInBackground(() -> detector.setNumThreads(numThreads));
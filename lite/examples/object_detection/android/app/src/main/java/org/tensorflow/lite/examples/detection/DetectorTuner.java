@@ -0,0 +1,299 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.SystemClock;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeSet;
+import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.tflite.Detector;
+import org.tensorflow.lite.examples.detection.tflite.TFLiteObjectDetectionAPIModel;
+
+/**
+ * Finds the fastest way to run the detector on this device, as devices differ too much for a
+ * single setting: which packaged model variant, how many threads, and whether to use XNNPACK or
+ * NNAPI.
+ *
+ * <p>{@link #tune} times every combination on synthetic input and persists the fastest, keyed by
+ * the device build, the app installation and the model files, so that {@link #load} returns it on
+ * later launches until the OS or the app is updated. Combinations the detector rejects are
+ * skipped.
+ */
+public final class DetectorTuner {
+  private static final Logger LOGGER = new Logger();
+
+  private static final String PREFERENCES = "detector_tuning";
+  private static final String KEY = "key";
+  private static final String MODEL = "model";
+  private static final String NUM_THREADS = "num_threads";
+  private static final String USE_XNNPACK = "use_xnnpack";
+  private static final String USE_NNAPI = "use_nnapi";
+  private static final String LATENCY_MS = "latency_ms";
+
+  // Timed detections per combination, after the warm-up done by the detector itself. The median
+  // is kept.
+  private static final int NUM_TIMED_RUNS = 8;
+  private static final int MAX_THREADS = 8;
+
+  /** A model packaged in the assets, with the labels and input size shared by all variants. */
+  public static final class Variant {
+    public final String modelFile;
+    public final boolean isQuantized;
+
+    public Variant(final String modelFile, final boolean isQuantized) {
+      this.modelFile = modelFile;
+      this.isQuantized = isQuantized;
+    }
+  }
+
+  /** The fastest combination found. */
+  public static final class Choice {
+    public final Variant variant;
+    public final Detector.Config config;
+    public final float latencyMs;
+
+    Choice(final Variant variant, final Detector.Config config, final float latencyMs) {
+      this.variant = variant;
+      this.config = config;
+      this.latencyMs = latencyMs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US, "%s with %s: %.1f ms", variant.modelFile, config, latencyMs);
+    }
+  }
+
+  private final Context context;
+  private final List<Variant> variants;
+  private final String labelFilename;
+  private final int inputSize;
+  private final SharedPreferences preferences;
+  private final String key;
+  private volatile boolean cancelled;
+
+  /** @param variants models to choose from; those missing from the assets are ignored. */
+  public DetectorTuner(
+      final Context context,
+      final List<Variant> variants,
+      final String labelFilename,
+      final int inputSize) {
+    this.context = context.getApplicationContext();
+    this.variants = variants;
+    this.labelFilename = labelFilename;
+    this.inputSize = inputSize;
+    this.preferences = this.context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    this.key = createKey();
+  }
+
+  /** Returns the choice persisted for this device and these models, or null if there is none. */
+  public Choice load() {
+    if (!key.equals(preferences.getString(KEY, null))) {
+      return null;
+    }
+    final String model = preferences.getString(MODEL, null);
+    for (final Variant variant : variants) {
+      if (variant.modelFile.equals(model)) {
+        return new Choice(
+            variant,
+            new Detector.Config(
+                preferences.getInt(NUM_THREADS, 1),
+                preferences.getBoolean(USE_XNNPACK, true),
+                preferences.getBoolean(USE_NNAPI, false)),
+            preferences.getFloat(LATENCY_MS, 0));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Times every combination, then persists and returns the fastest, or null if none works or the
+   * tuning was cancelled. Takes several seconds, during which nothing else should run inference.
+   */
+  public Choice tune() {
+    final List<String> assets = listAssets();
+    Choice best = null;
+    for (final Variant variant : variants) {
+      if (!assets.contains(variant.modelFile)) {
+        continue;
+      }
+      for (final Detector.Config config : getConfigs()) {
+        if (cancelled) {
+          LOGGER.i("Detector tuning cancelled");
+          return null;
+        }
+        final float latencyMs = time(variant, config);
+        if (cancelled) {
+          LOGGER.i("Detector tuning cancelled");
+          return null;
+        }
+        LOGGER.i("Detector %s with %s: %.1f ms", variant.modelFile, config, latencyMs);
+        if (latencyMs >= 0 && (best == null || latencyMs < best.latencyMs)) {
+          best = new Choice(variant, config, latencyMs);
+        }
+      }
+    }
+    if (best != null) {
+      LOGGER.i("Fastest detector: %s", best);
+      preferences
+          .edit()
+          .putString(KEY, key)
+          .putString(MODEL, best.variant.modelFile)
+          .putInt(NUM_THREADS, best.config.numThreads)
+          .putBoolean(USE_XNNPACK, best.config.useXNNPACK)
+          .putBoolean(USE_NNAPI, best.config.useNNAPI)
+          .putFloat(LATENCY_MS, best.latencyMs)
+          .apply();
+    }
+    return best;
+  }
+
+  /**
+   * Makes a running or later {@link #tune} return after the detection being timed. Can be called
+   * from any thread.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  private List<Detector.Config> getConfigs() {
+    final int cores = Runtime.getRuntime().availableProcessors();
+    final TreeSet<Integer> threadCounts = new TreeSet<>(Arrays.asList(1, 2, 4));
+    threadCounts.add(Math.min(cores, MAX_THREADS));
+    final List<Detector.Config> configs = new ArrayList<>();
+    for (final int numThreads : threadCounts) {
+      if (numThreads > cores) {
+        continue;
+      }
+      configs.add(new Detector.Config(numThreads, true, false));
+      configs.add(new Detector.Config(numThreads, false, false));
+    }
+    // NNAPI only uses the threads for the operations it falls back to the CPU for.
+    configs.add(new Detector.Config(Math.min(cores, 4), false, true));
+    return configs;
+  }
+
+  // Median latency of a combination, or -1 if the detector rejects it or tuning is cancelled.
+  private float time(final Variant variant, final Detector.Config config) {
+    final Detector detector;
+    try {
+      detector =
+          TFLiteObjectDetectionAPIModel.create(
+              context, variant.modelFile, labelFilename, inputSize, variant.isQuantized, config);
+    } catch (final IOException | RuntimeException e) {
+      LOGGER.w("Detector %s does not run with %s: %s", variant.modelFile, config, e);
+      return -1;
+    }
+    try {
+      final Detector.RecognitionList results = new Detector.RecognitionList();
+      final long[] times = new long[NUM_TIMED_RUNS];
+      if (detector.supportsTensorInput()) {
+        final ByteBuffer input = createInput(variant.isQuantized);
+        for (int i = 0; i < NUM_TIMED_RUNS && !cancelled; i++) {
+          final long start = SystemClock.elapsedRealtimeNanos();
+          detector.recognizeImage(input, results);
+          times[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+      } else {
+        final Bitmap input = createBitmap();
+        for (int i = 0; i < NUM_TIMED_RUNS && !cancelled; i++) {
+          final long start = SystemClock.elapsedRealtimeNanos();
+          detector.recognizeImage(input, results);
+          times[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+      }
+      if (cancelled) {
+        return -1;
+      }
+      Arrays.sort(times);
+      return times[NUM_TIMED_RUNS / 2] / 1e6f;
+    } catch (final RuntimeException e) {
+      LOGGER.w("Detector %s failed with %s: %s", variant.modelFile, config, e);
+      return -1;
+    } finally {
+      detector.close();
+    }
+  }
+
+  // Noise rather than a blank input, so that the detector does the same work as on real frames.
+  private ByteBuffer createInput(final boolean isQuantized) {
+    final int values = inputSize * inputSize * 3;
+    final ByteBuffer input =
+        ByteBuffer.allocateDirect(values * (isQuantized ? 1 : 4)).order(ByteOrder.nativeOrder());
+    final Random random = new Random(0);
+    for (int i = 0; i < values; i++) {
+      if (isQuantized) {
+        input.put((byte) random.nextInt(256));
+      } else {
+        input.putFloat(random.nextFloat() * 2 - 1);
+      }
+    }
+    input.rewind();
+    return input;
+  }
+
+  private Bitmap createBitmap() {
+    final int[] pixels = new int[inputSize * inputSize];
+    final Random random = new Random(0);
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+    }
+    return Bitmap.createBitmap(pixels, inputSize, inputSize, Bitmap.Config.ARGB_8888);
+  }
+
+  private List<String> listAssets() {
+    try {
+      final String[] assets = context.getAssets().list("");
+      return assets != null ? Arrays.asList(assets) : new ArrayList<>();
+    } catch (final IOException e) {
+      LOGGER.e(e, "Failed to list the assets");
+      return new ArrayList<>();
+    }
+  }
+
+  // The device build, the installation of the app and the packaged variants: tuning is redone
+  // after an OS or app update, which is how models change. Cheap enough for every launch, unlike
+  // hashing the models.
+  private String createKey() {
+    long lastUpdateTime = 0;
+    try {
+      lastUpdateTime =
+          context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+    } catch (final PackageManager.NameNotFoundException e) {
+      LOGGER.e(e, "Failed to read the app installation time");
+    }
+    final StringBuilder builder =
+        new StringBuilder(Build.FINGERPRINT).append('/').append(lastUpdateTime);
+    for (final Variant variant : variants) {
+      builder.append('/').append(variant.modelFile);
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageReader.OnImageAvailableListener;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Holds on to the latest frames of the high-resolution camera stream, so that keydots detected on
+ * the matching low-resolution frame can be read at full resolution.
+ *
+ * <p>Frames are only handed over between buffers, never copied, until {@link #copyLuminance}
+ * asks for a region of one. Frames of both streams that come from the same capture share their
+ * timestamp, so a frame is only used when its timestamp matches exactly: a neighbouring capture
+ * would not show the keydots where the detector saw them.
+ */
+public final class HighResFrameCache implements OnImageAvailableListener {
+  private static final Logger LOGGER = new Logger();
+
+  private final int capacity;
+  private final ArrayDeque<Image> frames;
+
+  /** @param capacity number of frames held, enough to cover the latency of detection. */
+  public HighResFrameCache(final int capacity) {
+    this.capacity = capacity;
+    this.frames = new ArrayDeque<>(capacity);
+  }
+
+  /** Buffers the {@link ImageReader} of the stream must have. */
+  public int getMaxImages() {
+    // One more to acquire the next frame while all others are held, before the oldest is closed,
+    // and one for acquireLatestImage to skip over.
+    return capacity + 2;
+  }
+
+  @Override
+  public synchronized void onImageAvailable(final ImageReader reader) {
+    final Image image = reader.acquireLatestImage();
+    if (image == null) {
+      return;
+    }
+    if (frames.size() == capacity) {
+      frames.removeFirst().close();
+    }
+    frames.addLast(image);
+  }
+
+  /**
+   * Copies {@code region} of the luminance plane of the frame captured at {@code timestampNs} to
+   * the start of {@code out}, with a row stride equal to the region width.
+   *
+   * @return false if no frame captured at {@code timestampNs} is held.
+   */
+  public synchronized boolean copyLuminance(
+      final long timestampNs, final Rect region, final ByteBuffer out) {
+    Image match = null;
+    for (final Image image : frames) {
+      if (image.getTimestamp() == timestampNs) {
+        match = image;
+        break;
+      }
+    }
+    if (match == null) {
+      LOGGER.w("No high resolution frame captured at %d ns", timestampNs);
+      return false;
+    }
+
+    final Image.Plane plane = match.getPlanes()[0];
+    final int rowStride = plane.getRowStride();
+    final ByteBuffer rows = plane.getBuffer().duplicate();
+    final ByteBuffer dst = out.duplicate();
+    dst.clear();
+    for (int y = region.top; y < region.bottom; ++y) {
+      rows.limit(y * rowStride + region.right).position(y * rowStride + region.left);
+      dst.put(rows);
+    }
+    return true;
+  }
+
+  /** Releases the held frames; must be called before the reader is closed. */
+  public synchronized void clear() {
+    while (!frames.isEmpty()) {
+      frames.removeFirst().close();
+    }
+  }
+}
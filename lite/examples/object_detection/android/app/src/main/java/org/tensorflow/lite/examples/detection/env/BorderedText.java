@@ -28,6 +28,8 @@ import java.util.Vector;
 public class BorderedText {
   private final Paint interiorPaint;
   private final Paint exteriorPaint;
+  // Reused by every drawText with a background, which runs for each box on every overlay draw.
+  private final Paint backgroundPaint = new Paint();
 
   private final float textSize;
 
@@ -83,10 +85,10 @@ public class BorderedText {
 
     float width = exteriorPaint.measureText(text);
     float textSize = exteriorPaint.getTextSize();
-    Paint paint = new Paint(bgPaint);
-    paint.setStyle(Paint.Style.FILL);
-    paint.setAlpha(160);
-    canvas.drawRect(posX, (posY + (int) (textSize)), (posX + (int) (width)), posY, paint);
+    backgroundPaint.set(bgPaint);
+    backgroundPaint.setStyle(Paint.Style.FILL);
+    backgroundPaint.setAlpha(160);
+    canvas.drawRect(posX, (posY + (int) (textSize)), (posX + (int) (width)), posY, backgroundPaint);
 
     canvas.drawText(text, posX, (posY + textSize), interiorPaint);
   }
@@ -0,0 +1,104 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import android.graphics.RectF;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records the Y plane of frames with the keydots detected on them, to be replayed on a host by the
+ * keydot benchmark ({@code keydot_bench}). Each frame is written as {@code frame_<n>.y}, the raw
+ * plane, and {@code frame_<n>.txt}, a header line {@code width height rowStride rotation}
+ * followed by one {@code left top right bottom} line per keydot, in frame coordinates and without
+ * the margin added for decoding.
+ *
+ * <p>Writing a 4K plane takes a while: only enable recording while collecting benchmark frames.
+ */
+public class FrameRecorder {
+  private static final Logger LOGGER = new Logger();
+
+  private final File dir;
+  private final int maxFrames;
+  private int recorded;
+
+  /** @param maxFrames frames to record before {@link #record} turns into a no-op. */
+  public FrameRecorder(final File dir, final int maxFrames) {
+    this.dir = dir;
+    this.maxFrames = maxFrames;
+  }
+
+  /**
+   * Writes a frame, unless {@code maxFrames} have been recorded already.
+   *
+   * @param luminance Y plane snapshot of {@code height} rows of {@code rowStride} bytes, from its
+   *     position on; the position is left unchanged.
+   * @param keydots detections mapped to frame coordinates.
+   */
+  public void record(
+      final ByteBuffer luminance,
+      final int width,
+      final int height,
+      final int rowStride,
+      final int rotation,
+      final List<RectF> keydots) {
+    if (recorded >= maxFrames) {
+      return;
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      LOGGER.w("Failed to create %s, not recording frames", dir);
+      recorded = maxFrames;
+      return;
+    }
+    final String name = String.format(Locale.US, "frame_%06d", recorded);
+    try (FileChannel channel = new FileOutputStream(new File(dir, name + ".y")).getChannel()) {
+      final ByteBuffer plane = luminance.duplicate();
+      plane.limit(plane.position() + rowStride * (height - 1) + width);
+      while (plane.hasRemaining()) {
+        channel.write(plane);
+      }
+      try (Writer writer =
+          new OutputStreamWriter(
+              new FileOutputStream(new File(dir, name + ".txt")), StandardCharsets.UTF_8)) {
+        writer.write(String.format(Locale.US, "%d %d %d %d%n", width, height, rowStride, rotation));
+        for (final RectF keydot : keydots) {
+          writer.write(
+              String.format(
+                  Locale.US,
+                  "%d %d %d %d%n",
+                  Math.round(keydot.left),
+                  Math.round(keydot.top),
+                  Math.round(keydot.right),
+                  Math.round(keydot.bottom)));
+        }
+      }
+      recorded++;
+      if (recorded == maxFrames) {
+        LOGGER.i("Recorded %d frames to %s", recorded, dir);
+      }
+    } catch (final IOException e) {
+      LOGGER.e(e, "Failed to record frame %s", name);
+    }
+  }
+}
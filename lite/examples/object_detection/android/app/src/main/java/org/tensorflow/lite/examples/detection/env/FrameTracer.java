@@ -0,0 +1,435 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * End-to-end tracing of the frames going through the detection pipeline, from their capture by
+ * the sensor to the drawing of their boxes.
+ *
+ * <p>Each frame is identified by an id. The time it spends in each {@link Stage} is recorded, as
+ * async sections of the platform trace on Android 10 and up (visible in Perfetto and systrace, one
+ * track per stage, the frame id being the cookie) and in a buffer of the latest frames, which
+ * {@link #exportTrace} writes in the Chrome JSON trace format that Perfetto UI opens. Frames that
+ * never make it to the screen are counted by {@link Drop} reason.
+ *
+ * <p>Latencies of every frame go into histograms, see {@link #getSummary}. Recording does not
+ * allocate, and all methods are no-ops when tracing is disabled.
+ */
+public final class FrameTracer {
+  private static final Logger LOGGER = new Logger();
+
+  /** Pipeline stages of a frame. A stage may be entered several times, its durations add up. */
+  public enum Stage {
+    /** From the sensor timestamp to the start of processing. */
+    CAPTURE,
+    /** Copies and conversions of the camera frame. */
+    CONVERT,
+    /** Resampling of the frame to the detector input. */
+    CROP,
+    INFER,
+    DECODE,
+    /** Drawing of the boxes of the frame on the overlay. */
+    DRAW;
+
+    final String label = name().toLowerCase(Locale.US);
+    final String traceName = "frame:" + label;
+  }
+
+  /** Why a frame did not make it to the screen. */
+  public enum Drop {
+    /** Arrived while the camera callback still held the previous frame. */
+    CAMERA_BUSY,
+    /** Arrived while all pipeline slots were in use. */
+    NO_FREE_SLOT,
+    /** Could not be handed to the next stage, the activity being paused. */
+    PAUSED,
+    /**
+     * Processed, but a later frame was drawn before it. Counted once the frame leaves the buffer of
+     * held frames.
+     */
+    NOT_DRAWN;
+
+    final String label = name().toLowerCase(Locale.US);
+    final String counterName = "drops:" + label;
+  }
+
+  // Latency histograms have 1 ms buckets up to this, and an overflow bucket.
+  private static final int HISTOGRAM_MS = 500;
+  // Index of the end-to-end latency among the histograms, after those of the stages.
+  private static final int END_TO_END = Stage.values().length;
+
+  private static final class FrameRecord {
+    long frameId = -1;
+    long startNs;
+    final long[] stageStartNs = new long[Stage.values().length];
+    final long[] stageDurationNs = new long[Stage.values().length];
+    final long[] stageEnteredNs = new long[Stage.values().length];
+    long endNs;
+    boolean dropped;
+  }
+
+  private final boolean enabled;
+  private final FrameRecord[] records;
+  private final long[] drops = new long[Drop.values().length];
+  private final int[][] histograms = new int[END_TO_END + 1][HISTOGRAM_MS + 1];
+  private long framesTraced;
+
+  /** @param numFrames frames kept for {@link #exportTrace}; 0 disables tracing. */
+  public FrameTracer(final int numFrames) {
+    enabled = numFrames > 0;
+    records = new FrameRecord[numFrames];
+    for (int i = 0; i < numFrames; i++) {
+      records[i] = new FrameRecord();
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts tracing a frame. Ids must increase from frame to frame.
+   *
+   * @param sensorTimestampNs capture time from the camera, or 0 if unknown, in which case the
+   *     {@link Stage#CAPTURE} stage is not recorded.
+   */
+  public synchronized void beginFrame(final long frameId, final long sensorTimestampNs) {
+    if (!enabled) {
+      return;
+    }
+    final long now = System.nanoTime();
+    final FrameRecord record = records[(int) (frameId % records.length)];
+    if (record.frameId >= 0 && record.endNs == 0) {
+      countDrop(Drop.NOT_DRAWN);
+      endAsyncSections(record);
+    }
+    record.frameId = frameId;
+    record.endNs = 0;
+    record.dropped = false;
+    for (int i = 0; i < record.stageDurationNs.length; i++) {
+      record.stageStartNs[i] = 0;
+      record.stageDurationNs[i] = 0;
+      record.stageEnteredNs[i] = 0;
+    }
+    record.startNs = now;
+    if (sensorTimestampNs != 0) {
+      final long captureNs = toNanoTime(sensorTimestampNs, now);
+      if (captureNs < now) {
+        final int capture = Stage.CAPTURE.ordinal();
+        record.startNs = captureNs;
+        record.stageStartNs[capture] = captureNs;
+        record.stageDurationNs[capture] = now - captureNs;
+        addToHistogram(capture, now - captureNs);
+      }
+    }
+    framesTraced++;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      Trace.beginAsyncSection("frame", (int) frameId);
+    }
+  }
+
+  /** Enters a stage of a frame; must be followed by {@link #endStage} on the same thread. */
+  public synchronized void beginStage(final long frameId, final Stage stage) {
+    final FrameRecord record = find(frameId);
+    if (record == null) {
+      return;
+    }
+    final long now = System.nanoTime();
+    final int index = stage.ordinal();
+    if (record.stageStartNs[index] == 0) {
+      record.stageStartNs[index] = now;
+    }
+    record.stageEnteredNs[index] = now;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      Trace.beginAsyncSection(stage.traceName, (int) frameId);
+    }
+  }
+
+  public synchronized void endStage(final long frameId, final Stage stage) {
+    final FrameRecord record = find(frameId);
+    if (record == null || record.stageEnteredNs[stage.ordinal()] == 0) {
+      return;
+    }
+    final int index = stage.ordinal();
+    record.stageDurationNs[index] += System.nanoTime() - record.stageEnteredNs[index];
+    record.stageEnteredNs[index] = 0;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      Trace.endAsyncSection(stage.traceName, (int) frameId);
+    }
+  }
+
+  /**
+   * Ends a frame once its boxes are on screen, recording its stage and end-to-end latencies.
+   * Ignored if the frame already ended or is no longer held.
+   */
+  public synchronized void endFrame(final long frameId) {
+    final FrameRecord record = find(frameId);
+    if (record == null) {
+      return;
+    }
+    record.endNs = System.nanoTime();
+    // The capture was recorded when the frame began.
+    for (int i = Stage.CAPTURE.ordinal() + 1; i < END_TO_END; i++) {
+      if (record.stageStartNs[i] != 0) {
+        addToHistogram(i, record.stageDurationNs[i]);
+      }
+    }
+    addToHistogram(END_TO_END, record.endNs - record.startNs);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      Trace.endAsyncSection("frame", (int) frameId);
+    }
+  }
+
+  /** Counts a frame dropped for {@code reason} before it was given an id. */
+  public synchronized void onDropped(final Drop reason) {
+    if (enabled) {
+      countDrop(reason);
+    }
+  }
+
+  /** Counts a frame dropped for {@code reason} after {@link #beginFrame}, and ends it. */
+  public synchronized void onDropped(final long frameId, final Drop reason) {
+    final FrameRecord record = find(frameId);
+    if (record == null) {
+      return;
+    }
+    countDrop(reason);
+    record.endNs = System.nanoTime();
+    record.dropped = true;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      Trace.endAsyncSection("frame", (int) frameId);
+    }
+  }
+
+  /** Frame and drop counts, and the latency percentiles and histogram of every stage. */
+  public synchronized String getSummary() {
+    final StringBuilder summary = new StringBuilder();
+    summary.append(String.format(Locale.US, "%d frames traced, dropped:", framesTraced));
+    for (final Drop reason : Drop.values()) {
+      summary.append(String.format(Locale.US, " %s %d", reason.label, drops[reason.ordinal()]));
+    }
+    summary.append(
+        String.format(
+            Locale.US,
+            "\n%-12s %6s %6s %6s %6s %6s %6s (ms)",
+            "stage", "count", "mean", "p50", "p90", "p99", "max"));
+    for (int i = 0; i <= END_TO_END; i++) {
+      appendStats(summary, i == END_TO_END ? "end-to-end" : Stage.values()[i].label, i);
+    }
+    summary.append("\nhistograms (ms):        <1    <2    <4    <8   <16   <32   <64  <128  <256");
+    summary.append("  more");
+    for (int i = 0; i <= END_TO_END; i++) {
+      appendHistogram(summary, i == END_TO_END ? "end-to-end" : Stage.values()[i].label, i);
+    }
+    return summary.toString();
+  }
+
+  /**
+   * Writes the held frames in the Chrome JSON trace format, one track per stage, and the summary
+   * to {@code <file>.txt}.
+   */
+  public void exportTrace(final File file) {
+    if (!enabled) {
+      return;
+    }
+    final String summary;
+    final StringBuilder json = new StringBuilder("{\"traceEvents\":[\n");
+    synchronized (this) {
+      summary = getSummary();
+      appendThreadName(json, 0, "frame");
+      for (final Stage stage : Stage.values()) {
+        appendThreadName(json, stage.ordinal() + 1, stage.traceName);
+      }
+      for (final FrameRecord record : records) {
+        if (record.frameId < 0 || record.endNs == 0 || record.dropped) {
+          continue;
+        }
+        appendEvent(json, "frame", 0, record.startNs, record.endNs - record.startNs, record.frameId);
+        for (final Stage stage : Stage.values()) {
+          final int index = stage.ordinal();
+          if (record.stageStartNs[index] != 0) {
+            appendEvent(json, stage.traceName, index + 1, record.stageStartNs[index],
+                record.stageDurationNs[index], record.frameId);
+          }
+        }
+      }
+    }
+    // Drop the last separator, JSON allows no trailing comma.
+    json.setLength(json.length() - 2);
+    json.append("\n]}\n");
+
+    try (Writer writer =
+            new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        Writer summaryWriter =
+            new OutputStreamWriter(
+                new FileOutputStream(file.getPath() + ".txt"), StandardCharsets.UTF_8)) {
+      writer.write(json.toString());
+      summaryWriter.write(summary);
+      LOGGER.i("Wrote frame trace to %s", file);
+    } catch (final IOException e) {
+      LOGGER.e(e, "Failed to write frame trace to %s", file);
+    }
+  }
+
+  // Must hold the lock.
+  private FrameRecord find(final long frameId) {
+    if (!enabled || frameId < 0) {
+      return null;
+    }
+    final FrameRecord record = records[(int) (frameId % records.length)];
+    return record.frameId == frameId && record.endNs == 0 ? record : null;
+  }
+
+  // Ends the platform trace sections still open for a frame that will never end. Must hold the
+  // lock.
+  private static void endAsyncSections(final FrameRecord record) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+      return;
+    }
+    final int cookie = (int) record.frameId;
+    for (final Stage stage : Stage.values()) {
+      if (record.stageEnteredNs[stage.ordinal()] != 0) {
+        Trace.endAsyncSection(stage.traceName, cookie);
+      }
+    }
+    Trace.endAsyncSection("frame", cookie);
+  }
+
+  // Must hold the lock.
+  private void countDrop(final Drop reason) {
+    final long count = ++drops[reason.ordinal()];
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      Trace.setCounter(reason.counterName, count);
+    }
+  }
+
+  // Must hold the lock.
+  private void addToHistogram(final int histogram, final long durationNs) {
+    final int ms = (int) Math.min(HISTOGRAM_MS, durationNs / 1_000_000L);
+    histograms[histogram][ms]++;
+  }
+
+  private void appendStats(final StringBuilder out, final String name, final int histogram) {
+    final int[] buckets = histograms[histogram];
+    long count = 0;
+    long sum = 0;
+    int max = 0;
+    for (int ms = 0; ms < buckets.length; ms++) {
+      count += buckets[ms];
+      // Bucket ms holds latencies in [ms, ms + 1), counted at their middle.
+      sum += buckets[ms] * (2L * ms + 1);
+      if (buckets[ms] > 0) {
+        max = ms + 1;
+      }
+    }
+    if (count == 0) {
+      return;
+    }
+    out.append(
+        String.format(
+            Locale.US,
+            "\n%-12s %6d %6.1f %6d %6d %6d %6d%s",
+            name,
+            count,
+            sum / (2.0 * count),
+            percentile(buckets, count, 0.5),
+            percentile(buckets, count, 0.9),
+            percentile(buckets, count, 0.99),
+            max,
+            max > HISTOGRAM_MS ? "+" : ""));
+  }
+
+  // Counts in power of two buckets of milliseconds.
+  private void appendHistogram(final StringBuilder out, final String name, final int histogram) {
+    final int[] buckets = histograms[histogram];
+    out.append(String.format(Locale.US, "\n%-20s", name));
+    int upper = 1;
+    long count = 0;
+    for (int ms = 0; ms < buckets.length; ms++) {
+      if (ms == upper && upper < 512) {
+        out.append(String.format(Locale.US, "%6d", count));
+        upper *= 2;
+        count = 0;
+      }
+      count += buckets[ms];
+    }
+    out.append(String.format(Locale.US, "%6d", count));
+  }
+
+  // Upper bound, in ms, of the bucket holding the given fraction of the latencies, like the max.
+  private static int percentile(final int[] buckets, final long count, final double fraction) {
+    final long rank = (long) Math.ceil(count * fraction);
+    long seen = 0;
+    for (int ms = 0; ms < buckets.length; ms++) {
+      seen += buckets[ms];
+      if (seen >= rank) {
+        return ms + 1;
+      }
+    }
+    return buckets.length;
+  }
+
+  private static void appendThreadName(final StringBuilder out, final int track, final String name) {
+    out.append(
+        String.format(
+            Locale.US,
+            "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,"
+                + "\"args\":{\"name\":\"%s\"}},\n",
+            track,
+            name));
+  }
+
+  private static void appendEvent(
+      final StringBuilder out,
+      final String name,
+      final int track,
+      final long startNs,
+      final long durationNs,
+      final long frameId) {
+    out.append(
+        String.format(
+            Locale.US,
+            "{\"name\":\"%s\",\"cat\":\"frame\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,"
+                + "\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"frame\":%d}},\n",
+            name,
+            track,
+            startNs / 1000.0,
+            durationNs / 1000.0,
+            frameId));
+  }
+
+  // Camera timestamps are in the elapsedRealtime clock or in the monotonic clock of nanoTime,
+  // depending on the device (SENSOR_INFO_TIMESTAMP_SOURCE): the frame was captured just before
+  // now, so the clock whose current time is closest is the one.
+  private static long toNanoTime(final long sensorTimestampNs, final long nowNs) {
+    final long realtimeNs = SystemClock.elapsedRealtimeNanos();
+    if (Math.abs(realtimeNs - sensorTimestampNs) < Math.abs(nowNs - sensorTimestampNs)) {
+      return sensorTimestampNs - realtimeNs + nowNs;
+    }
+    return sensorTimestampNs;
+  }
+}
@@ -0,0 +1,206 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel drop-in for the YUV420 to ARGB8888 converters of {@link ImageUtils}.
+ *
+ * <p>The frame is split into horizontal stripes starting on even rows, so that no chroma row is
+ * shared between stripes, and each stripe is converted on a fixed pool of workers, the calling
+ * thread taking the first one. Pixels go through lookup tables instead of the multiplications of
+ * {@code ImageUtils.YUV2RGB}; the output is bit-exact with the scalar converters.
+ */
+public class YuvConverter implements Closeable {
+  // Per-component terms of ImageUtils.YUV2RGB, indexed by the unsigned 8-bit sample.
+  private static final int[] Y_TERM = new int[256];
+  private static final int[] R_V_TERM = new int[256];
+  private static final int[] G_V_TERM = new int[256];
+  private static final int[] G_U_TERM = new int[256];
+  private static final int[] B_U_TERM = new int[256];
+
+  static {
+    for (int i = 0; i < 256; ++i) {
+      Y_TERM[i] = 1192 * ((i - 16) < 0 ? 0 : (i - 16));
+      R_V_TERM[i] = 1634 * (i - 128);
+      G_V_TERM[i] = -833 * (i - 128);
+      G_U_TERM[i] = -400 * (i - 128);
+      B_U_TERM[i] = 2066 * (i - 128);
+    }
+  }
+
+  private final int numStripes;
+  private final ExecutorService executor;
+  private final Future<?>[] futures;
+
+  /** @param numThreads number of stripes a frame is split into, including the calling thread. */
+  public YuvConverter(final int numThreads) {
+    numStripes = Math.max(1, numThreads);
+    final AtomicInteger threadCount = new AtomicInteger();
+    executor =
+        numStripes > 1
+            ? Executors.newFixedThreadPool(
+                numStripes - 1,
+                r -> {
+                  final Thread thread =
+                      new Thread(r, "yuv-convert-" + threadCount.getAndIncrement());
+                  thread.setDaemon(true);
+                  return thread;
+                })
+            : null;
+    futures = new Future<?>[numStripes];
+  }
+
+  /** Same as {@link ImageUtils#convertYUV420ToARGB8888}. Not reentrant. */
+  public void convertYUV420ToARGB8888(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    runStriped(
+        height,
+        (startRow, endRow) ->
+            convertRows(
+                yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride, out, startRow,
+                endRow));
+  }
+
+  /** Same as {@link ImageUtils#convertYUV420SPToARGB8888}. Not reentrant. */
+  public void convertYUV420SPToARGB8888(
+      final byte[] input, final int width, final int height, final int[] output) {
+    runStriped(
+        height,
+        (startRow, endRow) -> convertRowsSP(input, width, height, output, startRow, endRow));
+  }
+
+  private interface Stripe {
+    void convert(int startRow, int endRow);
+  }
+
+  private void runStriped(final int height, final Stripe stripe) {
+    // Even number of rows per stripe, so that stripes start on a new chroma row.
+    final int rowsPerStripe = ((height + numStripes - 1) / numStripes + 1) & ~1;
+    int numSubmitted = 0;
+    for (int startRow = rowsPerStripe; startRow < height; startRow += rowsPerStripe) {
+      final int start = startRow;
+      final int end = Math.min(height, startRow + rowsPerStripe);
+      futures[numSubmitted++] = executor.submit(() -> stripe.convert(start, end));
+    }
+    stripe.convert(0, Math.min(height, rowsPerStripe));
+
+    boolean interrupted = false;
+    try {
+      for (int i = 0; i < numSubmitted; ++i) {
+        while (true) {
+          try {
+            futures[i].get();
+            break;
+          } catch (final InterruptedException e) {
+            // The output must be complete when returning: keep waiting for the stripe.
+            interrupted = true;
+          }
+        }
+        futures[i] = null;
+      }
+    } catch (final ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void convertRows(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int width,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out,
+      final int startRow,
+      final int endRow) {
+    int yp = startRow * width;
+    for (int j = startRow; j < endRow; j++) {
+      final int pY = yRowStride * j;
+      final int pUV = uvRowStride * (j >> 1);
+
+      for (int i = 0; i < width; i++) {
+        final int uvOffset = pUV + (i >> 1) * uvPixelStride;
+        out[yp++] = yuvToRgb(0xff & yData[pY + i], 0xff & uData[uvOffset], 0xff & vData[uvOffset]);
+      }
+    }
+  }
+
+  private static void convertRowsSP(
+      final byte[] input,
+      final int width,
+      final int height,
+      final int[] output,
+      final int startRow,
+      final int endRow) {
+    final int frameSize = width * height;
+    for (int j = startRow, yp = startRow * width; j < endRow; j++) {
+      int uvp = frameSize + (j >> 1) * width;
+      int u = 0;
+      int v = 0;
+
+      for (int i = 0; i < width; i++, yp++) {
+        final int y = 0xff & input[yp];
+        if ((i & 1) == 0) {
+          v = 0xff & input[uvp++];
+          u = 0xff & input[uvp++];
+        }
+
+        output[yp] = yuvToRgb(y, u, v);
+      }
+    }
+  }
+
+  /** Lookup-table version of {@code ImageUtils.YUV2RGB}, producing the same pixels. */
+  static int yuvToRgb(final int y, final int u, final int v) {
+    final int yTerm = Y_TERM[y];
+    int r = yTerm + R_V_TERM[v];
+    int g = yTerm + G_V_TERM[v] + G_U_TERM[u];
+    int b = yTerm + B_U_TERM[u];
+
+    r = r > ImageUtils.kMaxChannelValue ? ImageUtils.kMaxChannelValue : (r < 0 ? 0 : r);
+    g = g > ImageUtils.kMaxChannelValue ? ImageUtils.kMaxChannelValue : (g < 0 ? 0 : g);
+    b = b > ImageUtils.kMaxChannelValue ? ImageUtils.kMaxChannelValue : (b < 0 ? 0 : b);
+
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+}
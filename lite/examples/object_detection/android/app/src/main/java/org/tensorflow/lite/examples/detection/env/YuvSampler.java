@@ -0,0 +1,167 @@
+/* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import android.graphics.Matrix;
+import java.nio.ByteBuffer;
+
+/**
+ * Samples a YUV420 camera frame directly at the detector input resolution, writing the model input
+ * tensor in one pass: no full-frame ARGB conversion and no intermediate cropped bitmap.
+ *
+ * <p>The crop, scale and rotation of the frame-to-crop transform are resolved once into a source
+ * pixel per output pixel (nearest neighbour, like drawing the frame through the transform without
+ * filtering), so a frame costs a few lookups per output pixel only. Colors match {@link
+ * ImageUtils#convertYUV420ToARGB8888}.
+ */
+public class YuvSampler {
+  private final int frameWidth;
+  private final int frameHeight;
+  private final boolean quantized;
+  // Source pixel coordinates of every output pixel, in row-major output order.
+  private final int[] srcX;
+  private final int[] srcY;
+  // Normalized value of every 8-bit channel value, for float models.
+  private final float[] normalized = new float[256];
+
+  // Offsets into the planes for the layout they were last computed for.
+  private int[] yIndex;
+  private int[] uvIndex;
+  private int yRowStride = -1;
+  private int uvRowStride = -1;
+  private int uvPixelStride = -1;
+  private boolean nv21;
+
+  /**
+   * @param frameWidth width of the camera frame.
+   * @param frameHeight height of the camera frame.
+   * @param outputSize width and height of the model input.
+   * @param cropToFrameTransform maps model input coordinates back to frame coordinates.
+   * @param quantized writes one byte per channel if true, otherwise one float per channel
+   *     normalized as {@code (value - mean) / std}.
+   */
+  public YuvSampler(
+      final int frameWidth,
+      final int frameHeight,
+      final int outputSize,
+      final Matrix cropToFrameTransform,
+      final boolean quantized,
+      final float mean,
+      final float std) {
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    this.quantized = quantized;
+
+    final int numPixels = outputSize * outputSize;
+    final float[] points = new float[2 * numPixels];
+    for (int i = 0, k = 0; i < outputSize; ++i) {
+      for (int j = 0; j < outputSize; ++j) {
+        points[k++] = j + 0.5f;
+        points[k++] = i + 0.5f;
+      }
+    }
+    cropToFrameTransform.mapPoints(points);
+
+    srcX = new int[numPixels];
+    srcY = new int[numPixels];
+    for (int k = 0; k < numPixels; ++k) {
+      srcX[k] = clamp((int) Math.floor(points[2 * k]), frameWidth - 1);
+      srcY[k] = clamp((int) Math.floor(points[2 * k + 1]), frameHeight - 1);
+    }
+
+    for (int value = 0; value < 256; ++value) {
+      normalized[value] = (value - mean) / std;
+    }
+  }
+
+  /** Returns the number of bytes written by each call to {@code sample}. */
+  public int getOutputByteSize() {
+    return srcX.length * 3 * (quantized ? 1 : 4);
+  }
+
+  /** Samples a frame with separate Y, U and V planes, as delivered by the Camera2 API. */
+  public void samplePlanar(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ByteBuffer out) {
+    if (nv21
+        || yRowStride != this.yRowStride
+        || uvRowStride != this.uvRowStride
+        || uvPixelStride != this.uvPixelStride) {
+      computeIndices(false, yRowStride, uvRowStride, uvPixelStride);
+    }
+    sample(yData, uData, 0, vData, 0, out);
+  }
+
+  /** Samples an NV21 frame, as delivered by the legacy camera API. */
+  public void sampleNv21(final byte[] data, final ByteBuffer out) {
+    if (!nv21) {
+      computeIndices(true, frameWidth, frameWidth, 2);
+    }
+    // V comes first in each interleaved chroma pair.
+    sample(data, data, 1, data, 0, out);
+  }
+
+  private void computeIndices(
+      final boolean nv21, final int yRowStride, final int uvRowStride, final int uvPixelStride) {
+    if (yIndex == null) {
+      yIndex = new int[srcX.length];
+      uvIndex = new int[srcX.length];
+    }
+    final int uvStart = nv21 ? frameWidth * frameHeight : 0;
+    for (int k = 0; k < srcX.length; ++k) {
+      yIndex[k] = srcY[k] * yRowStride + srcX[k];
+      uvIndex[k] = uvStart + (srcY[k] >> 1) * uvRowStride + (srcX[k] >> 1) * uvPixelStride;
+    }
+    this.nv21 = nv21;
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+  }
+
+  private void sample(
+      final byte[] yData,
+      final byte[] uData,
+      final int uOffset,
+      final byte[] vData,
+      final int vOffset,
+      final ByteBuffer out) {
+    out.rewind();
+    for (int k = 0; k < yIndex.length; ++k) {
+      final int uv = uvIndex[k];
+      final int pixel =
+          ImageUtils.YUV2RGB(
+              0xff & yData[yIndex[k]], 0xff & uData[uv + uOffset], 0xff & vData[uv + vOffset]);
+      if (quantized) {
+        out.put((byte) ((pixel >> 16) & 0xFF));
+        out.put((byte) ((pixel >> 8) & 0xFF));
+        out.put((byte) (pixel & 0xFF));
+      } else {
+        out.putFloat(normalized[(pixel >> 16) & 0xFF]);
+        out.putFloat(normalized[(pixel >> 8) & 0xFF]);
+        out.putFloat(normalized[pixel & 0xFF]);
+      }
+    }
+  }
+
+  private static int clamp(final int value, final int max) {
+    return value < 0 ? 0 : (value > max ? max : value);
+  }
+}
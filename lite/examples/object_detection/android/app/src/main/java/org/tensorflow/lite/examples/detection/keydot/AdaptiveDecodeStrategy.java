@@ -0,0 +1,416 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.keydot;
+
+import android.graphics.Rect;
+import com.example.zxingcpp.BarcodeReader;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Decodes keydots with several {@link KeydotDecoder} backends, trying the cheapest attempt first.
+ *
+ * <p>Attempts escalate through the {@link Level}s and only go to the next one when all backends
+ * failed on the current one. Within a level the backends are ordered by expected cost: their mean
+ * latency on that level divided by their success rate on it, as measured so far. The order thus
+ * follows the backends' actual performance on the device and the labels in view. Every {@link
+ * #EXPLORE_INTERVAL}th decode starts with another backend, so that the statistics of all of them
+ * stay current.
+ *
+ * <p>When racing, the two cheapest backends run the first level concurrently. The first result
+ * wins and the other attempt is cancelled; a native decode that has already started cannot be
+ * interrupted, so it runs to completion and its result is dropped. Such a decode can outlive
+ * {@link #decode}, and holds its own reference to the luminance plane until it finishes; {@link
+ * #getNumLateAttempts} counts them.
+ *
+ * <p>{@link #decode} may be called from several threads at once, every thread uses its own
+ * decoders.
+ */
+public final class AdaptiveDecodeStrategy implements Closeable {
+  private static final Logger LOGGER = new Logger();
+
+  /** Decodes between two that start with a backend other than the cheapest one. */
+  private static final int EXPLORE_INTERVAL = 32;
+  /** Weight of the newest sample in the mean latencies. */
+  private static final double LATENCY_SMOOTHING = 0.1;
+  /** How often a waiting race checks whether its decode was abandoned. */
+  private static final long RACE_POLL_MS = 5;
+
+  /** Decode attempts, in escalation order. */
+  public enum Level {
+    /** The backend's fast path, with the requested polarity and rotation. */
+    PLAIN,
+    /** Trying harder, for damaged or blurred labels. */
+    TRY_HARDER,
+    /** Trying harder with the opposite polarity, for labels printed dark on light. */
+    INVERTED,
+    /** Trying harder rotated by another 90 degrees. */
+    ROTATED,
+  }
+
+  private static final class Stats {
+    private long attempts;
+    private long successes;
+    private double latencyMs;
+
+    synchronized void record(final double elapsedMs, final boolean success) {
+      latencyMs += attempts == 0 ? elapsedMs : LATENCY_SMOOTHING * (elapsedMs - latencyMs);
+      attempts++;
+      if (success) {
+        successes++;
+      }
+    }
+
+    /** Expected time to a successful decode; 0 before the first attempt, so it gets tried. */
+    synchronized double expectedCostMs() {
+      // The success rate is smoothed, so that a single failure does not make a backend unusable.
+      return latencyMs * (attempts + 2) / (successes + 1);
+    }
+
+    @Override
+    public synchronized String toString() {
+      return String.format(Locale.US, "%d/%d ok, %.1f ms", successes, attempts, latencyMs);
+    }
+  }
+
+  private final class Backend {
+    final KeydotDecoder.Factory factory;
+    final ThreadLocal<KeydotDecoder> decoders;
+    final Stats[] stats = new Stats[Level.values().length];
+
+    Backend(final KeydotDecoder.Factory factory) {
+      this.factory = factory;
+      decoders =
+          ThreadLocal.withInitial(
+              () -> {
+                final KeydotDecoder decoder = factory.create();
+                allDecoders.add(decoder);
+                return decoder;
+              });
+      for (int i = 0; i < stats.length; i++) {
+        stats[i] = new Stats();
+      }
+    }
+  }
+
+  private final List<Backend> backends = new ArrayList<>();
+  private final Level lastLevel;
+  // Runs both sides of a race; null when not racing.
+  private final ExecutorService raceExecutor;
+  private final List<KeydotDecoder> allDecoders = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger decodeCount = new AtomicInteger();
+  // Raced attempts still running after the decode they were started for returned.
+  private final AtomicInteger lateAttempts = new AtomicInteger();
+
+  /**
+   * @param factories the backends to decode with.
+   * @param lastLevel last level attempts escalate to.
+   * @param race whether the two cheapest backends race on the first level.
+   * @param numThreads number of threads that call {@link #decode} concurrently.
+   */
+  public AdaptiveDecodeStrategy(
+      final List<KeydotDecoder.Factory> factories,
+      final Level lastLevel,
+      final boolean race,
+      final int numThreads) {
+    if (factories.isEmpty()) {
+      throw new IllegalArgumentException("At least one keydot decoder backend is required");
+    }
+    for (final KeydotDecoder.Factory factory : factories) {
+      backends.add(new Backend(factory));
+    }
+    this.lastLevel = lastLevel;
+    if (race && backends.size() > 1) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      raceExecutor =
+          Executors.newFixedThreadPool(
+              2 * numThreads, r -> new Thread(r, "keydot-race-" + threadCount.getAndIncrement()));
+    } else {
+      raceExecutor = null;
+    }
+  }
+
+  /**
+   * Decodes {@code roi} of a luminance plane, escalating until a backend succeeds or all levels
+   * failed.
+   *
+   * @param abandoned set by the caller when it no longer needs the result; stops the escalation.
+   * @param luminanceUsers reference count of {@code luminance}, which must not be reused until it
+   *     drops to zero. Raced attempts still running when this method returns hold a reference.
+   * @return the decoded keydot, or null.
+   */
+  public BarcodeReader.Result decode(
+      final ByteBuffer luminance,
+      final int width,
+      final int height,
+      final int rowStride,
+      final Rect roi,
+      final int rotation,
+      final boolean invert,
+      final AtomicBoolean abandoned,
+      final AtomicInteger luminanceUsers) {
+    final int count = decodeCount.incrementAndGet();
+    final Attempt attempt =
+        new Attempt(
+            luminance, width, height, rowStride, roi, rotation, invert, abandoned, luminanceUsers);
+    for (final Level level : Level.values()) {
+      if (level.ordinal() > lastLevel.ordinal()) {
+        break;
+      }
+      final List<Backend> order = rank(level);
+      if (level == Level.PLAIN && count % EXPLORE_INTERVAL == 0 && order.size() > 1) {
+        // Cycle through the other backends as the first one to try.
+        Collections.swap(order, 0, 1 + (count / EXPLORE_INTERVAL) % (order.size() - 1));
+      }
+      int next = 0;
+      if (level == Level.PLAIN && raceExecutor != null) {
+        final BarcodeReader.Result result = race(order.get(0), order.get(1), attempt);
+        if (result != null) {
+          return result;
+        }
+        next = 2;
+      }
+      for (; next < order.size(); next++) {
+        if (abandoned.get()) {
+          return null;
+        }
+        final BarcodeReader.Result result = attempt.run(order.get(next), level);
+        if (result != null) {
+          return result;
+        }
+      }
+    }
+    return null;
+  }
+
+  private List<Backend> rank(final Level level) {
+    final List<Backend> order = new ArrayList<>(backends);
+    final double[] costs = new double[order.size()];
+    for (int i = 0; i < costs.length; i++) {
+      costs[i] = order.get(i).stats[level.ordinal()].expectedCostMs();
+    }
+    // Insertion sort on a snapshot of the costs, as they change under concurrent decodes.
+    for (int i = 1; i < costs.length; i++) {
+      for (int j = i; j > 0 && costs[j] < costs[j - 1]; j--) {
+        final double cost = costs[j];
+        costs[j] = costs[j - 1];
+        costs[j - 1] = cost;
+        Collections.swap(order, j, j - 1);
+      }
+    }
+    return order;
+  }
+
+  private BarcodeReader.Result race(
+      final Backend first, final Backend second, final Attempt attempt) {
+    final Race race = new Race();
+    final CompletionService<BarcodeReader.Result> completion =
+        new ExecutorCompletionService<>(raceExecutor);
+    final List<Future<BarcodeReader.Result>> futures = new ArrayList<>(2);
+    for (final Backend backend : new Backend[] {first, second}) {
+      futures.add(
+          completion.submit(
+              () -> {
+                // Taken before checking the decision, which is made before decode() returns, so
+                // that the plane cannot be reused while it is read here. A task cancelled before
+                // it starts never reads it.
+                attempt.luminanceUsers.incrementAndGet();
+                try {
+                  if (!race.start()) {
+                    return null;
+                  }
+                  try {
+                    return attempt.run(backend, Level.PLAIN);
+                  } finally {
+                    race.finish();
+                  }
+                } finally {
+                  attempt.luminanceUsers.decrementAndGet();
+                }
+              }));
+    }
+    try {
+      int remaining = futures.size();
+      while (remaining > 0 && !attempt.abandoned.get()) {
+        final Future<BarcodeReader.Result> done =
+            completion.poll(RACE_POLL_MS, TimeUnit.MILLISECONDS);
+        if (done == null) {
+          continue;
+        }
+        remaining--;
+        final BarcodeReader.Result result = done.get();
+        if (result != null) {
+          return result;
+        }
+      }
+    } catch (final ExecutionException e) {
+      LOGGER.e(e.getCause(), "Keydot decode failed");
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      race.decide();
+      for (final Future<BarcodeReader.Result> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the number of raced attempts that are still running although their {@link #decode}
+   * returned, as the work they hold up is not visible to the callers otherwise.
+   */
+  public int getNumLateAttempts() {
+    return lateAttempts.get();
+  }
+
+  /** Per-backend and per-level statistics, for the logs. */
+  public String getStatString() {
+    final StringBuilder builder = new StringBuilder();
+    for (final Backend backend : backends) {
+      builder.append(backend.factory.getName()).append(':');
+      for (final Level level : Level.values()) {
+        if (level.ordinal() > lastLevel.ordinal()) {
+          break;
+        }
+        builder
+            .append(' ')
+            .append(level.name().toLowerCase(Locale.US))
+            .append(" [")
+            .append(backend.stats[level.ordinal()])
+            .append(']');
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  /** Closes the decoders. The threads that called {@link #decode} must be done. */
+  @Override
+  public void close() {
+    if (raceExecutor != null) {
+      raceExecutor.shutdownNow();
+      try {
+        if (!raceExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+          LOGGER.w("Keydot race workers failed to terminate");
+          return;
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    synchronized (allDecoders) {
+      for (final KeydotDecoder decoder : allDecoders) {
+        decoder.close();
+      }
+      allDecoders.clear();
+    }
+  }
+
+  /** The attempts of one race, which outlive it when they are running once it is decided. */
+  private final class Race {
+    private boolean decided;
+    private int running;
+
+    // Returns false if the race is already decided, in which case the attempt must not run.
+    synchronized boolean start() {
+      if (decided) {
+        return false;
+      }
+      running++;
+      return true;
+    }
+
+    synchronized void finish() {
+      running--;
+      if (decided) {
+        lateAttempts.decrementAndGet();
+      }
+    }
+
+    synchronized void decide() {
+      decided = true;
+      lateAttempts.addAndGet(running);
+    }
+  }
+
+  /** The arguments of one decode, run by the backends level after level. */
+  private static final class Attempt {
+    final ByteBuffer luminance;
+    final int width;
+    final int height;
+    final int rowStride;
+    final Rect roi;
+    final int rotation;
+    final boolean invert;
+    final AtomicBoolean abandoned;
+    final AtomicInteger luminanceUsers;
+
+    Attempt(
+        final ByteBuffer luminance,
+        final int width,
+        final int height,
+        final int rowStride,
+        final Rect roi,
+        final int rotation,
+        final boolean invert,
+        final AtomicBoolean abandoned,
+        final AtomicInteger luminanceUsers) {
+      this.luminance = luminance;
+      this.width = width;
+      this.height = height;
+      this.rowStride = rowStride;
+      this.roi = roi;
+      this.rotation = rotation;
+      this.invert = invert;
+      this.abandoned = abandoned;
+      this.luminanceUsers = luminanceUsers;
+    }
+
+    BarcodeReader.Result run(final Backend backend, final Level level) {
+      final boolean tryHarder = level != Level.PLAIN;
+      final boolean polarity = level == Level.INVERTED ? !invert : invert;
+      final int degrees = level == Level.ROTATED ? (rotation + 90) % 360 : rotation;
+      final long startTime = System.nanoTime();
+      BarcodeReader.Result result = null;
+      try {
+        result =
+            backend.decoders.get().decode(
+                luminance, width, height, rowStride, roi, degrees, tryHarder, polarity);
+      } catch (final RuntimeException e) {
+        LOGGER.e(e, "%s failed to decode a keydot", backend.factory.getName());
+      }
+      backend.stats[level.ordinal()].record((System.nanoTime() - startTime) / 1e6, result != null);
+      return result;
+    }
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.keydot;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import com.example.zxingcpp.BarcodeReader;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Decodes all keydot ROIs of a frame in parallel on a fixed pool of workers, each with its own
+ * decoders of the {@link AdaptiveDecodeStrategy}, and gathers the results until a per-frame
+ * deadline.
+ *
+ * <p>ROIs that are not decoded by the deadline are reported as timed out. Their decodes keep
+ * running (native decoding cannot be interrupted); when {@code carryOverLate} is set the results
+ * are handed out with the next frame, otherwise they are dropped and their escalation stops. New
+ * ROIs are dropped while twice as many decodes as workers are queued or still running, late ones
+ * included. Because late decodes may still read a luminance snapshot, frames must be copied into
+ * buffers obtained from {@link #obtainBuffer(int)}, which never returns a buffer that is still in
+ * use. A buffer stays reserved for its frame until it is handed back with {@link
+ * #releaseBuffer(ByteBuffer)}, so several frames can be in flight between the camera and the
+ * decoders.
+ *
+ * <p>{@link #decode} must be called from a single thread.
+ */
+public final class KeydotDecodePool implements Closeable {
+  private static final Logger LOGGER = new Logger();
+
+  /** A decoded keydot. */
+  public static final class Decoded {
+    public final long frameId;
+    public final int trackId;
+    public final Rect roi;
+    public final BarcodeReader.Result result;
+
+    Decoded(
+        final long frameId, final int trackId, final Rect roi, final BarcodeReader.Result result) {
+      this.frameId = frameId;
+      this.trackId = trackId;
+      this.roi = roi;
+      this.result = result;
+    }
+  }
+
+  /** Outcome of decoding the ROIs of one frame. */
+  public static final class FrameResult {
+    /** Keydots of this frame decoded before the deadline. */
+    public final List<Decoded> decoded = new ArrayList<>();
+    /** ROIs of this frame without a result by the deadline, or dropped because the pool is full. */
+    public final List<Rect> timedOut = new ArrayList<>();
+    /** Keydots of earlier frames that finished after their deadline. */
+    public final List<Decoded> late = new ArrayList<>();
+    /**
+     * Tracks of this or earlier frames whose decode is over without a keydot: it failed, was
+     * dropped, or timed out and is not carried over.
+     */
+    public final List<Integer> failedTrackIds = new ArrayList<>();
+  }
+
+  private static final class FrameBuffer {
+    final ByteBuffer buffer;
+    final AtomicInteger users = new AtomicInteger();
+
+    FrameBuffer(final int capacity) {
+      buffer = ByteBuffer.allocateDirect(capacity);
+    }
+  }
+
+  private static final class Pending {
+    final long frameId;
+    final int trackId;
+    final Rect roi;
+    final Future<BarcodeReader.Result> future;
+    final AtomicBoolean abandoned;
+
+    Pending(
+        final long frameId,
+        final int trackId,
+        final Rect roi,
+        final Future<BarcodeReader.Result> future,
+        final AtomicBoolean abandoned) {
+      this.frameId = frameId;
+      this.trackId = trackId;
+      this.roi = roi;
+      this.future = future;
+      this.abandoned = abandoned;
+    }
+  }
+
+  private final int numThreads;
+  private final long deadlineMs;
+  private final boolean carryOverLate;
+  private final AdaptiveDecodeStrategy strategy;
+  private final ExecutorService executor;
+  private final List<FrameBuffer> buffers = new ArrayList<>();
+  // Decodes that missed their deadline and are still running, when they are carried over.
+  private final List<Pending> pending = new ArrayList<>();
+  // Decodes submitted and not finished yet, including the abandoned ones.
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile boolean closed;
+  private final AtomicBoolean strategyClosed = new AtomicBoolean();
+
+  /**
+   * @param numThreads number of decode workers.
+   * @param deadlineMs how long {@link #decode} waits for the ROIs of a frame.
+   * @param carryOverLate whether decodes that miss the deadline are reported with the next frame.
+   * @param strategy decodes the ROIs; it is closed with this pool, once no decode uses it.
+   */
+  public KeydotDecodePool(
+      final int numThreads,
+      final long deadlineMs,
+      final boolean carryOverLate,
+      final AdaptiveDecodeStrategy strategy) {
+    this.numThreads = numThreads;
+    this.deadlineMs = deadlineMs;
+    this.carryOverLate = carryOverLate;
+    this.strategy = strategy;
+    final AtomicInteger threadCount = new AtomicInteger();
+    executor =
+        Executors.newFixedThreadPool(
+            numThreads, r -> new Thread(r, "keydot-decode-" + threadCount.getAndIncrement()));
+  }
+
+  /**
+   * Returns a direct buffer of at least {@code capacity} bytes that no other frame or running
+   * decode uses, to copy the luminance plane of the next frame into. The buffer is reserved until
+   * {@link #releaseBuffer(ByteBuffer)} is called. Capacities may vary between calls: a free buffer
+   * too small for the request is replaced, so that there are no more buffers than are in use at
+   * once.
+   */
+  public synchronized ByteBuffer obtainBuffer(final int capacity) {
+    int tooSmall = -1;
+    for (int i = 0; i < buffers.size(); i++) {
+      final FrameBuffer frameBuffer = buffers.get(i);
+      if (frameBuffer.users.get() != 0) {
+        continue;
+      }
+      if (frameBuffer.buffer.capacity() >= capacity) {
+        frameBuffer.users.incrementAndGet();
+        frameBuffer.buffer.clear();
+        return frameBuffer.buffer;
+      }
+      tooSmall = i;
+    }
+    final FrameBuffer frameBuffer = new FrameBuffer(capacity);
+    frameBuffer.users.incrementAndGet();
+    if (tooSmall >= 0) {
+      buffers.set(tooSmall, frameBuffer);
+    } else {
+      buffers.add(frameBuffer);
+    }
+    LOGGER.d("Allocated luminance buffer %d of %d bytes", buffers.size(), capacity);
+    return frameBuffer.buffer;
+  }
+
+  /**
+   * Hands back a buffer returned by {@link #obtainBuffer(int)} once its frame has been passed to
+   * {@link #decode}. Decodes still reading it keep it reserved until they finish.
+   */
+  public void releaseBuffer(final ByteBuffer luminance) {
+    findBuffer(luminance).users.decrementAndGet();
+  }
+
+  /**
+   * Decodes {@code rois} of a luminance plane concurrently and waits at most the configured
+   * deadline for the results.
+   *
+   * @param frameId identifies the frame in the returned results.
+   * @param luminance buffer previously returned by {@link #obtainBuffer(int)}.
+   * @param trackIds tracker ids of {@code rois}, reported back with the results.
+   */
+  public FrameResult decode(
+      final long frameId,
+      final ByteBuffer luminance,
+      final int width,
+      final int height,
+      final int rowStride,
+      final List<Rect> rois,
+      final int[] trackIds,
+      final int rotation,
+      final boolean invert) {
+    final long deadline = SystemClock.uptimeMillis() + deadlineMs;
+    final FrameResult frameResult = new FrameResult();
+    collectLate(frameResult);
+    if (rois.isEmpty()) {
+      return frameResult;
+    }
+
+    final FrameBuffer frameBuffer = findBuffer(luminance);
+    final CompletionService<BarcodeReader.Result> completion =
+        new ExecutorCompletionService<>(executor);
+    final List<Pending> submitted = new ArrayList<>(rois.size());
+    for (int i = 0; i < rois.size(); i++) {
+      final Rect roi = rois.get(i);
+      // Bound the work queued behind slow decodes: drop the ROI instead of piling up.
+      if (inFlight.get() + strategy.getNumLateAttempts() >= 2 * numThreads) {
+        frameResult.timedOut.add(roi);
+        frameResult.failedTrackIds.add(trackIds[i]);
+        continue;
+      }
+      final AtomicBoolean abandoned = new AtomicBoolean();
+      frameBuffer.users.incrementAndGet();
+      inFlight.incrementAndGet();
+      final Future<BarcodeReader.Result> future =
+          completion.submit(
+              () -> {
+                try {
+                  if (abandoned.get()) {
+                    return null;
+                  }
+                  return strategy.decode(
+                      luminance,
+                      width,
+                      height,
+                      rowStride,
+                      roi,
+                      rotation,
+                      invert,
+                      abandoned,
+                      frameBuffer.users);
+                } finally {
+                  frameBuffer.users.decrementAndGet();
+                  if (inFlight.decrementAndGet() == 0 && closed) {
+                    closeStrategy();
+                  }
+                }
+              });
+      submitted.add(new Pending(frameId, trackIds[i], roi, future, abandoned));
+    }
+
+    int remaining = submitted.size();
+    try {
+      while (remaining > 0) {
+        final long timeout = deadline - SystemClock.uptimeMillis();
+        if (timeout <= 0 || completion.poll(timeout, TimeUnit.MILLISECONDS) == null) {
+          break;
+        }
+        remaining--;
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (final Pending task : submitted) {
+      if (task.future.isDone()) {
+        addResult(task, frameResult.decoded, frameResult.failedTrackIds);
+      } else {
+        frameResult.timedOut.add(task.roi);
+        if (carryOverLate) {
+          pending.add(task);
+        } else {
+          task.abandoned.set(true);
+          frameResult.failedTrackIds.add(task.trackId);
+        }
+      }
+    }
+    if (!frameResult.timedOut.isEmpty()) {
+      LOGGER.w(
+          "Frame %d: %d of %d keydot decodes missed the %d ms deadline",
+          frameId, frameResult.timedOut.size(), rois.size(), deadlineMs);
+    }
+    return frameResult;
+  }
+
+  private void collectLate(final FrameResult frameResult) {
+    for (final Iterator<Pending> it = pending.iterator(); it.hasNext(); ) {
+      final Pending task = it.next();
+      if (task.future.isDone()) {
+        addResult(task, frameResult.late, frameResult.failedTrackIds);
+        it.remove();
+      }
+    }
+  }
+
+  private static void addResult(
+      final Pending task, final List<Decoded> out, final List<Integer> failedTrackIds) {
+    BarcodeReader.Result result = null;
+    try {
+      result = task.future.get();
+    } catch (final ExecutionException e) {
+      LOGGER.e(e.getCause(), "Exception detectando keydot!");
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (result != null) {
+      out.add(new Decoded(task.frameId, task.trackId, task.roi, result));
+    } else {
+      failedTrackIds.add(task.trackId);
+    }
+  }
+
+  private synchronized FrameBuffer findBuffer(final ByteBuffer luminance) {
+    for (final FrameBuffer frameBuffer : buffers) {
+      if (frameBuffer.buffer == luminance) {
+        return frameBuffer;
+      }
+    }
+    throw new IllegalArgumentException("Luminance buffer was not obtained from this pool");
+  }
+
+  /**
+   * Stops the decode workers and closes the strategy. If a decode is still running when this
+   * returns, the strategy is closed by its worker once it finishes.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    // Decodes that never started never leave inFlight themselves.
+    final int notStarted = executor.shutdownNow().size();
+    if (inFlight.addAndGet(-notStarted) == 0) {
+      closeStrategy();
+    }
+    try {
+      if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+        LOGGER.w("Keydot decode workers failed to terminate, the last one closes the decoders");
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Called by close() or by the worker finishing the last decode, whichever sees none left.
+  private void closeStrategy() {
+    if (strategyClosed.compareAndSet(false, true)) {
+      strategy.close();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.keydot;
+
+import android.graphics.Rect;
+import com.example.zxingcpp.BarcodeReader;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A keydot decoding backend, reading the ROI of a luminance plane such as the camera Y plane.
+ *
+ * <p>Decoders keep per-instance state and are not thread-safe: every decoding thread creates its
+ * own from the backend's {@link Factory}.
+ */
+public interface KeydotDecoder extends Closeable {
+  /** Creates the decoders of one backend. */
+  interface Factory {
+    /** Name of the backend in statistics and logs. */
+    String getName();
+
+    KeydotDecoder create();
+  }
+
+  /**
+   * Decodes {@code roi} of a luminance plane of {@code height} rows of {@code rowStride} bytes.
+   *
+   * @param rotation rotation applied to the ROI before decoding, multiple of 90.
+   * @param tryHarder spend more time looking for the symbol, for a retry after a failure.
+   * @param invert decode light-on-dark symbols.
+   * @return the decoded keydot, or null if none was found.
+   */
+  BarcodeReader.Result decode(
+      ByteBuffer luminance,
+      int width,
+      int height,
+      int rowStride,
+      Rect roi,
+      int rotation,
+      boolean tryHarder,
+      boolean invert);
+
+  @Override
+  void close();
+}
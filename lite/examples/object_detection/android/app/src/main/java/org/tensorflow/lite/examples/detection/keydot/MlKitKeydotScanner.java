@@ -0,0 +1,237 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.keydot;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import com.example.zxingcpp.BarcodeReader;
+import com.google.android.gms.tasks.Task;
+import com.google.mlkit.vision.barcode.Barcode;
+import com.google.mlkit.vision.barcode.BarcodeScanner;
+import com.google.mlkit.vision.barcode.BarcodeScannerOptions;
+import com.google.mlkit.vision.barcode.BarcodeScanning;
+import com.google.mlkit.vision.common.InputImage;
+import java.io.Closeable;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Scans keydot crops with a single ML Kit barcode scanner, keeping at most {@code maxInFlight}
+ * scans running at once.
+ *
+ * <p>While saturated, a crop waits for a free slot; a newer crop of the same track replaces the
+ * one waiting, and the oldest waiting crop is dropped once more than {@code maxInFlight} tracks
+ * wait. A track never has two scans running. Results are queued with the frame timestamp, track
+ * and ROI of their crop and are taken with {@link #poll()} from any thread, and the tracks of the
+ * crops that yielded nothing, including the dropped ones, with {@link #pollFailed()}.
+ */
+public final class MlKitKeydotScanner implements Closeable {
+  private static final Logger LOGGER = new Logger();
+
+  // Runs the completion listeners on the ML Kit thread instead of posting them to the main thread.
+  private static final Executor DIRECT_EXECUTOR = Runnable::run;
+
+  private static final class Request {
+    final long frameId;
+    final int trackId;
+    final Rect roi;
+    final Bitmap keydot;
+
+    Request(final long frameId, final int trackId, final Rect roi, final Bitmap keydot) {
+      this.frameId = frameId;
+      this.trackId = trackId;
+      this.roi = roi;
+      this.keydot = keydot;
+    }
+  }
+
+  private final BarcodeScanner scanner;
+  private final int maxInFlight;
+  private final ConcurrentLinkedQueue<KeydotDecodePool.Decoded> results =
+      new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Integer> failedTrackIds = new ConcurrentLinkedQueue<>();
+
+  // Guarded by this.
+  private final Set<Integer> scanningTracks = new HashSet<>();
+  // Latest crop of each track waiting for a free slot, oldest track first. Guarded by this.
+  private final Map<Integer, Request> waiting = new LinkedHashMap<>();
+  private boolean closed;
+  private long numScanned;
+  private long numCoalesced;
+  private long numDropped;
+  private long numFailed;
+
+  /**
+   * @param options formats to look for.
+   * @param maxInFlight number of scans that may run at once.
+   */
+  public MlKitKeydotScanner(final BarcodeScannerOptions options, final int maxInFlight) {
+    this.scanner = BarcodeScanning.getClient(options);
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Scans {@code keydot}, the crop of {@code roi} in frame {@code frameId}, as soon as a slot is
+   * free. The bitmap must not be modified or recycled afterwards.
+   */
+  public void scan(final long frameId, final int trackId, final Rect roi, final Bitmap keydot) {
+    final Request request = new Request(frameId, trackId, roi, keydot);
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      if (scanningTracks.size() >= maxInFlight || scanningTracks.contains(trackId)) {
+        enqueue(request);
+        return;
+      }
+      scanningTracks.add(trackId);
+    }
+    start(request);
+  }
+
+  /** Returns the next decoded keydot, or null if there is none. */
+  public KeydotDecodePool.Decoded poll() {
+    return results.poll();
+  }
+
+  /** Returns the track of the next crop that yielded no keydot, or -1 if there is none. */
+  public int pollFailed() {
+    final Integer trackId = failedTrackIds.poll();
+    return trackId != null ? trackId : -1;
+  }
+
+  public synchronized String getStatString() {
+    return String.format(
+        Locale.US,
+        "%d scanned, %d coalesced, %d dropped, %d failed",
+        numScanned, numCoalesced, numDropped, numFailed);
+  }
+
+  // Must hold the lock.
+  private void enqueue(final Request request) {
+    // Remove first so that the track moves to the back of the line.
+    if (waiting.remove(request.trackId) != null) {
+      numCoalesced++;
+    }
+    waiting.put(request.trackId, request);
+    if (waiting.size() > maxInFlight) {
+      final Iterator<Request> oldest = waiting.values().iterator();
+      failedTrackIds.offer(oldest.next().trackId);
+      oldest.remove();
+      numDropped++;
+    }
+  }
+
+  private void start(final Request request) {
+    final long startTime = SystemClock.uptimeMillis();
+    final Task<List<Barcode>> task;
+    try {
+      task = scanner.process(InputImage.fromBitmap(request.keydot, 0));
+    } catch (final RuntimeException e) {
+      // The scanner was closed concurrently.
+      failedTrackIds.offer(request.trackId);
+      finish(request);
+      return;
+    }
+    task.addOnCompleteListener(
+        DIRECT_EXECUTOR,
+        completed -> {
+          if (completed.isSuccessful()) {
+            synchronized (this) {
+              numScanned++;
+            }
+            final String time = String.valueOf(SystemClock.uptimeMillis() - startTime);
+            for (final Barcode barcode : completed.getResult()) {
+              results.offer(
+                  new KeydotDecodePool.Decoded(
+                      request.frameId,
+                      request.trackId,
+                      request.roi,
+                      new BarcodeReader.Result(
+                          toFormat(barcode.getFormat()), barcode.getRawValue(), time)));
+            }
+            if (completed.getResult().isEmpty()) {
+              failedTrackIds.offer(request.trackId);
+            }
+          } else {
+            synchronized (this) {
+              numFailed++;
+            }
+            failedTrackIds.offer(request.trackId);
+            LOGGER.e(completed.getException(), "Exception detectando keydot!");
+          }
+          finish(request);
+        });
+  }
+
+  // Frees the slot of a completed scan and starts the oldest waiting crop whose track is idle.
+  private void finish(final Request done) {
+    Request next = null;
+    synchronized (this) {
+      scanningTracks.remove(done.trackId);
+      if (closed) {
+        return;
+      }
+      for (final Iterator<Request> it = waiting.values().iterator(); it.hasNext(); ) {
+        final Request candidate = it.next();
+        if (!scanningTracks.contains(candidate.trackId)) {
+          it.remove();
+          scanningTracks.add(candidate.trackId);
+          next = candidate;
+          break;
+        }
+      }
+    }
+    if (next != null) {
+      start(next);
+    }
+  }
+
+  private static BarcodeReader.Format toFormat(final int format) {
+    switch (format) {
+      case Barcode.FORMAT_DATA_MATRIX:
+        return BarcodeReader.Format.DATA_MATRIX;
+      case Barcode.FORMAT_QR_CODE:
+        return BarcodeReader.Format.QR_CODE;
+      case Barcode.FORMAT_AZTEC:
+        return BarcodeReader.Format.AZTEC;
+      case Barcode.FORMAT_PDF417:
+        return BarcodeReader.Format.PDF_417;
+      default:
+        return BarcodeReader.Format.NONE;
+    }
+  }
+
+  /** Drops the waiting crops and closes the scanner without waiting for the running scans. */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      waiting.clear();
+    }
+    scanner.close();
+  }
+}
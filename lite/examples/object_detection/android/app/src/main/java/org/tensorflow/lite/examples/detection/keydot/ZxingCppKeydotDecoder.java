@@ -0,0 +1,81 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.keydot;
+
+import android.graphics.Rect;
+import com.example.zxingcpp.BarcodeReader;
+import com.example.zxingcpp.DecoderSession;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * zxing-cpp backend: decodes in place from the luminance plane with long-lived native sessions,
+ * one with the plain options and one, created on the first retry, that tries harder.
+ */
+public final class ZxingCppKeydotDecoder implements KeydotDecoder {
+  private final Set<BarcodeReader.Format> formats;
+  private final DecoderSession session;
+  private DecoderSession tryHarderSession;
+
+  /** Returns a factory of decoders for {@code formats}. */
+  public static Factory factory(final Set<BarcodeReader.Format> formats) {
+    return new Factory() {
+      @Override
+      public String getName() {
+        return "zxing-cpp";
+      }
+
+      @Override
+      public KeydotDecoder create() {
+        return new ZxingCppKeydotDecoder(formats);
+      }
+    };
+  }
+
+  private ZxingCppKeydotDecoder(final Set<BarcodeReader.Format> formats) {
+    this.formats = formats;
+    session = new DecoderSession(new BarcodeReader.Options(formats, false, false));
+  }
+
+  @Override
+  public BarcodeReader.Result decode(
+      final ByteBuffer luminance,
+      final int width,
+      final int height,
+      final int rowStride,
+      final Rect roi,
+      final int rotation,
+      final boolean tryHarder,
+      final boolean invert) {
+    DecoderSession decoder = session;
+    if (tryHarder) {
+      if (tryHarderSession == null) {
+        tryHarderSession = new DecoderSession(new BarcodeReader.Options(formats, true, true));
+      }
+      decoder = tryHarderSession;
+    }
+    return decoder.readLuminance(luminance, width, height, rowStride, roi, rotation, invert);
+  }
+
+  @Override
+  public void close() {
+    session.close();
+    if (tryHarderSession != null) {
+      tryHarderSession.close();
+    }
+  }
+}
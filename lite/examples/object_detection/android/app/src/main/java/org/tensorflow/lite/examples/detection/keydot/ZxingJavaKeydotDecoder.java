@@ -0,0 +1,161 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.keydot;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import com.example.zxingcpp.BarcodeReader;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.common.HybridBinarizer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Upstream zxing (Java) backend. The ROI is copied, and rotated if needed, out of the luminance
+ * plane into a workspace that only grows to the largest ROI seen.
+ */
+public final class ZxingJavaKeydotDecoder implements KeydotDecoder {
+  private final MultiFormatReader reader = new MultiFormatReader();
+  private final MultiFormatReader tryHarderReader = new MultiFormatReader();
+  private byte[] workspace = new byte[0];
+
+  /** Returns a factory of decoders for {@code formats}. */
+  public static Factory factory(final Set<BarcodeReader.Format> formats) {
+    return new Factory() {
+      @Override
+      public String getName() {
+        return "zxing-java";
+      }
+
+      @Override
+      public KeydotDecoder create() {
+        return new ZxingJavaKeydotDecoder(formats);
+      }
+    };
+  }
+
+  private ZxingJavaKeydotDecoder(final Set<BarcodeReader.Format> formats) {
+    final List<BarcodeFormat> possibleFormats = new ArrayList<>();
+    for (final BarcodeReader.Format format : formats) {
+      try {
+        possibleFormats.add(BarcodeFormat.valueOf(format.name()));
+      } catch (final IllegalArgumentException e) {
+        // Named differently in zxing (e.g. DATA_BAR); not used for keydots.
+      }
+    }
+    final Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+    hints.put(DecodeHintType.POSSIBLE_FORMATS, possibleFormats);
+    reader.setHints(hints);
+    final Map<DecodeHintType, Object> tryHarderHints = new EnumMap<>(hints);
+    tryHarderHints.put(DecodeHintType.TRY_HARDER, true);
+    tryHarderReader.setHints(tryHarderHints);
+  }
+
+  @Override
+  public BarcodeReader.Result decode(
+      final ByteBuffer luminance,
+      final int width,
+      final int height,
+      final int rowStride,
+      final Rect roi,
+      final int rotation,
+      final boolean tryHarder,
+      final boolean invert) {
+    final long startTime = SystemClock.uptimeMillis();
+    final int quarterTurns = ((rotation / 90) % 4 + 4) % 4;
+    copyRoi(luminance, rowStride, roi, quarterTurns);
+    final boolean transposed = quarterTurns % 2 == 1;
+    final int roiWidth = transposed ? roi.height() : roi.width();
+    final int roiHeight = transposed ? roi.width() : roi.height();
+    LuminanceSource source =
+        new PlanarYUVLuminanceSource(
+            workspace, roiWidth, roiHeight, 0, 0, roiWidth, roiHeight, false);
+    if (invert) {
+      source = source.invert();
+    }
+
+    final MultiFormatReader decoder = tryHarder ? tryHarderReader : reader;
+    try {
+      final Result result = decoder.decodeWithState(new BinaryBitmap(new HybridBinarizer(source)));
+      return new BarcodeReader.Result(
+          toFormat(result.getBarcodeFormat()),
+          result.getText(),
+          String.valueOf(SystemClock.uptimeMillis() - startTime));
+    } catch (final ReaderException e) {
+      return null;
+    } finally {
+      decoder.reset();
+    }
+  }
+
+  // Copies roi into the workspace, rotated clockwise by quarterTurns.
+  private void copyRoi(
+      final ByteBuffer luminance, final int rowStride, final Rect roi, final int quarterTurns) {
+    final int w = roi.width();
+    final int h = roi.height();
+    if (workspace.length < w * h) {
+      workspace = new byte[w * h];
+    }
+    if (quarterTurns == 0) {
+      final ByteBuffer rows = luminance.duplicate();
+      for (int y = 0; y < h; ++y) {
+        rows.position((roi.top + y) * rowStride + roi.left);
+        rows.get(workspace, y * w, w);
+      }
+      return;
+    }
+    for (int y = 0; y < h; ++y) {
+      final int rowStart = (roi.top + y) * rowStride + roi.left;
+      for (int x = 0; x < w; ++x) {
+        final byte value = luminance.get(rowStart + x);
+        switch (quarterTurns) {
+          case 1:
+            workspace[x * h + (h - 1 - y)] = value;
+            break;
+          case 2:
+            workspace[(h - 1 - y) * w + (w - 1 - x)] = value;
+            break;
+          default:
+            workspace[(w - 1 - x) * h + y] = value;
+            break;
+        }
+      }
+    }
+  }
+
+  private static BarcodeReader.Format toFormat(final BarcodeFormat format) {
+    try {
+      return BarcodeReader.Format.valueOf(format.name());
+    } catch (final IllegalArgumentException e) {
+      return BarcodeReader.Format.NONE;
+    }
+  }
+
+  @Override
+  public void close() {}
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.tracking;
+
+import android.graphics.RectF;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.tensorflow.lite.examples.detection.tflite.Detector;
+import org.tensorflow.lite.examples.detection.tflite.Detector.Recognition;
+
+/**
+ * Moves the boxes of the last detection along with the image on the frames that are not detected,
+ * working on the luminance plane only.
+ *
+ * <p>Each detected box is sampled on a {@link #GRID}x{@link #GRID} grid, which is its template. On
+ * a later frame the template is searched for around the previous position of the box, first in
+ * steps of one grid cell, then in steps of a quarter cell around the best match, by zero-mean
+ * normalized cross-correlation, which is insensitive to exposure changes. Templates are kept from
+ * the detected frame, so the boxes do not drift. A box whose best match correlates less than
+ * {@link #MIN_CORRELATION} is dropped.
+ *
+ * <p>A thumbnail of the whole frame is compared to the one of the detected frame as well, to tell
+ * when the scene changed too much for propagation to be trusted.
+ *
+ * <p>Not thread-safe: the boxes of a frame must be propagated after those of the previous one.
+ */
+public class BoxPropagator {
+  // Samples per side of the template of a box.
+  private static final int GRID = 16;
+  // Search range around the previous position, in grid cells.
+  private static final int SEARCH_CELLS = 6;
+  // Below this correlation with its template a box is considered lost.
+  private static final float MIN_CORRELATION = 0.6f;
+  // Samples per side of the frame thumbnail.
+  private static final int THUMBNAIL_SIZE = 32;
+  // Mean absolute luminance difference of the thumbnails above which the scene changed.
+  private static final int MAX_SCENE_CHANGE = 24;
+
+  private static class Box {
+    final RectF location = new RectF();
+    // Zero-mean, unit-norm samples of the box in the detected frame.
+    final float[] template = new float[GRID * GRID];
+    String id;
+    String title;
+    float confidence;
+  }
+
+  // Boxes are recycled across detections; the first numBoxes are in use.
+  private final List<Box> boxes = new ArrayList<>();
+  private int numBoxes;
+  private final int[] detectedThumbnail = new int[THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+  private final int[] thumbnail = new int[THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+  private final float[] samples = new float[GRID * GRID];
+  // Integral image of the region of the frame around the box being matched, grown as needed.
+  private int[] integral = new int[0];
+  private int regionLeft;
+  private int regionTop;
+  private int regionWidth;
+  private int regionHeight;
+
+  private ByteBuffer luminance;
+  private int width;
+  private int height;
+  private int rowStride;
+
+  /**
+   * Takes the boxes of a detected frame as the ones to propagate.
+   *
+   * @param detections boxes in frame coordinates, which are copied.
+   */
+  public void reset(
+      final ByteBuffer luminance,
+      final int width,
+      final int height,
+      final int rowStride,
+      final List<Recognition> detections) {
+    setFrame(luminance, width, height, rowStride);
+    sampleThumbnail(detectedThumbnail);
+    numBoxes = 0;
+    for (final Recognition detection : detections) {
+      if (numBoxes == boxes.size()) {
+        boxes.add(new Box());
+      }
+      final Box box = boxes.get(numBoxes);
+      final RectF location = detection.getLocation();
+      if (location.width() < GRID || location.height() < GRID) {
+        // Too small to be matched.
+        continue;
+      }
+      box.location.set(location);
+      integrate(location.left, location.top, location.right, location.bottom);
+      if (normalize(sample(location, 0, 0, box.template), box.template) == 0) {
+        // Too flat to be matched.
+        continue;
+      }
+      box.id = detection.getId();
+      box.title = detection.getTitle();
+      box.confidence = detection.confidence();
+      numBoxes++;
+    }
+    this.luminance = null;
+  }
+
+  /**
+   * Moves the boxes to a new frame and appends the ones still found to {@code results}, in frame
+   * coordinates.
+   *
+   * @return false if the frame should rather be detected: the scene changed or a box was lost.
+   */
+  public boolean propagate(
+      final ByteBuffer luminance,
+      final int width,
+      final int height,
+      final int rowStride,
+      final Detector.RecognitionList results) {
+    setFrame(luminance, width, height, rowStride);
+    try {
+      if (sceneChange() > MAX_SCENE_CHANGE) {
+        numBoxes = 0;
+        return false;
+      }
+      boolean allFound = true;
+      int kept = 0;
+      for (int i = 0; i < numBoxes; i++) {
+        final Box box = boxes.get(i);
+        if (!track(box)) {
+          allFound = false;
+          continue;
+        }
+        results.add(
+            box.id,
+            box.title,
+            box.confidence,
+            box.location.left,
+            box.location.top,
+            box.location.right,
+            box.location.bottom);
+        // Keep the boxes found at the front.
+        boxes.set(i, boxes.get(kept));
+        boxes.set(kept++, box);
+      }
+      numBoxes = kept;
+      return allFound;
+    } finally {
+      this.luminance = null;
+    }
+  }
+
+  private void setFrame(
+      final ByteBuffer luminance, final int width, final int height, final int rowStride) {
+    this.luminance = luminance;
+    this.width = width;
+    this.height = height;
+    this.rowStride = rowStride;
+  }
+
+  // Moves the box to the best match of its template; false if there is none good enough.
+  private boolean track(final Box box) {
+    final float cellX = box.location.width() / GRID;
+    final float cellY = box.location.height() / GRID;
+    final float marginX = (SEARCH_CELLS + 1) * cellX;
+    final float marginY = (SEARCH_CELLS + 1) * cellY;
+    integrate(
+        box.location.left - marginX,
+        box.location.top - marginY,
+        box.location.right + marginX,
+        box.location.bottom + marginY);
+
+    // Coarse search in steps of one cell.
+    float bestScore = -1;
+    float bestX = 0;
+    float bestY = 0;
+    for (int dy = -SEARCH_CELLS; dy <= SEARCH_CELLS; dy++) {
+      for (int dx = -SEARCH_CELLS; dx <= SEARCH_CELLS; dx++) {
+        final float score = correlate(box, dx * cellX, dy * cellY);
+        if (score > bestScore) {
+          bestScore = score;
+          bestX = dx * cellX;
+          bestY = dy * cellY;
+        }
+      }
+    }
+
+    // Refinement in steps of a quarter cell around the coarse match.
+    final float centerX = bestX;
+    final float centerY = bestY;
+    for (int dy = -4; dy <= 4; dy++) {
+      for (int dx = -4; dx <= 4; dx++) {
+        if (dx == 0 && dy == 0) {
+          continue;
+        }
+        final float offsetX = centerX + dx * cellX / 4;
+        final float offsetY = centerY + dy * cellY / 4;
+        final float score = correlate(box, offsetX, offsetY);
+        if (score > bestScore) {
+          bestScore = score;
+          bestX = offsetX;
+          bestY = offsetY;
+        }
+      }
+    }
+
+    if (bestScore < MIN_CORRELATION) {
+      return false;
+    }
+    box.location.offset(bestX, bestY);
+    return box.location.centerX() >= 0
+        && box.location.centerX() < width
+        && box.location.centerY() >= 0
+        && box.location.centerY() < height;
+  }
+
+  // Correlation of the template of the box with the frame, with the box moved by the offset.
+  private float correlate(final Box box, final float offsetX, final float offsetY) {
+    sample(box.location, offsetX, offsetY, samples);
+    float sum = 0;
+    float sumSquares = 0;
+    float dot = 0;
+    for (int i = 0; i < samples.length; i++) {
+      final float value = samples[i];
+      sum += value;
+      sumSquares += value * value;
+      dot += value * box.template[i];
+    }
+    // The template has a zero mean, so the mean of the samples does not contribute to dot.
+    final float variance = sumSquares - sum * sum / samples.length;
+    return variance > 0 ? dot / (float) Math.sqrt(variance) : 0;
+  }
+
+  // Reads the mean luminance of each grid cell of the box, moved by the offset, into out. Means
+  // rather than single pixels keep the correlation high while the search is still a fraction of a
+  // cell off, as keydot modules are about one cell wide. The box must lie in the integrated region,
+  // which repeats its edge beyond.
+  private float[] sample(
+      final RectF location, final float offsetX, final float offsetY, final float[] out) {
+    final float cellX = location.width() / GRID;
+    final float cellY = location.height() / GRID;
+    final float left = location.left + offsetX - regionLeft;
+    final float top = location.top + offsetY - regionTop;
+    final int stride = regionWidth + 1;
+    for (int j = 0; j < GRID; j++) {
+      final int y0 = clamp(Math.round(top + j * cellY), 0, regionHeight - 1);
+      final int y1 = clamp(Math.round(top + (j + 1) * cellY), y0 + 1, regionHeight);
+      for (int i = 0; i < GRID; i++) {
+        final int x0 = clamp(Math.round(left + i * cellX), 0, regionWidth - 1);
+        final int x1 = clamp(Math.round(left + (i + 1) * cellX), x0 + 1, regionWidth);
+        final int sum =
+            integral[y1 * stride + x1]
+                - integral[y1 * stride + x0]
+                - integral[y0 * stride + x1]
+                + integral[y0 * stride + x0];
+        out[j * GRID + i] = (float) sum / ((x1 - x0) * (y1 - y0));
+      }
+    }
+    return out;
+  }
+
+  // Builds the integral image of the part of the frame within the bounds.
+  private void integrate(final float left, final float top, final float right, final float bottom) {
+    regionLeft = clamp((int) Math.floor(left), 0, width - 1);
+    regionTop = clamp((int) Math.floor(top), 0, height - 1);
+    regionWidth = clamp((int) Math.ceil(right), regionLeft + 1, width) - regionLeft;
+    regionHeight = clamp((int) Math.ceil(bottom), regionTop + 1, height) - regionTop;
+    final int stride = regionWidth + 1;
+    final int size = stride * (regionHeight + 1);
+    if (integral.length < size) {
+      integral = new int[size];
+    }
+    for (int x = 0; x < stride; x++) {
+      integral[x] = 0;
+    }
+    for (int y = 0; y < regionHeight; y++) {
+      final int row = (regionTop + y) * rowStride + regionLeft;
+      final int above = y * stride;
+      final int out = above + stride;
+      int rowSum = 0;
+      integral[out] = 0;
+      for (int x = 0; x < regionWidth; x++) {
+        rowSum += luminance.get(row + x) & 0xFF;
+        integral[out + x + 1] = integral[above + x + 1] + rowSum;
+      }
+    }
+  }
+
+  // Makes the samples zero-mean and unit-norm in place; returns their norm before that.
+  private static float normalize(final float[] values, final float[] out) {
+    float mean = 0;
+    for (final float value : values) {
+      mean += value;
+    }
+    mean /= values.length;
+    float sumSquares = 0;
+    for (int i = 0; i < values.length; i++) {
+      out[i] = values[i] - mean;
+      sumSquares += out[i] * out[i];
+    }
+    final float norm = (float) Math.sqrt(sumSquares);
+    if (norm > 0) {
+      for (int i = 0; i < out.length; i++) {
+        out[i] /= norm;
+      }
+    }
+    return norm;
+  }
+
+  private void sampleThumbnail(final int[] out) {
+    for (int j = 0; j < THUMBNAIL_SIZE; j++) {
+      final int row = (j * height / THUMBNAIL_SIZE + height / (2 * THUMBNAIL_SIZE)) * rowStride;
+      for (int i = 0; i < THUMBNAIL_SIZE; i++) {
+        final int x = i * width / THUMBNAIL_SIZE + width / (2 * THUMBNAIL_SIZE);
+        out[j * THUMBNAIL_SIZE + i] = luminance.get(row + x) & 0xFF;
+      }
+    }
+  }
+
+  // Mean absolute difference between the thumbnails of the detected and the current frame.
+  private int sceneChange() {
+    sampleThumbnail(thumbnail);
+    int sum = 0;
+    for (int i = 0; i < thumbnail.length; i++) {
+      sum += Math.abs(thumbnail[i] - detectedThumbnail[i]);
+    }
+    return sum / thumbnail.length;
+  }
+
+  private static int clamp(final int value, final int min, final int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+}
@@ -25,20 +25,50 @@ import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.text.TextUtils;
-import android.util.Pair;
 import android.util.TypedValue;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Locale;
+import java.util.Map;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
 import org.tensorflow.lite.examples.detection.tflite.Detector.Recognition;
 
-/** A tracker that handles non-max suppression and matches existing objects to new detections. */
+/**
+ * A tracker that handles non-max suppression and matches existing objects to new detections.
+ *
+ * <p>Detections are associated to existing tracks by IoU, so the same physical object keeps its
+ * track id (and colour) across frames. A track is only shown after {@link #MIN_HITS} consecutive
+ * associations and, once shown, is kept for up to {@link #MAX_MISSED} frames without one. Each
+ * track caches its decoded payload, see {@link #needsDecode(int, long)}.
+ *
+ * <p>The overlay is drawn at display rate, so drawing allocates nothing once warmed up: the
+ * frame-to-canvas transform is only recomputed when the frame or canvas geometry changes, labels
+ * are cached per title and rounded confidence, and tracks, rects and association candidates are
+ * pooled in arrays.
+ */
 public class MultiBoxTracker {
   private static final float TEXT_SIZE_DIP = 18;
   private static final float MIN_SIZE = 16.0f;
+  // Minimum IoU for a detection to be associated with an existing track.
+  private static final float MIN_ASSOCIATION_IOU = 0.3f;
+  // Number of consecutive associated frames before a new track is shown.
+  private static final int MIN_HITS = 2;
+  // Number of frames a track survives without an associated detection.
+  private static final int MAX_MISSED = 5;
+  // How long a decoded payload is trusted; multiplied by the number of confirming decodes.
+  private static final long DECODE_TTL_MS = 2000;
+  private static final int MAX_DECODE_CONFIRMATIONS = 3;
+  // Below this IoU between the current box and the box at decode time the track is re-decoded.
+  private static final float REDECODE_IOU = 0.7f;
+  // Labels show the confidence in percent with two decimals, so this many values per title.
+  private static final int LABEL_STEPS = 10000;
+  private static final Comparator<Association> BEST_IOU_FIRST =
+      (a, b) -> Float.compare(b.iou, a.iou);
   private static final int[] COLORS = {
     Color.BLUE,
     Color.RED,
@@ -56,21 +86,38 @@ public class MultiBoxTracker {
     Color.parseColor("#AA33AA"),
     Color.parseColor("#0D0068")
   };
-  final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
   private final Logger logger = new Logger();
-  private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  // The first numTracks are live; the others are recycled by new tracks.
+  private final TrackedRecognition[] tracks = new TrackedRecognition[COLORS.length];
+  private int numTracks;
+  // Detections of the last frame in screen coordinates, for drawDebug; grown as needed.
+  private RectF[] screenRects = new RectF[0];
+  private float[] screenConfidences = new float[0];
+  private int numScreenRects;
+  // Indices of the results of a frame that may be tracked; grown as needed.
+  private int[] trackableResults = new int[0];
+  // Returned by trackResults; grown as needed.
+  private int[] trackIds = new int[0];
+  private Association[] candidates = new Association[0];
+  private final Map<String, String[]> labels = new HashMap<>();
+  private final RectF drawRect = new RectF();
   private final Paint boxPaint = new Paint();
+  private final Paint debugTextPaint = new Paint();
+  private final Paint debugBoxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
-  private Matrix frameToCanvasMatrix;
+  private final Matrix frameToCanvasMatrix = new Matrix();
+  // Canvas size frameToCanvasMatrix was computed for, 0 when it has to be recomputed.
+  private int canvasWidth;
+  private int canvasHeight;
   private int frameWidth;
   private int frameHeight;
   private int sensorOrientation;
+  private int nextTrackId = 0;
 
   public MultiBoxTracker(final Context context) {
-    for (final int color : COLORS) {
-      availableColors.add(color);
+    for (int i = 0; i < tracks.length; i++) {
+      tracks[i] = new TrackedRecognition();
     }
 
     boxPaint.setColor(Color.RED);
@@ -84,6 +131,12 @@ public class MultiBoxTracker {
         TypedValue.applyDimension(
             TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, context.getResources().getDisplayMetrics());
     borderedText = new BorderedText(textSizePx);
+
+    debugTextPaint.setColor(Color.WHITE);
+    debugTextPaint.setTextSize(60.0f);
+    debugBoxPaint.setColor(Color.RED);
+    debugBoxPaint.setAlpha(200);
+    debugBoxPaint.setStyle(Style.STROKE);
   }
 
   public synchronized void setFrameConfiguration(
@@ -91,121 +144,374 @@ public class MultiBoxTracker {
     frameWidth = width;
     frameHeight = height;
     this.sensorOrientation = sensorOrientation;
+    canvasWidth = 0;
+    canvasHeight = 0;
   }
 
   public synchronized void drawDebug(final Canvas canvas) {
-    final Paint textPaint = new Paint();
-    textPaint.setColor(Color.WHITE);
-    textPaint.setTextSize(60.0f);
+    for (int i = 0; i < numScreenRects; i++) {
+      final RectF rect = screenRects[i];
+      final String label = getLabel(null, screenConfidences[i]);
+      canvas.drawRect(rect, debugBoxPaint);
+      canvas.drawText(label, rect.left, rect.top, debugTextPaint);
+      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), label);
+    }
+  }
 
-    final Paint boxPaint = new Paint();
-    boxPaint.setColor(Color.RED);
-    boxPaint.setAlpha(200);
-    boxPaint.setStyle(Style.STROKE);
+  /**
+   * Associates the detections of a frame with the existing tracks.
+   *
+   * @return the track id of each result, or -1 if the result is not tracked. The array is reused
+   *     by the next call, and may be longer than {@code results}.
+   */
+  public synchronized int[] trackResults(final List<Recognition> results, final long timestamp) {
+    logger.v("Processing %d results from %d", results.size(), timestamp);
+    return processResults(results);
+  }
+
+  /**
+   * Returns whether the object of a track has to be (re-)decoded: the track is unknown or new,
+   * was lost for some frames, its box moved materially since the last decode, or the cached payload
+   * expired. Never while a decode of the track is pending, see {@link #onDecodeSubmitted}.
+   */
+  public synchronized boolean needsDecode(final int trackId, final long nowMs) {
+    final TrackedRecognition track = findTrack(trackId);
+    if (track == null) {
+      return true;
+    }
+    if (track.decodePending) {
+      return false;
+    }
+    if (track.decodedText == null || track.reacquired) {
+      return true;
+    }
+    final long ttl = DECODE_TTL_MS * Math.min(track.decodeConfirmations, MAX_DECODE_CONFIRMATIONS);
+    return nowMs - track.decodedAtMs > ttl
+        || iou(track.location, track.decodedLocation) < REDECODE_IOU;
+  }
 
-    for (final Pair<Float, RectF> detection : screenRects) {
-      final RectF rect = detection.second;
-      canvas.drawRect(rect, boxPaint);
-      canvas.drawText("" + detection.first, rect.left, rect.top, textPaint);
-      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + detection.first);
+  /**
+   * Marks the decode of a track as pending until {@link #onDecoded} or {@link #onDecodeFailed},
+   * so that a slow decode is not submitted again with every frame.
+   */
+  public synchronized void onDecodeSubmitted(final int trackId) {
+    final TrackedRecognition track = findTrack(trackId);
+    if (track != null) {
+      track.decodePending = true;
     }
   }
 
-  public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
-    logger.i("Processing %d results from %d", results.size(), timestamp);
-    processResults(results);
+  /** Ends the pending decode of a track, which yielded no payload. */
+  public synchronized void onDecodeFailed(final int trackId) {
+    final TrackedRecognition track = findTrack(trackId);
+    if (track != null) {
+      track.decodePending = false;
+    }
   }
 
-  private Matrix getFrameToCanvasMatrix() {
-    return frameToCanvasMatrix;
+  /**
+   * Caches a decoded payload for a track, ending its pending decode.
+   *
+   * @return true if the payload is new for the track, false if it confirms the cached one.
+   */
+  public synchronized boolean onDecoded(final int trackId, final String text, final long nowMs) {
+    final TrackedRecognition track = findTrack(trackId);
+    if (track == null) {
+      return true;
+    }
+    final boolean isNew = !text.equals(track.decodedText);
+    track.decodeConfirmations = isNew ? 1 : track.decodeConfirmations + 1;
+    track.decodedText = text;
+    track.decodedAtMs = nowMs;
+    track.decodedLocation.set(track.location);
+    track.reacquired = false;
+    track.decodePending = false;
+    return isNew;
   }
 
-  public synchronized void draw(final Canvas canvas) {
+  /** Returns the cached payload of a track, or null. */
+  public synchronized String getDecodedText(final int trackId) {
+    final TrackedRecognition track = findTrack(trackId);
+    return track != null ? track.decodedText : null;
+  }
+
+  private TrackedRecognition findTrack(final int trackId) {
+    for (int i = 0; i < numTracks; i++) {
+      if (tracks[i].id == trackId) {
+        return tracks[i];
+      }
+    }
+    return null;
+  }
+
+  // Computes the frame-to-canvas transform for a canvas size, unless it already was.
+  private void updateFrameToCanvasMatrix(final int width, final int height) {
+    if (width == canvasWidth && height == canvasHeight) {
+      return;
+    }
+    canvasWidth = width;
+    canvasHeight = height;
     final boolean rotated = sensorOrientation % 180 == 90;
     final float multiplier =
         Math.min(
-            canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
-            canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
-    frameToCanvasMatrix =
+            height / (float) (rotated ? frameWidth : frameHeight),
+            width / (float) (rotated ? frameHeight : frameWidth));
+    frameToCanvasMatrix.set(
         ImageUtils.getTransformationMatrix(
             frameWidth,
             frameHeight,
             (int) (multiplier * (rotated ? frameHeight : frameWidth)),
             (int) (multiplier * (rotated ? frameWidth : frameHeight)),
             sensorOrientation,
-            false);
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos = new RectF(recognition.location);
+            false));
+  }
 
-      getFrameToCanvasMatrix().mapRect(trackedPos);
+  // "<title> <confidence in percent>%", formatted once per title and confidence step.
+  private String getLabel(final String title, final float confidence) {
+    final String key = title != null ? title : "";
+    String[] titleLabels = labels.get(key);
+    if (titleLabels == null) {
+      titleLabels = new String[LABEL_STEPS + 1];
+      labels.put(key, titleLabels);
+    }
+    final int step = Math.max(0, Math.min(LABEL_STEPS, Math.round(confidence * LABEL_STEPS)));
+    String label = titleLabels[step];
+    if (label == null) {
+      final float percent = 100.0f * step / LABEL_STEPS;
+      label =
+          !TextUtils.isEmpty(title)
+              ? String.format(Locale.US, "%s %.2f%%", title, percent)
+              : String.format(Locale.US, "%.2f%%", percent);
+      titleLabels[step] = label;
+    }
+    return label;
+  }
+
+  public synchronized void draw(final Canvas canvas) {
+    updateFrameToCanvasMatrix(canvas.getWidth(), canvas.getHeight());
+    for (int i = 0; i < numTracks; i++) {
+      final TrackedRecognition recognition = tracks[i];
+      if (recognition.hits < MIN_HITS) {
+        continue;
+      }
+      final RectF trackedPos = drawRect;
+      frameToCanvasMatrix.mapRect(trackedPos, recognition.location);
       boxPaint.setColor(recognition.color);
 
       float cornerSize = Math.min(trackedPos.width(), trackedPos.height()) / 8.0f;
       canvas.drawRoundRect(trackedPos, cornerSize, cornerSize, boxPaint);
 
-      final String labelString =
-          !TextUtils.isEmpty(recognition.title)
-              ? String.format("%s %.2f", recognition.title, (100 * recognition.detectionConfidence))
-              : String.format("%.2f", (100 * recognition.detectionConfidence));
-      //            borderedText.drawText(canvas, trackedPos.left + cornerSize, trackedPos.top,
-      // labelString);
       borderedText.drawText(
-          canvas, trackedPos.left + cornerSize, trackedPos.top, labelString + "%", boxPaint);
+          canvas,
+          trackedPos.left + cornerSize,
+          trackedPos.top,
+          getLabel(recognition.title, recognition.detectionConfidence),
+          boxPaint);
     }
   }
 
-  private void processResults(final List<Recognition> results) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
-
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
+  private int[] processResults(final List<Recognition> results) {
+    if (trackableResults.length < results.size()) {
+      trackableResults = new int[results.size()];
+      trackIds = new int[results.size()];
+    }
+    int numTrackable = 0;
 
-    for (final Recognition result : results) {
-      if (result.getLocation() == null) {
+    numScreenRects = 0;
+    for (int i = 0; i < results.size(); i++) {
+      final Recognition result = results.get(i);
+      trackIds[i] = -1;
+      final RectF detectionFrameRect = result.location();
+      if (detectionFrameRect == null) {
         continue;
       }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
-
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
-
-      logger.v(
-          "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
 
-      screenRects.add(new Pair<Float, RectF>(result.getConfidence(), detectionScreenRect));
+      final RectF detectionScreenRect = nextScreenRect(result.confidence());
+      frameToCanvasMatrix.mapRect(detectionScreenRect, detectionFrameRect);
 
       if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
         logger.w("Degenerate rectangle! " + detectionFrameRect);
         continue;
       }
 
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getConfidence(), result));
+      trackableResults[numTrackable++] = i;
     }
 
-    trackedObjects.clear();
-    if (rectsToTrack.isEmpty()) {
-      logger.v("Nothing to track, aborting.");
-      return;
+    // Greedily associate detections and tracks, best overlap first.
+    int numCandidates = 0;
+    for (int t = 0; t < numTracks; t++) {
+      final TrackedRecognition track = tracks[t];
+      track.matched = false;
+      for (int r = 0; r < numTrackable; r++) {
+        final int resultIndex = trackableResults[r];
+        final float overlap = iou(track.location, results.get(resultIndex).location());
+        if (overlap >= MIN_ASSOCIATION_IOU) {
+          if (numCandidates == candidates.length) {
+            growCandidates();
+          }
+          candidates[numCandidates++].set(track, resultIndex, overlap);
+        }
+      }
     }
+    Arrays.sort(candidates, 0, numCandidates, BEST_IOU_FIRST);
 
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      trackedRecognition.color = COLORS[trackedObjects.size()];
-      trackedObjects.add(trackedRecognition);
+    for (int c = 0; c < numCandidates; c++) {
+      final Association candidate = candidates[c];
+      if (candidate.track.matched || trackIds[candidate.resultIndex] != -1) {
+        continue;
+      }
+      final Recognition result = results.get(candidate.resultIndex);
+      final TrackedRecognition track = candidate.track;
+      track.location.set(result.location());
+      track.detectionConfidence = result.confidence();
+      track.title = result.getTitle();
+      track.hits++;
+      track.reacquired |= track.missed > 0;
+      track.missed = 0;
+      track.matched = true;
+      trackIds[candidate.resultIndex] = track.id;
+    }
+    for (int c = 0; c < numCandidates; c++) {
+      candidates[c].track = null;
+    }
+
+    // Drop the tracks missed for too long, keeping the order of the others. A track not shown yet
+    // starts over on a miss, so that sporadic detections are not shown.
+    int kept = 0;
+    for (int t = 0; t < numTracks; t++) {
+      final TrackedRecognition track = tracks[t];
+      if (!track.matched) {
+        if (++track.missed > MAX_MISSED) {
+          continue;
+        }
+        if (track.hits < MIN_HITS) {
+          track.hits = 0;
+        }
+      }
+      tracks[t] = tracks[kept];
+      tracks[kept++] = track;
+    }
+    numTracks = kept;
 
-      if (trackedObjects.size() >= COLORS.length) {
+    for (int r = 0; r < numTrackable; r++) {
+      final int resultIndex = trackableResults[r];
+      if (trackIds[resultIndex] != -1) {
+        continue;
+      }
+      if (numTracks >= tracks.length) {
         break;
       }
+      final Recognition result = results.get(resultIndex);
+      final int color = pickColor(nextTrackId);
+      final TrackedRecognition trackedRecognition = tracks[numTracks++];
+      trackedRecognition.reset();
+      trackedRecognition.id = nextTrackId++;
+      trackedRecognition.detectionConfidence = result.confidence();
+      trackedRecognition.location.set(result.location());
+      trackedRecognition.title = result.getTitle();
+      trackedRecognition.color = color;
+      trackedRecognition.hits = 1;
+      trackIds[resultIndex] = trackedRecognition.id;
     }
+
+    if (numTracks == 0) {
+      logger.v("Nothing to track.");
+    }
+    return trackIds;
   }
 
+  // The first colour of the palette that no live track has, or one by track id if all are taken.
+  private int pickColor(final int trackId) {
+    for (final int color : COLORS) {
+      boolean taken = false;
+      for (int t = 0; t < numTracks && !taken; t++) {
+        taken = tracks[t].color == color;
+      }
+      if (!taken) {
+        return color;
+      }
+    }
+    return COLORS[trackId % COLORS.length];
+  }
+
+  // Returns the next pooled screen rect, recording the confidence of its detection.
+  private RectF nextScreenRect(final float confidence) {
+    if (numScreenRects == screenRects.length) {
+      final int size = Math.max(4, 2 * screenRects.length);
+      screenRects = Arrays.copyOf(screenRects, size);
+      screenConfidences = Arrays.copyOf(screenConfidences, size);
+      for (int i = numScreenRects; i < size; i++) {
+        screenRects[i] = new RectF();
+      }
+    }
+    screenConfidences[numScreenRects] = confidence;
+    return screenRects[numScreenRects++];
+  }
+
+  private void growCandidates() {
+    final int size = Math.max(8, 2 * candidates.length);
+    final int oldSize = candidates.length;
+    candidates = Arrays.copyOf(candidates, size);
+    for (int i = oldSize; i < size; i++) {
+      candidates[i] = new Association();
+    }
+  }
+
+  private static float iou(final RectF a, final RectF b) {
+    final float intersectionWidth = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+    final float intersectionHeight = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+    if (intersectionWidth <= 0 || intersectionHeight <= 0) {
+      return 0;
+    }
+    final float intersection = intersectionWidth * intersectionHeight;
+    return intersection / (a.width() * a.height() + b.width() * b.height() - intersection);
+  }
+
+  // Pooled, see candidates.
+  private static class Association {
+    TrackedRecognition track;
+    int resultIndex;
+    float iou;
+
+    void set(final TrackedRecognition track, final int resultIndex, final float iou) {
+      this.track = track;
+      this.resultIndex = resultIndex;
+      this.iou = iou;
+    }
+  }
+
+  // Pooled, see tracks.
   private static class TrackedRecognition {
-    RectF location;
+    int id;
+    final RectF location = new RectF();
     float detectionConfidence;
     int color;
     String title;
+    // Number of frames the track has been associated with a detection, consecutive until shown.
+    int hits;
+    // Number of consecutive frames without an associated detection.
+    int missed;
+    // Set when the track was lost for some frames and found again.
+    boolean reacquired;
+    // Set while associating the detections of a frame.
+    boolean matched;
+    // Set while a decode submitted for the track has not ended.
+    boolean decodePending;
+    String decodedText;
+    // Only meaningful with a decodedText.
+    final RectF decodedLocation = new RectF();
+    long decodedAtMs;
+    int decodeConfirmations;
+
+    void reset() {
+      hits = 0;
+      missed = 0;
+      reacquired = false;
+      matched = false;
+      decodePending = false;
+      decodedText = null;
+      decodedAtMs = 0;
+      decodeConfirmations = 0;
+    }
   }
 }
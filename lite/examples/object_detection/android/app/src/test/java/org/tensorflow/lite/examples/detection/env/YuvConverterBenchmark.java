@@ -0,0 +1,168 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Checks that {@link YuvConverter} matches the scalar converters of {@link ImageUtils}.
+ *
+ * <p>The benchmarks, which compare their speed on the JVM at 1080p and 4K, take a while and are
+ * ignored by default; remove {@code @Ignore} to run them. They fail if the parallel converter is
+ * noticeably slower, with both timings in the message. On a single core both run at the same
+ * speed.
+ */
+@RunWith(JUnit4.class)
+public class YuvConverterBenchmark {
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int ITERATIONS = 20;
+  /** How much slower than the scalar converter the parallel one may measure, for timing noise. */
+  private static final double SLOWDOWN_TOLERANCE = 1.25;
+
+  private YuvConverter converter;
+
+  @Before
+  public void setUp() {
+    converter = new YuvConverter(Runtime.getRuntime().availableProcessors());
+  }
+
+  @After
+  public void tearDown() {
+    converter.close();
+  }
+
+  @Test
+  public void lookupTablesMatchScalarConversion() {
+    for (int y = 0; y < 256; ++y) {
+      for (int u = 0; u < 256; ++u) {
+        for (int v = 0; v < 256; ++v) {
+          if (YuvConverter.yuvToRgb(y, u, v) != ImageUtils.YUV2RGB(y, u, v)) {
+            assertEquals(ImageUtils.YUV2RGB(y, u, v), YuvConverter.yuvToRgb(y, u, v));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void oddSizesMatchScalarConversion() {
+    benchmark("33x17", 33, 17, 0);
+  }
+
+  @Test
+  @Ignore("Benchmark, run manually")
+  public void benchmark1080p() {
+    benchmark("1080p", 1920, 1080, ITERATIONS);
+  }
+
+  @Test
+  @Ignore("Benchmark, run manually")
+  public void benchmark4k() {
+    benchmark("4K", 3840, 2160, ITERATIONS);
+  }
+
+  private void benchmark(
+      final String name, final int width, final int height, final int iterations) {
+    final Random random = new Random(42);
+    // Camera2 planes with semi-planar chroma and padded rows, as most devices deliver them.
+    final int yRowStride = width + 32;
+    final int uvRowStride = yRowStride;
+    final int uvPixelStride = 2;
+    final int chromaHeight = (height + 1) / 2;
+    final byte[] yData = new byte[yRowStride * height];
+    final byte[] uData = new byte[uvRowStride * chromaHeight];
+    final byte[] vData = new byte[uvRowStride * chromaHeight];
+    random.nextBytes(yData);
+    random.nextBytes(uData);
+    random.nextBytes(vData);
+    final byte[] nv21 = new byte[width * height + 2 * ((width + 1) / 2) * chromaHeight];
+    random.nextBytes(nv21);
+
+    final int[] expected = new int[width * height];
+    final int[] actual = new int[width * height];
+
+    ImageUtils.convertYUV420ToARGB8888(
+        yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, expected);
+    converter.convertYUV420ToARGB8888(
+        yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, actual);
+    assertArrayEquals(expected, actual);
+
+    ImageUtils.convertYUV420SPToARGB8888(nv21, width, height, expected);
+    converter.convertYUV420SPToARGB8888(nv21, width, height, actual);
+    assertArrayEquals(expected, actual);
+
+    if (iterations == 0) {
+      return;
+    }
+
+    final Runnable scalar =
+        () ->
+            ImageUtils.convertYUV420ToARGB8888(
+                yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride,
+                expected);
+    final Runnable parallel =
+        () ->
+            converter.convertYUV420ToARGB8888(
+                yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride,
+                actual);
+    final double scalarMs = time(scalar, iterations);
+    final double parallelMs = time(parallel, iterations);
+    assertNotSlower(name + " YUV420 -> ARGB8888", scalarMs, parallelMs);
+
+    final double scalarSpMs =
+        time(() -> ImageUtils.convertYUV420SPToARGB8888(nv21, width, height, expected), iterations);
+    final double parallelSpMs =
+        time(() -> converter.convertYUV420SPToARGB8888(nv21, width, height, actual), iterations);
+    assertNotSlower(name + " NV21 -> ARGB8888", scalarSpMs, parallelSpMs);
+  }
+
+  private static void assertNotSlower(
+      final String name, final double scalarMs, final double parallelMs) {
+    assertTrue(
+        String.format(
+            Locale.US,
+            "%s: scalar %.2f ms, parallel %.2f ms (%.1fx)",
+            name,
+            scalarMs,
+            parallelMs,
+            scalarMs / parallelMs),
+        parallelMs <= scalarMs * SLOWDOWN_TOLERANCE);
+  }
+
+  /** Returns the mean time of one run in milliseconds. */
+  private static double time(final Runnable runnable, final int iterations) {
+    for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+      runnable.run();
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      runnable.run();
+    }
+    return (System.nanoTime() - start) / 1e6 / iterations;
+  }
+}
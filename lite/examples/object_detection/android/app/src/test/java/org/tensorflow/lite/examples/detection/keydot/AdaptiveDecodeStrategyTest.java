@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.keydot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Rect;
+import com.example.zxingcpp.BarcodeReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the racing of {@link AdaptiveDecodeStrategy}. */
+@RunWith(JUnit4.class)
+public class AdaptiveDecodeStrategyTest {
+  private static final long TIMEOUT_MS = 5000;
+
+  /** A backend that blocks each decode until released, ignoring interrupts like native code. */
+  private static final class BlockingBackend implements KeydotDecoder.Factory {
+    final String name;
+    final BarcodeReader.Result result;
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    BlockingBackend(final String name, final BarcodeReader.Result result) {
+      this.name = name;
+      this.result = result;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public KeydotDecoder create() {
+      return new KeydotDecoder() {
+        @Override
+        public BarcodeReader.Result decode(
+            final ByteBuffer luminance,
+            final int width,
+            final int height,
+            final int rowStride,
+            final Rect roi,
+            final int rotation,
+            final boolean tryHarder,
+            final boolean invert) {
+          started.countDown();
+          awaitUninterruptibly(release);
+          return result;
+        }
+
+        @Override
+        public void close() {}
+      };
+    }
+  }
+
+  @Test
+  public void slowLoserKeepsLuminanceInUse() throws InterruptedException {
+    final BlockingBackend fast = new BlockingBackend("fast", new BarcodeReader.Result());
+    final BlockingBackend slow = new BlockingBackend("slow", null);
+    final AdaptiveDecodeStrategy strategy =
+        new AdaptiveDecodeStrategy(
+            Arrays.asList(fast, slow), AdaptiveDecodeStrategy.Level.PLAIN, true, 1);
+    final AtomicInteger luminanceUsers = new AtomicInteger(1);
+
+    // The fast backend wins, but only once the slow one is reading the plane.
+    final Thread winner =
+        new Thread(
+            () -> {
+              awaitUninterruptibly(slow.started);
+              fast.release.countDown();
+            });
+    winner.start();
+    final BarcodeReader.Result result =
+        strategy.decode(
+            ByteBuffer.allocateDirect(16),
+            4,
+            4,
+            4,
+            null,
+            0,
+            false,
+            new AtomicBoolean(),
+            luminanceUsers);
+    winner.join();
+    assertNotNull(result);
+
+    // The caller lets go of the plane, the losing decode still reads it.
+    luminanceUsers.decrementAndGet();
+    assertEquals(1, luminanceUsers.get());
+    assertEquals(1, strategy.getNumLateAttempts());
+
+    slow.release.countDown();
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (luminanceUsers.get() != 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(0, luminanceUsers.get());
+    assertEquals(0, strategy.getNumLateAttempts());
+    strategy.close();
+  }
+
+  private static void awaitUninterruptibly(final CountDownLatch latch) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+          return;
+        } catch (final InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
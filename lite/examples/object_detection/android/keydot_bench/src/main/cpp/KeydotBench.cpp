@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host (JVM) bindings of the zxing-cpp decoder session, used by the keydot benchmark. They run the
+// same DecoderSession as the app, so the numbers only differ from the device in the CPU.
+
+#include "BitMatrix.h"
+#include "DecoderSession.h"
+#include "JNIUtils.h"
+#include "TextUtfEncoding.h"
+#include "datamatrix/DMSymbolShape.h"
+#include "datamatrix/DMWriter.h"
+
+#include <chrono>
+#include <exception>
+#include <vector>
+
+using namespace ZXing;
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_tensorflow_lite_examples_detection_bench_NativeDecoder_create(
+		JNIEnv* env, jclass clazz, jstring formats, jboolean tryHarder, jboolean tryRotate)
+{
+	try {
+		auto hints = DecodeHints()
+						 .setFormats(BarcodeFormatsFromString(J2CString(env, formats)))
+						 .setTryHarder(tryHarder)
+						 .setTryRotate(tryRotate);
+		return reinterpret_cast<jlong>(new DecoderSession(hints));
+	} catch (const std::exception& e) {
+		ThrowJavaException(env, e.what());
+	} catch (...) {
+		ThrowJavaException(env, "Unknown exception");
+	}
+	return 0;
+}
+
+extern "C" JNIEXPORT jstring JNICALL
+Java_org_tensorflow_lite_examples_detection_bench_NativeDecoder_readLuminance(
+		JNIEnv* env, jclass clazz, jlong handle, jobject buffer,
+		jint dataWidth, jint dataHeight, jint rowStride,
+		jint left, jint top, jint width, jint height, jint rotation, jboolean invert,
+		jobject result)
+{
+	try {
+		auto data = static_cast<const uint8_t*>(env->GetDirectBufferAddress(buffer));
+		if (!data)
+			return ThrowJavaException(env, "Luminance buffer is not a direct buffer");
+		if (!LuminanceFits(env->GetDirectBufferCapacity(buffer), dataWidth, dataHeight, rowStride))
+			return ThrowJavaException(env, "Luminance buffer is too small for the given dimensions");
+
+		std::chrono::high_resolution_clock::duration duration{};
+		auto res = ReadLuminance(reinterpret_cast<DecoderSession*>(handle), data, dataWidth, dataHeight, rowStride,
+								 left, top, width, height, rotation, invert, duration);
+
+		return ReturnResult(env, res, duration, result);
+	} catch (const std::exception& e) {
+		return ThrowJavaException(env, e.what());
+	} catch (...) {
+		return ThrowJavaException(env, "Unknown exception");
+	}
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_tensorflow_lite_examples_detection_bench_NativeDecoder_destroy(JNIEnv* env, jclass clazz, jlong handle)
+{
+	delete reinterpret_cast<DecoderSession*>(handle);
+}
+
+// Renders text as a square DataMatrix of at least size x size pixels, dark modules 0, light modules 255.
+extern "C" JNIEXPORT jbyteArray JNICALL
+Java_org_tensorflow_lite_examples_detection_bench_NativeDecoder_encodeDataMatrix(
+		JNIEnv* env, jclass clazz, jstring text, jint size)
+{
+	try {
+		auto matrix = DataMatrix::Writer()
+						  .setShapeHint(DataMatrix::SymbolShape::SQUARE)
+						  .encode(TextUtfEncoding::FromUtf8(J2CString(env, text)), size, size);
+
+		std::vector<jbyte> pixels(static_cast<size_t>(matrix.width()) * matrix.height());
+		for (int y = 0; y < matrix.height(); ++y)
+			for (int x = 0; x < matrix.width(); ++x)
+				pixels[y * matrix.width() + x] = static_cast<jbyte>(matrix.get(x, y) ? 0 : 255);
+
+		jbyteArray array = env->NewByteArray(static_cast<jsize>(pixels.size()));
+		env->SetByteArrayRegion(array, 0, static_cast<jsize>(pixels.size()), pixels.data());
+		return array;
+	} catch (const std::exception& e) {
+		ThrowJavaException(env, e.what());
+	} catch (...) {
+		ThrowJavaException(env, "Unknown exception");
+	}
+	return nullptr;
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.bench;
+
+import java.io.Closeable;
+
+/**
+ * A keydot decoder under benchmark. The crop and decode stages are split so that they can be timed
+ * separately. Instances are used from a single thread.
+ */
+interface DecoderBackend extends Closeable {
+  String name();
+
+  /** Crop stage: prepares {@code roi} of {@code frame} for {@link #decode()}. */
+  void crop(Frame frame, Frame.Keydot roi);
+
+  /**
+   * Decode stage: decodes the region prepared by the last {@link #crop}.
+   *
+   * @return the payload, or null if nothing was decoded.
+   */
+  String decode();
+
+  @Override
+  void close();
+}
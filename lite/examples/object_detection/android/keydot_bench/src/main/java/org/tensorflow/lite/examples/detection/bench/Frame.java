@@ -0,0 +1,85 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A luminance plane (the Y plane of a camera frame) with the keydots detected on it. */
+final class Frame {
+  /** A detected keydot, in plane coordinates. */
+  static final class Keydot {
+    final int left;
+    final int top;
+    final int right;
+    final int bottom;
+    /** Payload the keydot must decode to, or null if any payload counts as a success. */
+    final String expected;
+
+    Keydot(
+        final int left, final int top, final int right, final int bottom, final String expected) {
+      this.left = left;
+      this.top = top;
+      this.right = right;
+      this.bottom = bottom;
+      this.expected = expected;
+    }
+
+    int width() {
+      return right - left;
+    }
+
+    int height() {
+      return bottom - top;
+    }
+  }
+
+  final String name;
+  final int width;
+  final int height;
+  final int rowStride;
+  /** Rotation of the frame relative to the screen, as passed to the decoders by the app. */
+  final int rotation;
+  /** {@code height} rows of {@code rowStride} bytes. */
+  final byte[] luminance;
+  /** Direct copy of {@link #luminance}, like the Y plane snapshot the app decodes from. */
+  final ByteBuffer directLuminance;
+  final List<Keydot> keydots = new ArrayList<>();
+
+  Frame(
+      final String name,
+      final int width,
+      final int height,
+      final int rowStride,
+      final int rotation,
+      final byte[] luminance) {
+    if (rowStride < width || luminance.length < rowStride * (height - 1) + width) {
+      throw new IllegalArgumentException(
+          name + ": luminance plane too small for " + width + "x" + height);
+    }
+    this.name = name;
+    this.width = width;
+    this.height = height;
+    this.rowStride = rowStride;
+    this.rotation = rotation;
+    this.luminance = luminance;
+    directLuminance = ByteBuffer.allocateDirect(luminance.length);
+    directLuminance.put(luminance);
+    directLuminance.rewind();
+  }
+}
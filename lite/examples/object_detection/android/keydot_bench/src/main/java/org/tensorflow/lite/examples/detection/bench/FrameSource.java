@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Frames for the benchmark: either recorded on a device by the app's {@code FrameRecorder}, or
+ * rendered here with zxing-cpp's DataMatrix writer.
+ *
+ * <p>A recording is a directory of {@code frame_<n>.y} files, each holding the raw Y plane of a
+ * frame, next to a {@code frame_<n>.txt} sidecar:
+ *
+ * <pre>
+ * width height rowStride rotation
+ * left top right bottom [expected payload]
+ * ...
+ * </pre>
+ *
+ * <p>with one line per keydot the detector found on the frame, in plane coordinates and before the
+ * margin the app adds around it.
+ */
+final class FrameSource {
+  private static final String SIDECAR_SUFFIX = ".txt";
+  private static final String PLANE_SUFFIX = ".y";
+
+  private FrameSource() {}
+
+  /** Loads all frames of a recording, in file name order. */
+  static List<Frame> loadRecording(final File dir) throws IOException {
+    final File[] sidecars = dir.listFiles((d, name) -> name.endsWith(SIDECAR_SUFFIX));
+    if (sidecars == null || sidecars.length == 0) {
+      throw new IOException("No recorded frames in " + dir);
+    }
+    Arrays.sort(sidecars);
+    final List<Frame> frames = new ArrayList<>(sidecars.length);
+    for (final File sidecar : sidecars) {
+      frames.add(loadFrame(sidecar));
+    }
+    return frames;
+  }
+
+  private static Frame loadFrame(final File sidecar) throws IOException {
+    final String name =
+        sidecar.getName().substring(0, sidecar.getName().length() - SIDECAR_SUFFIX.length());
+    final List<String> lines = Files.readAllLines(sidecar.toPath(), StandardCharsets.UTF_8);
+    if (lines.isEmpty()) {
+      throw new IOException(sidecar + ": missing frame header");
+    }
+    final String[] header = lines.get(0).trim().split("\\s+");
+    if (header.length != 4) {
+      throw new IOException(sidecar + ": expected 'width height rowStride rotation'");
+    }
+    final byte[] plane =
+        Files.readAllBytes(new File(sidecar.getParentFile(), name + PLANE_SUFFIX).toPath());
+    final Frame frame =
+        new Frame(
+            name,
+            Integer.parseInt(header[0]),
+            Integer.parseInt(header[1]),
+            Integer.parseInt(header[2]),
+            Integer.parseInt(header[3]),
+            plane);
+    for (int i = 1; i < lines.size(); i++) {
+      final String line = lines.get(i).trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      final String[] fields = line.split("\\s+", 5);
+      if (fields.length < 4) {
+        throw new IOException(sidecar + ":" + (i + 1) + ": expected 'left top right bottom'");
+      }
+      frame.keydots.add(
+          new Frame.Keydot(
+              Integer.parseInt(fields[0]),
+              Integer.parseInt(fields[1]),
+              Integer.parseInt(fields[2]),
+              Integer.parseInt(fields[3]),
+              fields.length == 5 ? fields[4] : null));
+    }
+    return frame;
+  }
+
+  /**
+   * Renders {@code count} frames of {@code keydotsPerFrame} light-on-dark DataMatrix keydots each,
+   * with sensor noise and detection boxes that are off by a few pixels, like the detector's.
+   */
+  static List<Frame> synthetic(
+      final int count,
+      final int width,
+      final int height,
+      final int keydotsPerFrame,
+      final long seed) {
+    final Random random = new Random(seed);
+    // Keydots are placed in the cells of a grid, so that they never overlap.
+    final int columns = (int) Math.ceil(Math.sqrt(keydotsPerFrame * (double) width / height));
+    final int rows = (keydotsPerFrame + columns - 1) / columns;
+    final int cellWidth = width / columns;
+    final int cellHeight = height / rows;
+    final int maxSize = Math.min(cellWidth, cellHeight) * 3 / 4;
+    final int minSize = Math.min(maxSize, 48);
+
+    final List<Frame> frames = new ArrayList<>(count);
+    for (int n = 0; n < count; n++) {
+      final byte[] plane = new byte[width * height];
+      for (int i = 0; i < plane.length; i++) {
+        plane[i] = (byte) clamp(40 + (int) (random.nextGaussian() * 3));
+      }
+      final List<Frame.Keydot> keydots = new ArrayList<>(keydotsPerFrame);
+      for (int k = 0; k < keydotsPerFrame; k++) {
+        final String payload = String.format(Locale.US, "KD%08d", random.nextInt(100_000_000));
+        final int minSymbolSize = minSize + random.nextInt(maxSize - minSize + 1);
+        final byte[] symbol = NativeDecoder.encodeDataMatrix(payload, minSymbolSize);
+        final int size = (int) Math.sqrt(symbol.length);
+        final int cellLeft = (k % columns) * cellWidth;
+        final int cellTop = (k / columns) * cellHeight;
+        final int left = cellLeft + random.nextInt(Math.max(1, cellWidth - size));
+        final int top = cellTop + random.nextInt(Math.max(1, cellHeight - size));
+        // Light modules on a dark label, as the app decodes keydots inverted.
+        final int dark = 30 + random.nextInt(30);
+        final int light = 170 + random.nextInt(60);
+        for (int y = 0; y < size && top + y < height; y++) {
+          for (int x = 0; x < size && left + x < width; x++) {
+            final int level = symbol[y * size + x] == 0 ? light : dark;
+            plane[(top + y) * width + left + x] =
+                (byte) clamp(level + (int) (random.nextGaussian() * 3));
+          }
+        }
+        final int jitter = Math.max(1, size / 16);
+        keydots.add(
+            new Frame.Keydot(
+                left + random.nextInt(2 * jitter + 1) - jitter,
+                top + random.nextInt(2 * jitter + 1) - jitter,
+                left + size + random.nextInt(2 * jitter + 1) - jitter,
+                top + size + random.nextInt(2 * jitter + 1) - jitter,
+                payload));
+      }
+      final Frame frame =
+          new Frame(String.format(Locale.US, "synthetic_%04d", n), width, height, width, 0, plane);
+      frame.keydots.addAll(keydots);
+      frames.add(frame);
+    }
+    return frames;
+  }
+
+  private static int clamp(final int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+}
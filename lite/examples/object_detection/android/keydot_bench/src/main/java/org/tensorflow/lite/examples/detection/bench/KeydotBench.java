@@ -0,0 +1,347 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Headless benchmark of the keydot decoders linked by the app. Replays recorded or synthetic frames
+ * through detect, crop and decode, and reports per stage latency percentiles and heap allocations,
+ * and the decode success rate, of every decoder backend.
+ *
+ * <p>The detector itself does not run on the host: the detect stage replays the keydots recorded
+ * with the frame (or placed by the synthetic renderer) and expands them by the app's margin.
+ *
+ * <p>Exits with status 1 when a backend misses {@code --min-success} or {@code --max-decode-p95},
+ * so that it can gate regressions.
+ */
+public final class KeydotBench {
+  private static final String USAGE =
+      String.join(
+          "\n",
+          "Usage: KeydotBench [options]",
+          "  --frames DIR            replay the frames recorded in DIR (default: synthetic)",
+          "  --synthetic N           number of synthetic frames (default 50)",
+          "  --size WxH              synthetic frame size (default 1920x1080)",
+          "  --keydots K             keydots per synthetic frame (default 4)",
+          "  --seed S                seed of the synthetic frames (default 1)",
+          "  --margin PX             margin added around detections, as in the app (default 20)",
+          "  --warmup N              passes over the frames before measuring (default 1)",
+          "  --iterations N          measured passes over the frames (default 5)",
+          "  --backends LIST         comma separated: zxing-cpp,zxing-java,ml-kit (default all)",
+          "  --min-success RATE      fail if a backend decodes less than RATE (0..1) of keydots",
+          "  --max-decode-p95 MS     fail if a backend's decode p95 latency exceeds MS");
+
+  private static final String[] STAGES = {"detect", "crop", "decode", "frame"};
+
+  private final List<Frame> frames;
+  private final int margin;
+  private final int warmup;
+  private final int iterations;
+  private final com.sun.management.ThreadMXBean threads;
+  private final long threadId = Thread.currentThread().getId();
+  // Bytes reported between two back to back reads of the allocation counter.
+  private final long allocationOverhead;
+
+  /** Results of one backend. */
+  private static final class Report {
+    final String backend;
+    final Map<String, StageStats> stages = new LinkedHashMap<>();
+    int keydots;
+    int decoded;
+
+    Report(final String backend) {
+      this.backend = backend;
+      for (final String stage : STAGES) {
+        stages.put(stage, new StageStats(stage));
+      }
+    }
+
+    double successRate() {
+      return keydots == 0 ? Double.NaN : (double) decoded / keydots;
+    }
+  }
+
+  private KeydotBench(
+      final List<Frame> frames, final int margin, final int warmup, final int iterations) {
+    this.frames = frames;
+    this.margin = margin;
+    this.warmup = warmup;
+    this.iterations = iterations;
+    threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    threads.setThreadAllocatedMemoryEnabled(true);
+    allocatedBytes();
+    final long start = allocatedBytes();
+    allocationOverhead = allocatedBytes() - start;
+  }
+
+  public static void main(final String[] args) throws IOException {
+    File framesDir = null;
+    int synthetic = 50;
+    int width = 1920;
+    int height = 1080;
+    int keydots = 4;
+    long seed = 1;
+    int margin = 20;
+    int warmup = 1;
+    int iterations = 5;
+    List<String> backends = Arrays.asList("zxing-cpp", "zxing-java", "ml-kit");
+    double minSuccess = 0;
+    double maxDecodeP95 = Double.POSITIVE_INFINITY;
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        final String arg = args[i];
+        if (arg.equals("--help")) {
+          System.out.println(USAGE);
+          return;
+        }
+        if (i + 1 == args.length) {
+          throw new IllegalArgumentException("Missing value of " + arg);
+        }
+        final String value = args[++i];
+        switch (arg) {
+          case "--frames":
+            framesDir = new File(value);
+            break;
+          case "--synthetic":
+            synthetic = Integer.parseInt(value);
+            break;
+          case "--size":
+            final String[] size = value.split("x");
+            width = Integer.parseInt(size[0]);
+            height = Integer.parseInt(size[1]);
+            break;
+          case "--keydots":
+            keydots = Integer.parseInt(value);
+            break;
+          case "--seed":
+            seed = Long.parseLong(value);
+            break;
+          case "--margin":
+            margin = Integer.parseInt(value);
+            break;
+          case "--warmup":
+            warmup = Integer.parseInt(value);
+            break;
+          case "--iterations":
+            iterations = Integer.parseInt(value);
+            break;
+          case "--backends":
+            backends = Arrays.asList(value.split(","));
+            break;
+          case "--min-success":
+            minSuccess = Double.parseDouble(value);
+            break;
+          case "--max-decode-p95":
+            maxDecodeP95 = Double.parseDouble(value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      }
+    } catch (final RuntimeException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+
+    final List<Frame> frames =
+        framesDir != null
+            ? FrameSource.loadRecording(framesDir)
+            : FrameSource.synthetic(synthetic, width, height, keydots, seed);
+    System.out.printf(
+        Locale.US,
+        "%d frames from %s, %d warmup + %d measured passes%n",
+        frames.size(),
+        framesDir != null ? framesDir : "the synthetic renderer",
+        warmup,
+        iterations);
+
+    final KeydotBench bench = new KeydotBench(frames, margin, warmup, iterations);
+    final List<Report> reports = new ArrayList<>();
+    for (final String name : backends) {
+      final DecoderBackend backend = createBackend(name);
+      if (backend == null) {
+        continue;
+      }
+      try {
+        reports.add(bench.run(backend));
+      } finally {
+        backend.close();
+      }
+    }
+    print(reports);
+
+    boolean failed = false;
+    for (final Report report : reports) {
+      if (report.successRate() < minSuccess) {
+        System.out.printf(
+            Locale.US,
+            "FAIL %s: success rate %.3f below %.3f%n",
+            report.backend,
+            report.successRate(),
+            minSuccess);
+        failed = true;
+      }
+      final double decodeP95 = report.stages.get("decode").percentileMs(95);
+      if (decodeP95 > maxDecodeP95) {
+        System.out.printf(
+            Locale.US,
+            "FAIL %s: decode p95 %.2f ms above %.2f ms%n",
+            report.backend,
+            decodeP95,
+            maxDecodeP95);
+        failed = true;
+      }
+    }
+    System.exit(failed ? 1 : 0);
+  }
+
+  private static DecoderBackend createBackend(final String name) {
+    switch (name) {
+      case "zxing-cpp":
+        return new ZxingCppBackend();
+      case "zxing-java":
+        return new ZxingJavaBackend();
+      case "ml-kit":
+        // ML Kit ships as an Android library backed by Play services and has no JVM build.
+        System.out.println("ml-kit: skipped, it only runs on a device");
+        return null;
+      default:
+        throw new IllegalArgumentException("Unknown backend " + name);
+    }
+  }
+
+  private Report run(final DecoderBackend backend) {
+    for (int i = 0; i < warmup; i++) {
+      for (final Frame frame : frames) {
+        processFrame(backend, frame, null);
+      }
+    }
+    final Report report = new Report(backend.name());
+    for (int i = 0; i < iterations; i++) {
+      for (final Frame frame : frames) {
+        processFrame(backend, frame, report);
+      }
+    }
+    return report;
+  }
+
+  private void processFrame(final DecoderBackend backend, final Frame frame, final Report report) {
+    final long frameStart = System.nanoTime();
+    final long frameAllocated = allocatedBytes();
+
+    long start = System.nanoTime();
+    long allocated = allocatedBytes();
+    final List<Frame.Keydot> rois = detect(frame);
+    record(report, "detect", start, allocated);
+
+    for (final Frame.Keydot roi : rois) {
+      start = System.nanoTime();
+      allocated = allocatedBytes();
+      backend.crop(frame, roi);
+      record(report, "crop", start, allocated);
+
+      start = System.nanoTime();
+      allocated = allocatedBytes();
+      final String text = backend.decode();
+      record(report, "decode", start, allocated);
+
+      if (report != null) {
+        report.keydots++;
+        if (text != null && (roi.expected == null || roi.expected.equals(text))) {
+          report.decoded++;
+        }
+      }
+    }
+    record(report, "frame", frameStart, frameAllocated);
+  }
+
+  /** Replays the detections of the frame, expanded and clipped like the app's keydot ROIs. */
+  private List<Frame.Keydot> detect(final Frame frame) {
+    final List<Frame.Keydot> rois = new ArrayList<>(frame.keydots.size());
+    for (final Frame.Keydot keydot : frame.keydots) {
+      rois.add(
+          new Frame.Keydot(
+              Math.max(0, keydot.left - margin),
+              Math.max(0, keydot.top - margin),
+              Math.min(frame.width, keydot.right + margin),
+              Math.min(frame.height, keydot.bottom + margin),
+              keydot.expected));
+    }
+    return rois;
+  }
+
+  private void record(
+      final Report report, final String stage, final long start, final long allocated) {
+    final long elapsed = System.nanoTime() - start;
+    final long bytes = allocatedBytes() - allocated - allocationOverhead;
+    if (report != null) {
+      report.stages.get(stage).add(elapsed, Math.max(0, bytes));
+    }
+  }
+
+  private long allocatedBytes() {
+    return threads.getThreadAllocatedBytes(threadId);
+  }
+
+  private static void print(final List<Report> reports) {
+    System.out.printf(
+        Locale.US,
+        "%-12s %-8s %8s %9s %9s %9s %12s%n",
+        "backend",
+        "stage",
+        "count",
+        "p50 ms",
+        "p95 ms",
+        "p99 ms",
+        "alloc B/op");
+    for (final Report report : reports) {
+      for (final StageStats stats : report.stages.values()) {
+        System.out.printf(
+            Locale.US,
+            "%-12s %-8s %8d %9.3f %9.3f %9.3f %12.0f%n",
+            report.backend,
+            stats.stage,
+            stats.count(),
+            stats.percentileMs(50),
+            stats.percentileMs(95),
+            stats.percentileMs(99),
+            stats.allocatedBytesPerOp());
+      }
+    }
+    System.out.println("Allocations are JVM heap bytes; native (zxing-cpp) memory is not counted.");
+    for (final Report report : reports) {
+      System.out.printf(
+          Locale.US,
+          "%-12s decoded %d of %d keydots (%.1f%%)%n",
+          report.backend,
+          report.decoded,
+          report.keydots,
+          100 * report.successRate());
+    }
+  }
+}
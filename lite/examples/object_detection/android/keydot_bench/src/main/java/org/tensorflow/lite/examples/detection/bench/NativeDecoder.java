@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.bench;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * Host counterpart of {@code com.example.zxingcpp.DecoderSession}: the same native decoder session,
+ * built for the JVM by {@code src/main/cpp/CMakeLists.txt}. Not thread-safe.
+ */
+final class NativeDecoder implements Closeable {
+  static {
+    System.loadLibrary("keydot_bench");
+  }
+
+  /** Filled in by the native code, like {@code BarcodeReader.Result} on Android. */
+  static final class Result {
+    String text;
+    String time;
+  }
+
+  private final Result result = new Result();
+  private long handle;
+
+  NativeDecoder(final String formats, final boolean tryHarder, final boolean tryRotate) {
+    handle = create(formats, tryHarder, tryRotate);
+  }
+
+  /**
+   * Decodes {@code width} x {@code height} pixels at ({@code left}, {@code top}) of a luminance
+   * plane in place, like {@code DecoderSession.readLuminance} does on the camera Y plane.
+   *
+   * @return the decoded text, or null if no symbol was found or it failed to decode.
+   */
+  String readLuminance(
+      final ByteBuffer plane,
+      final int planeWidth,
+      final int planeHeight,
+      final int rowStride,
+      final int left,
+      final int top,
+      final int width,
+      final int height,
+      final int rotation,
+      final boolean invert) {
+    if (handle == 0) {
+      throw new IllegalStateException("NativeDecoder is closed");
+    }
+    result.text = null;
+    // NotFound, FormatError and the like all count as not decoded: only the text matters here.
+    readLuminance(
+        handle,
+        plane,
+        planeWidth,
+        planeHeight,
+        rowStride,
+        left,
+        top,
+        width,
+        height,
+        rotation,
+        invert,
+        result);
+    return result.text;
+  }
+
+  /**
+   * Renders {@code text} as a square DataMatrix of at least {@code size} x {@code size} pixels
+   * (larger if the symbol does not fit), dark modules 0 and light modules 255, row by row.
+   */
+  static native byte[] encodeDataMatrix(String text, int size);
+
+  @Override
+  public void close() {
+    if (handle != 0) {
+      destroy(handle);
+      handle = 0;
+    }
+  }
+
+  private static native long create(String formats, boolean tryHarder, boolean tryRotate);
+
+  private static native String readLuminance(
+      long handle,
+      ByteBuffer buffer,
+      int dataWidth,
+      int dataHeight,
+      int rowStride,
+      int left,
+      int top,
+      int width,
+      int height,
+      int rotation,
+      boolean invert,
+      Result result);
+
+  private static native void destroy(long handle);
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.bench;
+
+import java.util.Arrays;
+
+/** Latency and heap allocation samples of one pipeline stage. */
+final class StageStats {
+  final String stage;
+  private long[] nanos = new long[1024];
+  private int count;
+  private long allocatedBytes;
+
+  StageStats(final String stage) {
+    this.stage = stage;
+  }
+
+  void add(final long elapsedNanos, final long allocated) {
+    if (count == nanos.length) {
+      nanos = Arrays.copyOf(nanos, 2 * count);
+    }
+    nanos[count++] = elapsedNanos;
+    allocatedBytes += allocated;
+  }
+
+  int count() {
+    return count;
+  }
+
+  /** Nearest-rank percentile, {@code p} in (0, 100]. */
+  double percentileMs(final double p) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    final long[] sorted = Arrays.copyOf(nanos, count);
+    Arrays.sort(sorted);
+    final int rank = (int) Math.ceil(p / 100 * count);
+    return sorted[Math.max(0, rank - 1)] / 1e6;
+  }
+
+  double allocatedBytesPerOp() {
+    return count == 0 ? Double.NaN : (double) allocatedBytes / count;
+  }
+}
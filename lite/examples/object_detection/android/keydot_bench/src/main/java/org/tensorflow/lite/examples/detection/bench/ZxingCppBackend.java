@@ -0,0 +1,60 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.bench;
+
+/**
+ * zxing-cpp as the app runs it in {@code KeydotDecodePool}: a long-lived decoder session reading
+ * the ROI in place from the Y plane snapshot. Cropping only selects the region; the inverted copy
+ * of the ROI is made by the session and counts towards decoding.
+ */
+final class ZxingCppBackend implements DecoderBackend {
+  // Same options as the app's decoder sessions.
+  private final NativeDecoder decoder = new NativeDecoder("DATA_MATRIX", true, true);
+  private Frame frame;
+  private Frame.Keydot roi;
+
+  @Override
+  public String name() {
+    return "zxing-cpp";
+  }
+
+  @Override
+  public void crop(final Frame frame, final Frame.Keydot roi) {
+    this.frame = frame;
+    this.roi = roi;
+  }
+
+  @Override
+  public String decode() {
+    return decoder.readLuminance(
+        frame.directLuminance,
+        frame.width,
+        frame.height,
+        frame.rowStride,
+        roi.left,
+        roi.top,
+        roi.width(),
+        roi.height(),
+        frame.rotation,
+        true);
+  }
+
+  @Override
+  public void close() {
+    decoder.close();
+  }
+}
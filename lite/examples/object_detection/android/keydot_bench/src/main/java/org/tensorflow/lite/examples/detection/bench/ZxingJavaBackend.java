@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.bench;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.common.HybridBinarizer;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Upstream zxing (Java) with the hints of the app's {@code javaDecode}. The app crops and inverts
+ * a keydot bitmap; on the host the equivalent is an inverted luminance source over the ROI of the
+ * Y plane. Like the native decoders, the ROI is rotated by the frame rotation, which zxing's
+ * luminance sources only support by copying.
+ */
+final class ZxingJavaBackend implements DecoderBackend {
+  private final MultiFormatReader reader = new MultiFormatReader();
+  private BinaryBitmap bitmap;
+  // Rotated copy of the ROI, reused across crops.
+  private byte[] rotated = new byte[0];
+
+  ZxingJavaBackend() {
+    final Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+    hints.put(
+        DecodeHintType.POSSIBLE_FORMATS, Collections.singletonList(BarcodeFormat.DATA_MATRIX));
+    hints.put(DecodeHintType.TRY_HARDER, true);
+    reader.setHints(hints);
+  }
+
+  @Override
+  public String name() {
+    return "zxing-java";
+  }
+
+  @Override
+  public void crop(final Frame frame, final Frame.Keydot roi) {
+    final int degrees = ((frame.rotation % 360) + 360) % 360;
+    final PlanarYUVLuminanceSource source;
+    if (degrees == 0) {
+      source =
+          new PlanarYUVLuminanceSource(
+              frame.luminance,
+              frame.rowStride,
+              frame.height,
+              roi.left,
+              roi.top,
+              roi.width(),
+              roi.height(),
+              false);
+    } else {
+      final boolean transposed = degrees == 90 || degrees == 270;
+      final int width = transposed ? roi.height() : roi.width();
+      final int height = transposed ? roi.width() : roi.height();
+      rotate(frame, roi, degrees);
+      source = new PlanarYUVLuminanceSource(rotated, width, height, 0, 0, width, height, false);
+    }
+    bitmap = new BinaryBitmap(new HybridBinarizer(source.invert()));
+  }
+
+  // Copies the ROI into rotated, turned clockwise by degrees, a multiple of 90.
+  private void rotate(final Frame frame, final Frame.Keydot roi, final int degrees) {
+    final int roiWidth = roi.width();
+    final int roiHeight = roi.height();
+    if (rotated.length < roiWidth * roiHeight) {
+      rotated = new byte[roiWidth * roiHeight];
+    }
+    for (int y = 0; y < roiHeight; y++) {
+      final int row = (roi.top + y) * frame.rowStride + roi.left;
+      for (int x = 0; x < roiWidth; x++) {
+        final int index;
+        switch (degrees) {
+          case 90:
+            index = x * roiHeight + (roiHeight - 1 - y);
+            break;
+          case 180:
+            index = (roiHeight - 1 - y) * roiWidth + (roiWidth - 1 - x);
+            break;
+          case 270:
+            index = (roiWidth - 1 - x) * roiHeight + y;
+            break;
+          default:
+            throw new IllegalArgumentException("Unsupported rotation: " + degrees);
+        }
+        rotated[index] = frame.luminance[row + x];
+      }
+    }
+  }
+
+  @Override
+  public String decode() {
+    try {
+      return reader.decodeWithState(bitmap).getText();
+    } catch (final ReaderException e) {
+      return null;
+    } finally {
+      reader.reset();
+    }
+  }
+
+  @Override
+  public void close() {}
+}
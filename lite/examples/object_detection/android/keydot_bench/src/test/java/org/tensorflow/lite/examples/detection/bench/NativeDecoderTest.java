@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the ROI handling of the native luminance decoder. */
+@RunWith(JUnit4.class)
+public final class NativeDecoderTest {
+  private static final String TEXT = "KD-0042";
+  private static final int PLANE_SIZE = 200;
+  private static final int SYMBOL_OFFSET = 40;
+
+  private NativeDecoder decoder;
+  private ByteBuffer plane;
+
+  @Before
+  public void setUp() {
+    decoder = new NativeDecoder("DATA_MATRIX", true, false);
+    byte[] symbol = NativeDecoder.encodeDataMatrix(TEXT, 100);
+    int symbolSize = (int) Math.sqrt(symbol.length);
+
+    plane = ByteBuffer.allocateDirect(PLANE_SIZE * PLANE_SIZE);
+    for (int i = 0; i < PLANE_SIZE * PLANE_SIZE; i++) {
+      plane.put(i, (byte) 255);
+    }
+    for (int y = 0; y < symbolSize; y++) {
+      for (int x = 0; x < symbolSize; x++) {
+        plane.put(
+            (SYMBOL_OFFSET + y) * PLANE_SIZE + SYMBOL_OFFSET + x, symbol[y * symbolSize + x]);
+      }
+    }
+  }
+
+  @After
+  public void tearDown() {
+    decoder.close();
+  }
+
+  @Test
+  public void shouldDecodeWholePlane() {
+    assertEquals(TEXT, read(0, 0, PLANE_SIZE, PLANE_SIZE));
+  }
+
+  @Test
+  public void shouldClipRoiReachingOutOfPlane() {
+    assertEquals(TEXT, read(-20, -20, PLANE_SIZE + 100, PLANE_SIZE + 100));
+  }
+
+  @Test
+  public void shouldFindNothingInRoiRightOfPlane() {
+    assertNull(read(PLANE_SIZE, 0, 50, 50));
+  }
+
+  @Test
+  public void shouldFindNothingInRoiBelowPlane() {
+    assertNull(read(0, PLANE_SIZE + 10, 50, 50));
+  }
+
+  @Test
+  public void shouldFindNothingInRoiLeftOfPlane() {
+    assertNull(read(-PLANE_SIZE, 0, PLANE_SIZE, PLANE_SIZE));
+  }
+
+  @Test
+  public void shouldFindNothingInRoiAbovePlane() {
+    assertNull(read(0, -PLANE_SIZE, PLANE_SIZE, PLANE_SIZE));
+  }
+
+  @Test
+  public void shouldNotReadPastClippedRoi() {
+    // Ends before the symbol once clipped to the plane.
+    assertNull(read(-PLANE_SIZE, -PLANE_SIZE, PLANE_SIZE + SYMBOL_OFFSET, PLANE_SIZE * 2));
+  }
+
+  @Test
+  public void shouldFindNothingInRoiWhoseEndOverflows() {
+    assertNull(read(PLANE_SIZE + 1, 0, Integer.MAX_VALUE, PLANE_SIZE));
+  }
+
+  private String read(final int left, final int top, final int width, final int height) {
+    return decoder.readLuminance(
+        plane, PLANE_SIZE, PLANE_SIZE, PLANE_SIZE, left, top, width, height, 0, false);
+  }
+}
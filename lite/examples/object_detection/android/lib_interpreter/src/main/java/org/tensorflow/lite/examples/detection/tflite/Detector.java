@@ -17,12 +17,46 @@ package org.tensorflow.lite.examples.detection.tflite;
 
 import android.graphics.Bitmap;
 import android.graphics.RectF;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 /** Generic interface for interacting with different recognition engines. */
 public interface Detector {
   List<Recognition> recognizeImage(Bitmap bitmap);
 
+  /**
+   * Runs detection on a frame that is already laid out as the model input: inputSize x inputSize
+   * RGB pixels in row-major order, one byte per channel for quantized models and otherwise one
+   * native-order float per channel normalized as (value - 127.5) / 127.5.
+   *
+   * @param input a direct buffer in native byte order.
+   * @throws UnsupportedOperationException if {@link #supportsTensorInput()} is false.
+   */
+  List<Recognition> recognizeImage(ByteBuffer input);
+
+  /** Whether {@link #recognizeImage(ByteBuffer)} is supported. */
+  boolean supportsTensorInput();
+
+  /**
+   * Same as {@link #recognizeImage(Bitmap)}, but writes into {@code results}, recycling the
+   * recognitions it holds from previous calls instead of allocating new ones.
+   */
+  void recognizeImage(Bitmap bitmap, RecognitionList results);
+
+  /**
+   * Same as {@link #recognizeImage(ByteBuffer)}, but writes into {@code results}, recycling the
+   * recognitions it holds from previous calls instead of allocating new ones.
+   */
+  void recognizeImage(ByteBuffer input, RecognitionList results);
+
+  /**
+   * Runs detection on several images at once, for offline processing. Each bitmap must have the
+   * model input size, as for {@link #recognizeImage(Bitmap)}. Returns the recognitions of every
+   * image, in order.
+   */
+  List<List<Recognition>> recognizeImages(List<Bitmap> bitmaps);
+
   void enableStatLogging(final boolean debug);
 
   String getStatString();
@@ -33,21 +67,48 @@ public interface Detector {
 
   void setUseNNAPI(boolean isChecked);
 
-  /** An immutable result returned by a Detector describing what was recognized. */
+  /** How a detector runs its model: threads and hardware acceleration. */
+  public final class Config {
+    public final int numThreads;
+    public final boolean useXNNPACK;
+    public final boolean useNNAPI;
+
+    public Config(final int numThreads, final boolean useXNNPACK, final boolean useNNAPI) {
+      this.numThreads = numThreads;
+      this.useXNNPACK = useXNNPACK;
+      this.useNNAPI = useNNAPI;
+    }
+
+    @Override
+    public String toString() {
+      return numThreads
+          + (numThreads == 1 ? " thread" : " threads")
+          + (useXNNPACK ? ", XNNPACK" : "")
+          + (useNNAPI ? ", NNAPI" : "");
+    }
+  }
+
+  /**
+   * A result returned by a Detector describing what was recognized. Immutable, except for the
+   * location and for recognitions recycled by a {@link RecognitionList}.
+   */
   public class Recognition {
     /**
      * A unique identifier for what has been recognized. Specific to the class, not the instance of
      * the object.
      */
-    private final String id;
+    private String id;
 
     /** Display name for the recognition. */
-    private final String title;
+    private String title;
 
     /**
      * A sortable score for how good the recognition is relative to others. Higher should be better.
+     * Kept unboxed, so that recycling a recognition does not allocate.
      */
-    private final Float confidence;
+    private float confidence;
+
+    private boolean hasConfidence;
 
     /** Optional location within the source image for the location of the recognized object. */
     private RectF location;
@@ -56,7 +117,8 @@ public interface Detector {
         final String id, final String title, final Float confidence, final RectF location) {
       this.id = id;
       this.title = title;
-      this.confidence = confidence;
+      this.hasConfidence = confidence != null;
+      this.confidence = hasConfidence ? confidence : 0;
       this.location = location;
     }
 
@@ -69,6 +131,11 @@ public interface Detector {
     }
 
     public Float getConfidence() {
+      return hasConfidence ? confidence : null;
+    }
+
+    /** Like {@link #getConfidence()}, without boxing: 0 if the recognition has no confidence. */
+    public float confidence() {
       return confidence;
     }
 
@@ -76,8 +143,18 @@ public interface Detector {
       return new RectF(location);
     }
 
+    /** Like {@link #getLocation()}, without copying: the returned rect must not be modified. */
+    public RectF location() {
+      return location;
+    }
+
     public void setLocation(RectF location) {
-      this.location = location;
+      if (this.location != null && location != null) {
+        // Copy, so that the caller's rect is not modified when the recognition is recycled.
+        this.location.set(location);
+      } else {
+        this.location = location;
+      }
     }
 
     @Override
@@ -91,7 +168,7 @@ public interface Detector {
         resultString += title + " ";
       }
 
-      if (confidence != null) {
+      if (hasConfidence) {
         resultString += String.format("(%.1f%%) ", confidence * 100.0f);
       }
 
@@ -102,4 +179,62 @@ public interface Detector {
       return resultString.trim();
     }
   }
+
+  /**
+   * Reusable list of recognitions. Detection writes over the recognitions left by the previous
+   * call, so the list must not be reused while its recognitions are still in use.
+   */
+  public class RecognitionList {
+    private final List<Recognition> recognitions = new ArrayList<>();
+    private int size;
+
+    public int size() {
+      return size;
+    }
+
+    public Recognition get(final int index) {
+      if (index >= size) {
+        throw new IndexOutOfBoundsException("Index " + index + " out of " + size);
+      }
+      return recognitions.get(index);
+    }
+
+    public void clear() {
+      size = 0;
+    }
+
+    /** Appends a recognition, recycling one from a previous use of the list if possible. */
+    public Recognition add(
+        final String id,
+        final String title,
+        final float confidence,
+        final float left,
+        final float top,
+        final float right,
+        final float bottom) {
+      final Recognition recognition;
+      if (size < recognitions.size()) {
+        recognition = recognitions.get(size);
+        recognition.id = id;
+        recognition.title = title;
+        recognition.confidence = confidence;
+        recognition.hasConfidence = true;
+        if (recognition.location == null) {
+          recognition.location = new RectF(left, top, right, bottom);
+        } else {
+          recognition.location.set(left, top, right, bottom);
+        }
+      } else {
+        recognition = new Recognition(id, title, confidence, new RectF(left, top, right, bottom));
+        recognitions.add(recognition);
+      }
+      size++;
+      return recognition;
+    }
+
+    /** Returns a list of the current recognitions. */
+    public List<Recognition> toList() {
+      return new ArrayList<>(recognitions.subList(0, size));
+    }
+  }
 }
@@ -21,7 +21,6 @@ import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.RectF;
 import android.os.Trace;
 import android.util.Log;
 import java.io.BufferedReader;
@@ -37,6 +36,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.support.metadata.MetadataExtractor;
 
@@ -63,30 +68,54 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
   private static final float IMAGE_STD = 127.5f;
   // Number of threads in the java app
   private static final int NUM_THREADS = 4;
+  // Dummy invocations run on a new interpreter before it takes real frames, so that the first
+  // frame does not pay for lazy initialization.
+  private static final int NUM_WARMUP_RUNS = 2;
   private boolean isModelQuantized;
   // Config values.
   private int inputSize;
   // Pre-allocated buffers.
   private final List<String> labels = new ArrayList<>();
   private int[] intValues;
-  // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
+  // Normalized float value of every 8-bit channel value.
+  private final float[] normalizedChannel = new float[256];
+  // Outputs are bound once as direct float buffers, so that inference does not allocate.
+  // outputLocations: buffer of shape [Batchsize, NUM_DETECTIONS,4]
   // contains the location of detected boxes
-  private float[][][] outputLocations;
-  // outputClasses: array of shape [Batchsize, NUM_DETECTIONS]
+  private ByteBuffer outputLocations;
+  // outputClasses: buffer of shape [Batchsize, NUM_DETECTIONS]
   // contains the classes of detected boxes
-  private float[][] outputClasses;
-  // outputScores: array of shape [Batchsize, NUM_DETECTIONS]
+  private ByteBuffer outputClasses;
+  // outputScores: buffer of shape [Batchsize, NUM_DETECTIONS]
   // contains the scores of detected boxes
-  private float[][] outputScores;
-  // numDetections: array of shape [Batchsize]
+  private ByteBuffer outputScores;
+  // numDetections: buffer of shape [Batchsize]
   // contains the number of detected boxes
-  private float[] numDetections;
+  private ByteBuffer numDetections;
+  private final Object[] inputArray = new Object[1];
+  private final Map<Integer, Object> outputMap = new HashMap<>();
+  private final String[] ids = new String[NUM_DETECTIONS];
 
   private ByteBuffer imgData;
+  // Input of batched detection, filled by one task per image.
+  private ByteBuffer batchData;
+  private ExecutorService preprocessExecutor;
+  // Cleared once the model rejects a batch dimension other than 1, which is the case of models
+  // ending with the TFLite_Detection_PostProcess op.
+  private boolean isBatchingSupported = true;
 
   private MappedByteBuffer tfLiteModel;
-  private Interpreter.Options tfLiteOptions;
-  private Interpreter tfLite;
+  private int numThreads = NUM_THREADS;
+  private boolean useXNNPACK = true;
+  private boolean useNNAPI = false;
+  // Only touched by the thread running inference, apart from the null checks of the setters.
+  private volatile Interpreter tfLite;
+  // Builds and warms up replacement interpreters when the settings change, and closes the
+  // interpreters they replace, so that the inference thread never waits for either.
+  private final ExecutorService swapExecutor =
+      Executors.newSingleThreadExecutor(r -> new Thread(r, "interpreter-swap"));
+  // Warmed-up interpreter that replaces tfLite at the start of the next inference.
+  private final AtomicReference<Interpreter> pendingInterpreter = new AtomicReference<>();
 
   private TFLiteObjectDetectionAPIModel() {}
 
@@ -116,7 +145,31 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
       final int inputSize,
       final boolean isQuantized)
       throws IOException {
+    return create(
+        context,
+        modelFilename,
+        labelFilename,
+        inputSize,
+        isQuantized,
+        new Config(NUM_THREADS, true, false));
+  }
+
+  /**
+   * Same as {@link #create(Context, String, String, int, boolean)}, running the model as set by
+   * {@code config}.
+   */
+  public static Detector create(
+      final Context context,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final Config config)
+      throws IOException {
     final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
+    d.numThreads = config.numThreads;
+    d.useXNNPACK = config.useXNNPACK;
+    d.useNNAPI = config.useNNAPI;
 
     MappedByteBuffer modelFile = loadModelFile(context.getAssets(), modelFilename);
     MetadataExtractor metadata = new MetadataExtractor(modelFile);
@@ -134,12 +187,8 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
     d.inputSize = inputSize;
 
     try {
-      Interpreter.Options options = new Interpreter.Options();
-      options.setNumThreads(NUM_THREADS);
-      options.setUseXNNPACK(true);
-      d.tfLite = new Interpreter(modelFile, options);
+      d.tfLite = new Interpreter(modelFile, d.buildOptions());
       d.tfLiteModel = modelFile;
-      d.tfLiteOptions = options;
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
@@ -155,55 +204,210 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
     d.imgData = ByteBuffer.allocateDirect(1 * d.inputSize * d.inputSize * 3 * numBytesPerChannel);
     d.imgData.order(ByteOrder.nativeOrder());
     d.intValues = new int[d.inputSize * d.inputSize];
+    for (int i = 0; i < d.normalizedChannel.length; ++i) {
+      d.normalizedChannel[i] = (i - IMAGE_MEAN) / IMAGE_STD;
+    }
 
-    d.outputLocations = new float[1][NUM_DETECTIONS][4];
-    d.outputClasses = new float[1][NUM_DETECTIONS];
-    d.outputScores = new float[1][NUM_DETECTIONS];
-    d.numDetections = new float[1];
+    d.outputLocations = allocateFloats(NUM_DETECTIONS * 4);
+    d.outputClasses = allocateFloats(NUM_DETECTIONS);
+    d.outputScores = allocateFloats(NUM_DETECTIONS);
+    d.numDetections = allocateFloats(1);
+    d.outputMap.put(0, d.outputLocations);
+    d.outputMap.put(1, d.outputClasses);
+    d.outputMap.put(2, d.outputScores);
+    d.outputMap.put(3, d.numDetections);
+    for (int i = 0; i < NUM_DETECTIONS; ++i) {
+      d.ids[i] = "" + i;
+    }
+    d.warmUp(d.tfLite);
     return d;
   }
 
+  private static ByteBuffer allocateFloats(final int count) {
+    return ByteBuffer.allocateDirect(count * 4).order(ByteOrder.nativeOrder());
+  }
+
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    final RecognitionList results = new RecognitionList();
+    recognizeImage(bitmap, results);
+    return results.toList();
+  }
+
+  @Override
+  public List<Recognition> recognizeImage(final ByteBuffer input) {
+    final RecognitionList results = new RecognitionList();
+    recognizeImage(input, results);
+    return results.toList();
+  }
+
+  @Override
+  public boolean supportsTensorInput() {
+    return true;
+  }
+
+  @Override
+  public void recognizeImage(final Bitmap bitmap, final RecognitionList results) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
     Trace.beginSection("preprocessBitmap");
-    // Preprocess the image data from 0-255 int to normalized float based
-    // on the provided parameters.
-    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-
-    imgData.rewind();
-    for (int i = 0; i < inputSize; ++i) {
-      for (int j = 0; j < inputSize; ++j) {
-        int pixelValue = intValues[i * inputSize + j];
-        if (isModelQuantized) {
-          // Quantized model
-          imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-          imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-          imgData.put((byte) (pixelValue & 0xFF));
-        } else { // Float model
-          imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-        }
+    preprocess(bitmap, intValues, imgData, 0);
+    Trace.endSection(); // preprocessBitmap
+
+    runInference(imgData, results);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  /**
+   * Preprocesses the image data from 0-255 int to normalized float based on the provided
+   * parameters, writing it at {@code offset} of {@code out} with absolute puts.
+   */
+  private void preprocess(
+      final Bitmap bitmap, final int[] pixels, final ByteBuffer out, final int offset) {
+    bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+
+    int position = offset;
+    for (int i = 0; i < inputSize * inputSize; ++i) {
+      int pixelValue = pixels[i];
+      if (isModelQuantized) {
+        // Quantized model
+        out.put(position++, (byte) ((pixelValue >> 16) & 0xFF));
+        out.put(position++, (byte) ((pixelValue >> 8) & 0xFF));
+        out.put(position++, (byte) (pixelValue & 0xFF));
+      } else { // Float model
+        out.putFloat(position, normalizedChannel[(pixelValue >> 16) & 0xFF]);
+        out.putFloat(position + 4, normalizedChannel[(pixelValue >> 8) & 0xFF]);
+        out.putFloat(position + 8, normalizedChannel[pixelValue & 0xFF]);
+        position += 12;
       }
     }
-    Trace.endSection(); // preprocessBitmap
+  }
+
+  @Override
+  public List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImages");
+    applyPendingInterpreter();
+    final int batchSize = bitmaps.size();
+    final int bytesPerImage = imgData.capacity();
+    // The interpreter checks the capacity of the input against the tensor size.
+    if (batchData == null || batchData.capacity() != batchSize * bytesPerImage) {
+      batchData = ByteBuffer.allocateDirect(batchSize * bytesPerImage);
+      batchData.order(ByteOrder.nativeOrder());
+    }
+
+    Trace.beginSection("preprocessBitmaps");
+    preprocessInParallel(bitmaps, bytesPerImage);
+    Trace.endSection(); // preprocessBitmaps
+
+    List<List<Recognition>> results = null;
+    if (batchSize > 1 && isBatchingSupported) {
+      try {
+        results = runBatch(batchSize);
+      } catch (final IllegalArgumentException e) {
+        Log.w(TAG, "Model does not support batches, running images one by one", e);
+        isBatchingSupported = false;
+      }
+    }
+    if (results == null) {
+      results = new ArrayList<>(batchSize);
+      for (int i = 0; i < batchSize; ++i) {
+        batchData.limit((i + 1) * bytesPerImage).position(i * bytesPerImage);
+        final ByteBuffer image = batchData.slice().order(ByteOrder.nativeOrder());
+        batchData.clear();
+        final RecognitionList recognitions = new RecognitionList();
+        runInference(image, recognitions);
+        results.add(recognitions.toList());
+      }
+    }
+    Trace.endSection(); // "recognizeImages"
+    return results;
+  }
 
+  private void preprocessInParallel(final List<Bitmap> bitmaps, final int bytesPerImage) {
+    if (preprocessExecutor == null) {
+      preprocessExecutor =
+          Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+    final List<Future<?>> futures = new ArrayList<>(bitmaps.size());
+    for (int i = 0; i < bitmaps.size(); ++i) {
+      final Bitmap bitmap = bitmaps.get(i);
+      final int offset = i * bytesPerImage;
+      futures.add(
+          preprocessExecutor.submit(
+              () -> preprocess(bitmap, new int[inputSize * inputSize], batchData, offset)));
+    }
+    try {
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } catch (final ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Runs a single invocation on the whole of {@link #batchData} and splits the outputs. */
+  private List<List<Recognition>> runBatch(final int batchSize) {
+    final float[][][] batchLocations = new float[batchSize][NUM_DETECTIONS][4];
+    final float[][] batchClasses = new float[batchSize][NUM_DETECTIONS];
+    final float[][] batchScores = new float[batchSize][NUM_DETECTIONS];
+    final float[] batchNumDetections = new float[batchSize];
+    final Map<Integer, Object> batchOutputs = new HashMap<>();
+    batchOutputs.put(0, batchLocations);
+    batchOutputs.put(1, batchClasses);
+    batchOutputs.put(2, batchScores);
+    batchOutputs.put(3, batchNumDetections);
+
+    Trace.beginSection("run");
+    tfLite.resizeInput(0, new int[] {batchSize, inputSize, inputSize, 3});
+    try {
+      tfLite.runForMultipleInputsOutputs(new Object[] {batchData}, batchOutputs);
+    } finally {
+      tfLite.resizeInput(0, new int[] {1, inputSize, inputSize, 3});
+      Trace.endSection();
+    }
+
+    final List<List<Recognition>> results = new ArrayList<>(batchSize);
+    for (int b = 0; b < batchSize; ++b) {
+      final int numDetectionsOutput = min(NUM_DETECTIONS, (int) batchNumDetections[b]);
+      final RecognitionList recognitions = new RecognitionList();
+      for (int i = 0; i < numDetectionsOutput; ++i) {
+        recognitions.add(
+            ids[i],
+            labels.get((int) batchClasses[b][i]),
+            batchScores[b][i],
+            batchLocations[b][i][1] * inputSize,
+            batchLocations[b][i][0] * inputSize,
+            batchLocations[b][i][3] * inputSize,
+            batchLocations[b][i][2] * inputSize);
+      }
+      results.add(recognitions.toList());
+    }
+    return results;
+  }
+
+  @Override
+  public void recognizeImage(final ByteBuffer input, final RecognitionList results) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+    runInference(input, results);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  private void runInference(final ByteBuffer input, final RecognitionList results) {
+    applyPendingInterpreter();
     // Copy the input data into TensorFlow.
     Trace.beginSection("feed");
-    outputLocations = new float[1][NUM_DETECTIONS][4];
-    outputClasses = new float[1][NUM_DETECTIONS];
-    outputScores = new float[1][NUM_DETECTIONS];
-    numDetections = new float[1];
-
-    Object[] inputArray = {imgData};
-    Map<Integer, Object> outputMap = new HashMap<>();
-    outputMap.put(0, outputLocations);
-    outputMap.put(1, outputClasses);
-    outputMap.put(2, outputScores);
-    outputMap.put(3, numDetections);
+    inputArray[0] = input;
+    // The interpreter writes outputs from the current position.
+    outputLocations.rewind();
+    outputClasses.rewind();
+    outputScores.rewind();
+    numDetections.rewind();
     Trace.endSection();
 
     // Run the inference call.
@@ -221,23 +425,21 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
     int numDetectionsOutput =
         min(
             NUM_DETECTIONS,
-            (int) numDetections[0]); // cast from float to integer, use min for safety
+            (int) numDetections.getFloat(0)); // cast from float to integer, use min for safety
 
-    final ArrayList<Recognition> recognitions = new ArrayList<>(numDetectionsOutput);
+    results.clear();
     for (int i = 0; i < numDetectionsOutput; ++i) {
-      final RectF detection =
-          new RectF(
-              outputLocations[0][i][1] * inputSize,
-              outputLocations[0][i][0] * inputSize,
-              outputLocations[0][i][3] * inputSize,
-              outputLocations[0][i][2] * inputSize);
-
-      recognitions.add(
-          new Recognition(
-              "" + i, labels.get((int) outputClasses[0][i]), outputScores[0][i], detection));
+      // Boxes are [top, left, bottom, right], normalized to the input size.
+      final int box = i * 4 * 4;
+      results.add(
+          ids[i],
+          labels.get((int) outputClasses.getFloat(i * 4)),
+          outputScores.getFloat(i * 4),
+          outputLocations.getFloat(box + 4) * inputSize,
+          outputLocations.getFloat(box) * inputSize,
+          outputLocations.getFloat(box + 12) * inputSize,
+          outputLocations.getFloat(box + 8) * inputSize);
     }
-    Trace.endSection(); // "recognizeImage"
-    return recognitions;
   }
 
   @Override
@@ -250,30 +452,95 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
 
   @Override
   public void close() {
+    swapExecutor.shutdown();
+    try {
+      swapExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    final Interpreter pending = pendingInterpreter.getAndSet(null);
+    if (pending != null) {
+      pending.close();
+    }
     if (tfLite != null) {
       tfLite.close();
       tfLite = null;
     }
+    if (preprocessExecutor != null) {
+      preprocessExecutor.shutdown();
+      preprocessExecutor = null;
+    }
   }
 
   @Override
-  public void setNumThreads(int numThreads) {
+  public synchronized void setNumThreads(int numThreads) {
     if (tfLite != null) {
-      tfLiteOptions.setNumThreads(numThreads);
+      this.numThreads = numThreads;
       recreateInterpreter();
     }
   }
 
   @Override
-  public void setUseNNAPI(boolean isChecked) {
+  public synchronized void setUseNNAPI(boolean isChecked) {
     if (tfLite != null) {
-      tfLiteOptions.setUseNNAPI(isChecked);
+      this.useNNAPI = isChecked;
       recreateInterpreter();
     }
   }
 
+  private Interpreter.Options buildOptions() {
+    Interpreter.Options options = new Interpreter.Options();
+    options.setNumThreads(numThreads);
+    options.setUseXNNPACK(useXNNPACK);
+    options.setUseNNAPI(useNNAPI);
+    return options;
+  }
+
+  /**
+   * Builds an interpreter with the current settings in the background. Inference keeps running on
+   * the current interpreter until the new one is warmed up.
+   */
   private void recreateInterpreter() {
-    tfLite.close();
-    tfLite = new Interpreter(tfLiteModel, tfLiteOptions);
+    final Interpreter.Options options = buildOptions();
+    swapExecutor.execute(
+        () -> {
+          final Interpreter interpreter = new Interpreter(tfLiteModel, options);
+          warmUp(interpreter);
+          // A newer setting supersedes one that has not been picked up yet.
+          final Interpreter superseded = pendingInterpreter.getAndSet(interpreter);
+          if (superseded != null) {
+            superseded.close();
+          }
+        });
+  }
+
+  /** Runs dummy inferences on its own buffers, as the live interpreter may be using ours. */
+  private void warmUp(final Interpreter interpreter) {
+    Trace.beginSection("warmUp");
+    final Object[] input = {
+      ByteBuffer.allocateDirect(imgData.capacity()).order(ByteOrder.nativeOrder())
+    };
+    final Map<Integer, Object> outputs = new HashMap<>();
+    outputs.put(0, new float[1][NUM_DETECTIONS][4]);
+    outputs.put(1, new float[1][NUM_DETECTIONS]);
+    outputs.put(2, new float[1][NUM_DETECTIONS]);
+    outputs.put(3, new float[1]);
+    for (int i = 0; i < NUM_WARMUP_RUNS; ++i) {
+      interpreter.runForMultipleInputsOutputs(input, outputs);
+    }
+    Trace.endSection(); // warmUp
+  }
+
+  /**
+   * Switches to a warmed-up interpreter if one is ready. Inference calls do not overlap, so the
+   * previous interpreter is idle here; it is closed off the inference thread.
+   */
+  private void applyPendingInterpreter() {
+    final Interpreter next = pendingInterpreter.getAndSet(null);
+    if (next != null) {
+      final Interpreter previous = tfLite;
+      tfLite = next;
+      swapExecutor.execute(previous::close);
+    }
   }
 }
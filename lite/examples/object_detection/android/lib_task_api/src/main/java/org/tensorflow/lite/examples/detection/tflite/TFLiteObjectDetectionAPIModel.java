@@ -17,11 +17,17 @@ package org.tensorflow.lite.examples.detection.tflite;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.RectF;
 import android.os.Trace;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.tensorflow.lite.support.common.FileUtil;
 import org.tensorflow.lite.support.image.TensorImage;
 import org.tensorflow.lite.task.vision.detector.Detection;
@@ -51,10 +57,23 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
   /** Only return this many results. */
   private static final int NUM_DETECTIONS = 10;
 
+  /** Dummy detections run on a new detector before it takes real frames. */
+  private static final int NUM_WARMUP_RUNS = 2;
+
   private final MappedByteBuffer modelBuffer;
 
+  /** Size of the blank image used to warm up new detectors. */
+  private final int inputSize;
+
   /** An instance of the driver class to run model inference with Tensorflow Lite. */
-  private ObjectDetector objectDetector;
+  private volatile ObjectDetector objectDetector;
+
+  /** Builds, warms up and closes detectors off the inference thread when the settings change. */
+  private final ExecutorService swapExecutor =
+      Executors.newSingleThreadExecutor(r -> new Thread(r, "detector-swap"));
+
+  /** Warmed-up detector that replaces objectDetector at the start of the next detection. */
+  private final AtomicReference<ObjectDetector> pendingDetector = new AtomicReference<>();
 
   /** Builder of the options used to config the ObjectDetector. */
   private final ObjectDetectorOptions.Builder optionsBuilder;
@@ -78,19 +97,49 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
       final int inputSize,
       final boolean isQuantized)
       throws IOException {
-    return new TFLiteObjectDetectionAPIModel(context, modelFilename);
+    return new TFLiteObjectDetectionAPIModel(context, modelFilename, inputSize, null);
+  }
+
+  /**
+   * Same as {@link #create(Context, String, String, int, boolean)}, running the model with the
+   * threads of {@code config}.
+   *
+   * @throws UnsupportedOperationException if {@code config} turns XNNPACK off or NNAPI on, which
+   *     the Task library does not allow.
+   */
+  public static Detector create(
+      final Context context,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final Config config)
+      throws IOException {
+    if (!config.useXNNPACK || config.useNNAPI) {
+      throw new UnsupportedOperationException(
+          "Manipulating the hardware accelerators is not allowed in the Task"
+              + " library currently. Only CPU is allowed.");
+    }
+    return new TFLiteObjectDetectionAPIModel(context, modelFilename, inputSize, config);
   }
 
-  private TFLiteObjectDetectionAPIModel(Context context, String modelFilename) throws IOException {
+  private TFLiteObjectDetectionAPIModel(
+      Context context, String modelFilename, int inputSize, Config config) throws IOException {
     modelBuffer = FileUtil.loadMappedFile(context, modelFilename);
+    this.inputSize = inputSize;
     optionsBuilder = ObjectDetectorOptions.builder().setMaxResults(NUM_DETECTIONS);
+    if (config != null) {
+      optionsBuilder.setNumThreads(config.numThreads);
+    }
     objectDetector = ObjectDetector.createFromBufferAndOptions(modelBuffer, optionsBuilder.build());
+    warmUp(objectDetector);
   }
 
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
+    applyPendingDetector();
     List<Detection> results = objectDetector.detect(TensorImage.fromBitmap(bitmap));
 
     // Converts a list of {@link Detection} objects into a list of {@link Recognition} objects
@@ -111,6 +160,54 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
     return recognitions;
   }
 
+  @Override
+  public List<Recognition> recognizeImage(final ByteBuffer input) {
+    throw new UnsupportedOperationException(
+        "The Task library preprocesses its input itself; only bitmaps are supported.");
+  }
+
+  @Override
+  public boolean supportsTensorInput() {
+    return false;
+  }
+
+  @Override
+  public void recognizeImage(final Bitmap bitmap, final RecognitionList results) {
+    // The Task library allocates its own results, so there is nothing to recycle but the list.
+    Trace.beginSection("recognizeImage");
+    applyPendingDetector();
+    List<Detection> detections = objectDetector.detect(TensorImage.fromBitmap(bitmap));
+    results.clear();
+    int cnt = 0;
+    for (Detection detection : detections) {
+      final RectF box = detection.getBoundingBox();
+      results.add(
+          "" + cnt++,
+          detection.getCategories().get(0).getLabel(),
+          detection.getCategories().get(0).getScore(),
+          box.left,
+          box.top,
+          box.right,
+          box.bottom);
+    }
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public void recognizeImage(final ByteBuffer input, final RecognitionList results) {
+    recognizeImage(input);
+  }
+
+  @Override
+  public List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+    // The Task library has no batched API: run the images one by one.
+    final List<List<Recognition>> results = new ArrayList<>(bitmaps.size());
+    for (Bitmap bitmap : bitmaps) {
+      results.add(recognizeImage(bitmap));
+    }
+    return results;
+  }
+
   @Override
   public void enableStatLogging(final boolean logStats) {}
 
@@ -121,13 +218,23 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
 
   @Override
   public void close() {
+    swapExecutor.shutdown();
+    try {
+      swapExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    ObjectDetector pending = pendingDetector.getAndSet(null);
+    if (pending != null) {
+      pending.close();
+    }
     if (objectDetector != null) {
       objectDetector.close();
     }
   }
 
   @Override
-  public void setNumThreads(int numThreads) {
+  public synchronized void setNumThreads(int numThreads) {
     if (objectDetector != null) {
       optionsBuilder.setNumThreads(numThreads);
       recreateDetector();
@@ -141,8 +248,44 @@ public class TFLiteObjectDetectionAPIModel implements Detector {
             + " library currently. Only CPU is allowed.");
   }
 
+  /**
+   * Builds a detector with the current options in the background. Detection keeps running on the
+   * current detector until the new one is warmed up.
+   */
   private void recreateDetector() {
-    objectDetector.close();
-    objectDetector = ObjectDetector.createFromBufferAndOptions(modelBuffer, optionsBuilder.build());
+    final ObjectDetectorOptions options = optionsBuilder.build();
+    swapExecutor.execute(
+        () -> {
+          ObjectDetector detector = ObjectDetector.createFromBufferAndOptions(modelBuffer, options);
+          warmUp(detector);
+          // A newer setting supersedes one that has not been picked up yet.
+          ObjectDetector superseded = pendingDetector.getAndSet(detector);
+          if (superseded != null) {
+            superseded.close();
+          }
+        });
+  }
+
+  private void warmUp(ObjectDetector detector) {
+    Trace.beginSection("warmUp");
+    TensorImage blank =
+        TensorImage.fromBitmap(Bitmap.createBitmap(inputSize, inputSize, Bitmap.Config.ARGB_8888));
+    for (int i = 0; i < NUM_WARMUP_RUNS; ++i) {
+      detector.detect(blank);
+    }
+    Trace.endSection(); // warmUp
+  }
+
+  /**
+   * Switches to a warmed-up detector if one is ready. Detections do not overlap, so the previous
+   * detector is idle here; it is closed off the inference thread.
+   */
+  private void applyPendingDetector() {
+    ObjectDetector next = pendingDetector.getAndSet(null);
+    if (next != null) {
+      ObjectDetector previous = objectDetector;
+      objectDetector = next;
+      swapExecutor.execute(previous::close);
+    }
   }
 }
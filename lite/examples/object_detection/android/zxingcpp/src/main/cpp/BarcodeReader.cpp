@@ -14,50 +14,17 @@
 * limitations under the License.
 */
 
+#include "DecoderSession.h"
+#include "ImageOps.h"
 #include "JNIUtils.h"
 #include "ReadBarcode.h"
 
 #include <android/bitmap.h>
 #include <chrono>
 #include <exception>
-#include <stdexcept>
 
 using namespace ZXing;
 
-static const char* JavaBarcodeFormatName(BarcodeFormat format)
-{
-	// These have to be the names of the enum constants in the kotlin code.
-	switch (format) {
-	case BarcodeFormat::None: return "NONE";
-	case BarcodeFormat::Aztec: return "AZTEC";
-	case BarcodeFormat::Codabar: return "CODABAR";
-	case BarcodeFormat::Code39: return "CODE_39";
-	case BarcodeFormat::Code93: return "CODE_93";
-	case BarcodeFormat::Code128: return "CODE_128";
-	case BarcodeFormat::DataMatrix: return "DATA_MATRIX";
-	case BarcodeFormat::EAN8: return "EAN_8";
-	case BarcodeFormat::EAN13: return "EAN_13";
-	case BarcodeFormat::ITF: return "ITF";
-	case BarcodeFormat::MaxiCode: return "MAXICODE";
-	case BarcodeFormat::PDF417: return "PDF_417";
-	case BarcodeFormat::QRCode: return "QR_CODE";
-	case BarcodeFormat::DataBar: return "DATA_BAR";
-	case BarcodeFormat::DataBarExpanded: return "DATA_BAR_EXPANDED";
-	case BarcodeFormat::UPCA: return "UPC_A";
-	case BarcodeFormat::UPCE: return "UPC_E";
-	default: throw std::invalid_argument("Invalid format");
-	}
-}
-
-static jstring ThrowJavaException(JNIEnv* env, const char* message)
-{
-	//	if (env->ExceptionCheck())
-	//		return 0;
-	jclass jcls = env->FindClass("java/lang/RuntimeException");
-	env->ThrowNew(jcls, message);
-	return nullptr;
-}
-
 struct LockedPixels
 {
 	JNIEnv* env;
@@ -77,6 +44,15 @@ struct LockedPixels
 	}
 };
 
+static ImageFormat BitmapImageFormat(const AndroidBitmapInfo& bmInfo)
+{
+	switch (bmInfo.format) {
+	case ANDROID_BITMAP_FORMAT_A_8: return ImageFormat::Lum;
+	case ANDROID_BITMAP_FORMAT_RGBA_8888: return ImageFormat::RGBX;
+	default: return ImageFormat::None;
+	}
+}
+
 extern "C" JNIEXPORT jstring JNICALL
 Java_com_example_zxingcpp_BarcodeReader_read(
 		JNIEnv* env, jobject thiz, jobject bitmap,
@@ -90,12 +66,9 @@ Java_com_example_zxingcpp_BarcodeReader_read(
 		AndroidBitmapInfo bmInfo;
 		AndroidBitmap_getInfo(env, bitmap, &bmInfo);
 
-		ImageFormat fmt = ImageFormat::None;
-		switch (bmInfo.format) {
-		case ANDROID_BITMAP_FORMAT_A_8: fmt = ImageFormat::Lum; break;
-		case ANDROID_BITMAP_FORMAT_RGBA_8888: fmt = ImageFormat::RGBX; break;
-		default: return ThrowJavaException(env, "Unsupported format");
-		}
+		ImageFormat fmt = BitmapImageFormat(bmInfo);
+		if (fmt == ImageFormat::None)
+			return ThrowJavaException(env, "Unsupported format");
 
 		auto pixels = LockedPixels(env, bitmap);
 
@@ -117,22 +90,200 @@ Java_com_example_zxingcpp_BarcodeReader_read(
 		auto duration = std::chrono::high_resolution_clock::now() - startTime;
 //		LOGD("time: %4d ms\n", (int)std::chrono::duration_cast<std::chrono::milliseconds>(duration).count());
 
-		if (res.isValid()) {
-			jclass clResult = env->GetObjectClass(result);
+		return ReturnResult(env, res, duration, result);
+	} catch (const std::exception& e) {
+		return ThrowJavaException(env, e.what());
+	} catch (...) {
+		return ThrowJavaException(env, "Unknown exception");
+	}
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_example_zxingcpp_DecoderSession_create(
+		JNIEnv* env, jobject thiz, jstring formats, jboolean tryHarder, jboolean tryRotate)
+{
+	try {
+		auto hints = DecodeHints()
+						 .setFormats(BarcodeFormatsFromString(J2CString(env, formats)))
+						 .setTryHarder(tryHarder)
+						 .setTryRotate(tryRotate);
+		return reinterpret_cast<jlong>(new DecoderSession(hints));
+	} catch (const std::exception& e) {
+		ThrowJavaException(env, e.what());
+	} catch (...) {
+		ThrowJavaException(env, "Unknown exception");
+	}
+	return 0;
+}
+
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_example_zxingcpp_DecoderSession_read(
+		JNIEnv* env, jobject thiz, jlong handle, jobject bitmap,
+		jint left, jint top, jint width, jint height, jint rotation,
+		jobject result)
+{
+	try {
+		auto session = reinterpret_cast<DecoderSession*>(handle);
+
+		AndroidBitmapInfo bmInfo;
+		AndroidBitmap_getInfo(env, bitmap, &bmInfo);
+
+		ImageFormat fmt = BitmapImageFormat(bmInfo);
+		if (fmt == ImageFormat::None)
+			return ThrowJavaException(env, "Unsupported format");
+
+		auto pixels = LockedPixels(env, bitmap);
+
+		if (!pixels)
+			return ThrowJavaException(env, "Failed to lock/read AndroidBitmap data");
+
+		auto image = ImageView{pixels, (int)bmInfo.width, (int)bmInfo.height, fmt, (int)bmInfo.stride}
+						 .cropped(left, top, width, height)
+						 .rotated(rotation);
+
+		auto startTime = std::chrono::high_resolution_clock::now();
+		auto res = session->read(image);
+		auto duration = std::chrono::high_resolution_clock::now() - startTime;
+
+		return ReturnResult(env, res, duration, result);
+	} catch (const std::exception& e) {
+		return ThrowJavaException(env, e.what());
+	} catch (...) {
+		return ThrowJavaException(env, "Unknown exception");
+	}
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_zxingcpp_DecoderSession_destroy(JNIEnv* env, jobject thiz, jlong handle)
+{
+	delete reinterpret_cast<DecoderSession*>(handle);
+}
 
-			jfieldID fidTime = env->GetFieldID(clResult, "time", "Ljava/lang/String;");
-			auto time = std::to_wstring(std::chrono::duration_cast<std::chrono::milliseconds>(duration).count());
-			env->SetObjectField(result, fidTime, C2JString(env, time));
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_example_zxingcpp_DecoderSession_readLuminanceBuffer(
+		JNIEnv* env, jobject thiz, jlong handle, jobject buffer,
+		jint dataWidth, jint dataHeight, jint rowStride,
+		jint left, jint top, jint width, jint height, jint rotation, jboolean invert,
+		jobject result)
+{
+	try {
+		auto data = static_cast<const uint8_t*>(env->GetDirectBufferAddress(buffer));
+		if (!data)
+			return ThrowJavaException(env, "Luminance buffer is not a direct buffer");
+		if (!LuminanceFits(env->GetDirectBufferCapacity(buffer), dataWidth, dataHeight, rowStride))
+			return ThrowJavaException(env, "Luminance buffer is too small for the given dimensions");
 
-			jfieldID fidText = env->GetFieldID(clResult, "text", "Ljava/lang/String;");
-			env->SetObjectField(result, fidText, C2JString(env, res.text()));
+		std::chrono::high_resolution_clock::duration duration{};
+		auto res = ReadLuminance(reinterpret_cast<DecoderSession*>(handle), data, dataWidth, dataHeight, rowStride,
+								 left, top, width, height, rotation, invert, duration);
 
-			return C2JString(env, JavaBarcodeFormatName(res.format()));
-		} else
-			return C2JString(env, ToString(res.status()));
+		return ReturnResult(env, res, duration, result);
 	} catch (const std::exception& e) {
 		return ThrowJavaException(env, e.what());
 	} catch (...) {
 		return ThrowJavaException(env, "Unknown exception");
 	}
 }
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_example_zxingcpp_ImageProcessor_create(JNIEnv* env, jobject thiz)
+{
+	return reinterpret_cast<jlong>(new ImageOps::ScratchArena());
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_zxingcpp_ImageProcessor_destroy(JNIEnv* env, jobject thiz, jlong handle)
+{
+	delete reinterpret_cast<ImageOps::ScratchArena*>(handle);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_example_zxingcpp_ImageProcessor_applyBitmap(
+		JNIEnv* env, jobject thiz, jlong handle, jobject bitmap,
+		jint op, jint param1, jint param2, jboolean invert)
+{
+	try {
+		auto& arena = *reinterpret_cast<ImageOps::ScratchArena*>(handle);
+
+		AndroidBitmapInfo bmInfo;
+		AndroidBitmap_getInfo(env, bitmap, &bmInfo);
+
+		auto pixels = LockedPixels(env, bitmap);
+		if (!pixels) {
+			ThrowJavaException(env, "Failed to lock/read AndroidBitmap data");
+			return -1;
+		}
+		auto data = static_cast<uint8_t*>(pixels.pixels);
+		int width = bmInfo.width, height = bmInfo.height, stride = bmInfo.stride;
+
+		switch (bmInfo.format) {
+		case ANDROID_BITMAP_FORMAT_A_8:
+			arena.reset(ImageOps::ScratchBytes(ImageOps::Op(op), width, height));
+			return ImageOps::Apply(ImageOps::Op(op), data, width, height, stride, param1, param2, invert, arena);
+		case ANDROID_BITMAP_FORMAT_RGBA_8888:
+			return ImageOps::ApplyRgba(ImageOps::Op(op), data, width, height, stride, param1, param2, invert, arena);
+		default:
+			ThrowJavaException(env, "Unsupported format");
+			return -1;
+		}
+	} catch (const std::exception& e) {
+		ThrowJavaException(env, e.what());
+	} catch (...) {
+		ThrowJavaException(env, "Unknown exception");
+	}
+	return -1;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_example_zxingcpp_ImageProcessor_applyBuffer(
+		JNIEnv* env, jobject thiz, jlong handle, jobject buffer,
+		jint width, jint height, jint rowStride,
+		jint op, jint param1, jint param2, jboolean invert)
+{
+	try {
+		auto& arena = *reinterpret_cast<ImageOps::ScratchArena*>(handle);
+
+		auto data = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+		if (!data) {
+			ThrowJavaException(env, "Luminance buffer is not a direct buffer");
+			return -1;
+		}
+		if (!LuminanceFits(env->GetDirectBufferCapacity(buffer), width, height, rowStride)) {
+			ThrowJavaException(env, "Luminance buffer is too small for the given dimensions");
+			return -1;
+		}
+
+		arena.reset(ImageOps::ScratchBytes(ImageOps::Op(op), width, height));
+		return ImageOps::Apply(ImageOps::Op(op), data, width, height, rowStride, param1, param2, invert, arena);
+	} catch (const std::exception& e) {
+		ThrowJavaException(env, e.what());
+	} catch (...) {
+		ThrowJavaException(env, "Unknown exception");
+	}
+	return -1;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_zxingcpp_ImageProcessor_toAlpha8(JNIEnv* env, jobject thiz, jlong handle, jobject src, jobject dst)
+{
+	AndroidBitmapInfo srcInfo, dstInfo;
+	AndroidBitmap_getInfo(env, src, &srcInfo);
+	AndroidBitmap_getInfo(env, dst, &dstInfo);
+	if (srcInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888 || dstInfo.format != ANDROID_BITMAP_FORMAT_A_8) {
+		ThrowJavaException(env, "Unsupported format");
+		return;
+	}
+	if (srcInfo.width != dstInfo.width || srcInfo.height != dstInfo.height) {
+		ThrowJavaException(env, "Bitmap sizes differ");
+		return;
+	}
+
+	auto srcPixels = LockedPixels(env, src);
+	auto dstPixels = LockedPixels(env, dst);
+	if (!srcPixels || !dstPixels) {
+		ThrowJavaException(env, "Failed to lock/read AndroidBitmap data");
+		return;
+	}
+	ImageOps::RgbaToLuminance(srcPixels, srcInfo.stride, srcInfo.width, srcInfo.height,
+							  static_cast<uint8_t*>(dstPixels.pixels), dstInfo.stride);
+}
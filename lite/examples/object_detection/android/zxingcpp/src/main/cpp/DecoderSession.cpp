@@ -0,0 +1,152 @@
+/*
+* Copyright 2021 Axel Waggershauser
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+#include "DecoderSession.h"
+#include "JNIUtils.h"
+#include "GlobalHistogramBinarizer.h"
+#include "HybridBinarizer.h"
+#include "ThresholdBinarizer.h"
+
+#include <algorithm>
+#include <stdexcept>
+#include <string>
+
+using namespace ZXing;
+
+ImageView DecoderSession::lumView(const ImageView& iv, bool invert)
+{
+	if (!invert) {
+		if (_hints.binarizer() != Binarizer::GlobalHistogram && _hints.binarizer() != Binarizer::LocalAverage)
+			return iv;
+		if (iv.format() == ImageFormat::Lum && iv.pixStride() == 1)
+			return iv;
+	}
+
+	size_t size = static_cast<size_t>(iv.width()) * iv.height();
+	if (_lum.size() < size)
+		_lum.resize(size);
+
+	auto* dst = _lum.data();
+	if (iv.format() == ImageFormat::Lum) {
+		const uint8_t mask = invert ? 0xFF : 0x00;
+		for (int y = 0; y < iv.height(); ++y)
+			for (int x = 0; x < iv.width(); ++x)
+				*dst++ = *iv.data(x, y) ^ mask;
+	} else {
+		const int r = RedIndex(iv.format()), g = GreenIndex(iv.format()), b = BlueIndex(iv.format());
+		for (int y = 0; y < iv.height(); ++y)
+			for (int x = 0; x < iv.width(); ++x) {
+				auto* src = iv.data(x, y);
+				auto lum = static_cast<uint8_t>((306 * src[r] + 601 * src[g] + 117 * src[b] + 0x200) >> 10);
+				*dst++ = invert ? 255 - lum : lum;
+			}
+	}
+	return {_lum.data(), iv.width(), iv.height(), ImageFormat::Lum};
+}
+
+Result DecoderSession::read(const ImageView& image, bool invert)
+{
+	ImageView iv = lumView(image, invert);
+	switch (_hints.binarizer()) {
+	case Binarizer::BoolCast: return _reader.read(ThresholdBinarizer(iv, 0));
+	case Binarizer::FixedThreshold: return _reader.read(ThresholdBinarizer(iv, 127));
+	case Binarizer::GlobalHistogram: return _reader.read(GlobalHistogramBinarizer(iv));
+	case Binarizer::LocalAverage: return _reader.read(HybridBinarizer(iv));
+	}
+	return Result(DecodeStatus::NotFound);
+}
+
+const char* JavaBarcodeFormatName(BarcodeFormat format)
+{
+	// These have to be the names of the enum constants in the kotlin code.
+	switch (format) {
+	case BarcodeFormat::None: return "NONE";
+	case BarcodeFormat::Aztec: return "AZTEC";
+	case BarcodeFormat::Codabar: return "CODABAR";
+	case BarcodeFormat::Code39: return "CODE_39";
+	case BarcodeFormat::Code93: return "CODE_93";
+	case BarcodeFormat::Code128: return "CODE_128";
+	case BarcodeFormat::DataMatrix: return "DATA_MATRIX";
+	case BarcodeFormat::EAN8: return "EAN_8";
+	case BarcodeFormat::EAN13: return "EAN_13";
+	case BarcodeFormat::ITF: return "ITF";
+	case BarcodeFormat::MaxiCode: return "MAXICODE";
+	case BarcodeFormat::PDF417: return "PDF_417";
+	case BarcodeFormat::QRCode: return "QR_CODE";
+	case BarcodeFormat::DataBar: return "DATA_BAR";
+	case BarcodeFormat::DataBarExpanded: return "DATA_BAR_EXPANDED";
+	case BarcodeFormat::UPCA: return "UPC_A";
+	case BarcodeFormat::UPCE: return "UPC_E";
+	default: throw std::invalid_argument("Invalid format");
+	}
+}
+
+jstring ThrowJavaException(JNIEnv* env, const char* message)
+{
+	//	if (env->ExceptionCheck())
+	//		return 0;
+	jclass jcls = env->FindClass("java/lang/RuntimeException");
+	env->ThrowNew(jcls, message);
+	return nullptr;
+}
+
+jstring ReturnResult(JNIEnv* env, const Result& res, std::chrono::high_resolution_clock::duration duration,
+					 jobject result)
+{
+	if (!res.isValid())
+		return C2JString(env, ToString(res.status()));
+
+	jclass clResult = env->GetObjectClass(result);
+
+	jfieldID fidTime = env->GetFieldID(clResult, "time", "Ljava/lang/String;");
+	auto time = std::to_wstring(std::chrono::duration_cast<std::chrono::milliseconds>(duration).count());
+	env->SetObjectField(result, fidTime, C2JString(env, time));
+
+	jfieldID fidText = env->GetFieldID(clResult, "text", "Ljava/lang/String;");
+	env->SetObjectField(result, fidText, C2JString(env, res.text()));
+
+	return C2JString(env, JavaBarcodeFormatName(res.format()));
+}
+
+bool LuminanceFits(jlong capacity, jint dataWidth, jint dataHeight, jint rowStride)
+{
+	return dataWidth > 0 && dataHeight > 0 && rowStride >= dataWidth
+		   && capacity >= static_cast<jlong>(rowStride) * (dataHeight - 1) + dataWidth;
+}
+
+Result ReadLuminance(DecoderSession* session, const uint8_t* data, jint dataWidth, jint dataHeight,
+					 jint rowStride, jint left, jint top, jint width, jint height, jint rotation, bool invert,
+					 std::chrono::high_resolution_clock::duration& duration)
+{
+	// Intersect the ROI with the plane. ImageView::cropped() only clamps left/top to 0, so an ROI that starts
+	// beyond the plane would end up with a negative size. A width/height <= 0 still means "up to the edge".
+	int64_t right = width <= 0 ? dataWidth : std::min<int64_t>(dataWidth, int64_t(left) + width);
+	int64_t bottom = height <= 0 ? dataHeight : std::min<int64_t>(dataHeight, int64_t(top) + height);
+	left = std::max(0, left);
+	top = std::max(0, top);
+	duration = {};
+	if (right <= left || bottom <= top)
+		return Result(DecodeStatus::NotFound);
+
+	auto image = ImageView{data, dataWidth, dataHeight, ImageFormat::Lum, rowStride}
+					 .cropped(left, top, static_cast<int>(right - left), static_cast<int>(bottom - top))
+					 .rotated(rotation);
+
+	auto startTime = std::chrono::high_resolution_clock::now();
+	auto res = session->read(image, invert);
+	duration = std::chrono::high_resolution_clock::now() - startTime;
+	return res;
+}
@@ -0,0 +1,72 @@
+#pragma once
+/*
+* Copyright 2021 Axel Waggershauser
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+#include "DecodeHints.h"
+#include "ImageView.h"
+#include "MultiFormatReader.h"
+#include "Result.h"
+
+#include <jni.h>
+#include <chrono>
+#include <cstdint>
+#include <vector>
+
+// Decoder state and JNI helpers shared by the Android bindings and the host benchmark (keydot_bench).
+// Nothing in here may depend on the Android NDK.
+
+/**
+ * State that is kept alive between calls of a com.example.zxingcpp.DecoderSession: the parsed hints, the
+ * reader built from them and a luminance buffer that only ever grows to the size of the largest ROI seen.
+ *
+ * The binarizer is deliberately not part of it: a ZXing::BinaryBitmap binds its const ImageView when it is
+ * constructed and computes its BitMatrix once (std::call_once), so it cannot be pointed at the next frame.
+ * Constructing one per read is cheap next to the bit matrix it has to produce for every frame anyway.
+ */
+class DecoderSession
+{
+	ZXing::DecodeHints _hints;
+	ZXing::MultiFormatReader _reader;
+	std::vector<uint8_t> _lum;
+
+	// Same as SetupLumImageView() in ReadBarcode.cpp, but extracts into the session owned buffer.
+	// Inverting always needs a copy, as the source may be memory we must not write to (e.g. the camera frame).
+	ZXing::ImageView lumView(const ZXing::ImageView& iv, bool invert);
+
+public:
+	explicit DecoderSession(const ZXing::DecodeHints& hints) : _hints(hints), _reader(hints) {}
+
+	ZXing::Result read(const ZXing::ImageView& image, bool invert = false);
+};
+
+// Name of the BarcodeReader.Format enum constant for format.
+const char* JavaBarcodeFormatName(ZXing::BarcodeFormat format);
+
+jstring ThrowJavaException(JNIEnv* env, const char* message);
+
+// Fills the String fields "time" and "text" of result and returns the format name, or the decode status if
+// nothing was found.
+jstring ReturnResult(JNIEnv* env, const ZXing::Result& res, std::chrono::high_resolution_clock::duration duration,
+					 jobject result);
+
+// Whether a direct buffer of capacity bytes holds dataHeight rows of dataWidth luminance values, rowStride apart.
+bool LuminanceFits(jlong capacity, jint dataWidth, jint dataHeight, jint rowStride);
+
+// Decodes the ROI of a luminance plane (e.g. the Y plane of a YUV_420_888 camera frame) without intermediate bitmaps.
+// The ROI is clipped to the plane; if nothing of it is left, the result is NotFound.
+ZXing::Result ReadLuminance(DecoderSession* session, const uint8_t* data, jint dataWidth, jint dataHeight,
+							jint rowStride, jint left, jint top, jint width, jint height, jint rotation, bool invert,
+							std::chrono::high_resolution_clock::duration& duration);
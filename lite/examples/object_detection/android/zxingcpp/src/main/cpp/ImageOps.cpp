@@ -0,0 +1,187 @@
+/*
+* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+#include "ImageOps.h"
+
+#include <algorithm>
+#include <array>
+
+namespace ImageOps {
+
+void ScratchArena::reset(size_t bytes)
+{
+	if (_bytes.size() < bytes)
+		_bytes.resize(bytes);
+	_used = 0;
+}
+
+void RgbaToLuminance(const uint8_t* rgba, int rgbaStride, int width, int height, uint8_t* lum, int lumStride)
+{
+	for (int y = 0; y < height; ++y) {
+		const uint8_t* src = rgba + y * rgbaStride;
+		uint8_t* dst = lum + y * lumStride;
+		// Same fixed point BT.601 weights as RGBToLum() in ReadBarcode.cpp.
+		for (int x = 0; x < width; ++x)
+			dst[x] = static_cast<uint8_t>((306 * src[4 * x] + 601 * src[4 * x + 1] + 117 * src[4 * x + 2] + 0x200) >> 10);
+	}
+}
+
+void LuminanceToRgba(const uint8_t* lum, int lumStride, int width, int height, uint8_t* rgba, int rgbaStride)
+{
+	for (int y = 0; y < height; ++y) {
+		const uint8_t* src = lum + y * lumStride;
+		uint8_t* dst = rgba + y * rgbaStride;
+		for (int x = 0; x < width; ++x)
+			dst[4 * x] = dst[4 * x + 1] = dst[4 * x + 2] = src[x];
+	}
+}
+
+int OtsuLevel(const uint8_t* lum, int width, int height, int stride)
+{
+	std::array<uint32_t, 256> histogram = {};
+	for (int y = 0; y < height; ++y) {
+		const uint8_t* row = lum + y * stride;
+		for (int x = 0; x < width; ++x)
+			++histogram[row[x]];
+	}
+
+	double total = double(width) * height;
+	double sum = 0;
+	for (int i = 0; i < 256; ++i)
+		sum += double(i) * histogram[i];
+
+	// Maximize the between-class variance w0 * w1 * (m0 - m1)^2 over the split [0, t] | [t + 1, 255].
+	double sumBelow = 0, weightBelow = 0, bestVariance = -1;
+	int best = 0;
+	for (int t = 0; t < 256; ++t) {
+		weightBelow += histogram[t];
+		if (weightBelow == 0)
+			continue;
+		double weightAbove = total - weightBelow;
+		if (weightAbove == 0)
+			break;
+		sumBelow += double(t) * histogram[t];
+		double meanDiff = sumBelow / weightBelow - (sum - sumBelow) / weightAbove;
+		double variance = weightBelow * weightAbove * meanDiff * meanDiff;
+		if (variance > bestVariance) {
+			bestVariance = variance;
+			best = t;
+		}
+	}
+	return best + 1;
+}
+
+size_t ScratchBytes(Op op, int width, int height)
+{
+	if (op == Op::AdaptiveThreshold)
+		return ScratchArena::Bytes<uint32_t>(size_t(width + 1) * (height + 1));
+	return 0;
+}
+
+static void Invert(uint8_t* lum, int width, int height, int stride)
+{
+	for (int y = 0; y < height; ++y) {
+		uint8_t* row = lum + y * stride;
+		for (int x = 0; x < width; ++x)
+			row[x] = ~row[x];
+	}
+}
+
+static void Threshold(uint8_t* lum, int width, int height, int stride, int level, bool invert)
+{
+	const uint8_t mask = invert ? 0xFF : 0;
+	for (int y = 0; y < height; ++y) {
+		uint8_t* row = lum + y * stride;
+		for (int x = 0; x < width; ++x)
+			row[x] = static_cast<uint8_t>(-(row[x] >= level)) ^ mask;
+	}
+}
+
+// Compares every pixel to the mean of its neighbourhood, taken in constant time from an integral image.
+static void AdaptiveThreshold(uint8_t* lum, int width, int height, int stride, int radius, int offset, bool invert,
+							  ScratchArena& arena)
+{
+	const int iw = width + 1;
+	uint32_t* integral = arena.alloc<uint32_t>(size_t(iw) * (height + 1));
+	std::fill(integral, integral + iw, 0);
+	for (int y = 0; y < height; ++y) {
+		const uint8_t* row = lum + y * stride;
+		const uint32_t* above = integral + y * iw;
+		uint32_t* out = integral + (y + 1) * iw;
+		uint32_t rowSum = 0;
+		out[0] = 0;
+		for (int x = 0; x < width; ++x) {
+			rowSum += row[x];
+			out[x + 1] = above[x + 1] + rowSum;
+		}
+	}
+
+	const uint8_t mask = invert ? 0xFF : 0;
+	for (int y = 0; y < height; ++y) {
+		const int y0 = std::max(0, y - radius);
+		const int y1 = std::min(height, y + radius + 1);
+		const uint32_t* top = integral + y0 * iw;
+		const uint32_t* bottom = integral + y1 * iw;
+		uint8_t* row = lum + y * stride;
+		for (int x = 0; x < width; ++x) {
+			const int x0 = std::max(0, x - radius);
+			const int x1 = std::min(width, x + radius + 1);
+			const int64_t area = int64_t(x1 - x0) * (y1 - y0);
+			const int64_t sum = int64_t(bottom[x1]) - bottom[x0] - top[x1] + top[x0];
+			row[x] = static_cast<uint8_t>(-((row[x] + offset) * area > sum)) ^ mask;
+		}
+	}
+}
+
+int Apply(Op op, uint8_t* lum, int width, int height, int stride, int param1, int param2, bool invert,
+		  ScratchArena& arena)
+{
+	switch (op) {
+	case Op::Grayscale:
+		if (invert)
+			Invert(lum, width, height, stride);
+		return -1;
+	case Op::Invert:
+		if (!invert)
+			Invert(lum, width, height, stride);
+		return -1;
+	case Op::Threshold:
+		Threshold(lum, width, height, stride, param1, invert);
+		return param1;
+	case Op::OtsuThreshold: {
+		int level = OtsuLevel(lum, width, height, stride);
+		Threshold(lum, width, height, stride, level, invert);
+		return level;
+	}
+	case Op::AdaptiveThreshold:
+		AdaptiveThreshold(lum, width, height, stride, param1, param2, invert, arena);
+		return -1;
+	}
+	return -1;
+}
+
+int ApplyRgba(Op op, uint8_t* rgba, int width, int height, int stride, int param1, int param2, bool invert,
+			  ScratchArena& arena)
+{
+	arena.reset(ScratchArena::Bytes<uint8_t>(size_t(width) * height) + ScratchBytes(op, width, height));
+	uint8_t* lum = arena.alloc<uint8_t>(size_t(width) * height);
+	RgbaToLuminance(rgba, stride, width, height, lum, width);
+	int level = Apply(op, lum, width, height, width, param1, param2, invert, arena);
+	LuminanceToRgba(lum, width, width, height, rgba, stride);
+	return level;
+}
+
+} // namespace ImageOps
@@ -0,0 +1,94 @@
+#pragma once
+/*
+* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+
+// In-place preprocessing of keydot crops, backing com.example.zxingcpp.ImageProcessor. Like DecoderSession.h,
+// nothing in here may depend on the Android NDK.
+//
+// The loops work on plain byte rows without branches in their bodies, so that the compiler vectorizes them
+// (NEON on arm64, SSE on the host).
+
+namespace ImageOps {
+
+// Must be kept synchronized with ImageProcessor.Op on the Kotlin side.
+enum class Op
+{
+	Grayscale = 0,         // luminance only, optionally inverted
+	Invert = 1,            // 255 - luminance
+	Threshold = 2,         // 255 if luminance >= param1, else 0
+	OtsuThreshold = 3,     // Threshold with the level that best separates the histogram
+	AdaptiveThreshold = 4, // 255 if luminance > mean of the (2 * param1 + 1)^2 neighbourhood - param2, else 0
+};
+
+/**
+ * Scratch memory reused across operations, so that steady-state preprocessing does not allocate. An operation
+ * calls reset() with the total size it needs, then carves it up with alloc(); the memory only ever grows.
+ */
+class ScratchArena
+{
+	std::vector<uint8_t> _bytes;
+	size_t _used = 0;
+
+public:
+	static constexpr size_t Alignment = 64;
+
+	// Invalidates all earlier allocations.
+	void reset(size_t bytes);
+
+	template <typename T>
+	T* alloc(size_t count)
+	{
+		auto base = reinterpret_cast<uintptr_t>(_bytes.data());
+		size_t offset = ((base + _used + Alignment - 1) & ~(Alignment - 1)) - base;
+		_used = offset + count * sizeof(T);
+		return reinterpret_cast<T*>(_bytes.data() + offset);
+	}
+
+	// Bytes to pass to reset() for an allocation of count Ts.
+	template <typename T>
+	static constexpr size_t Bytes(size_t count) { return count * sizeof(T) + Alignment; }
+};
+
+// Writes the luminance of width x height RGBA_8888 pixels to lum.
+void RgbaToLuminance(const uint8_t* rgba, int rgbaStride, int width, int height, uint8_t* lum, int lumStride);
+
+// Writes lum back to the color channels of RGBA_8888 pixels, keeping their alpha.
+void LuminanceToRgba(const uint8_t* lum, int lumStride, int width, int height, uint8_t* rgba, int rgbaStride);
+
+// Level that minimizes the intra-class variance of the histogram of a luminance plane (Otsu's method).
+int OtsuLevel(const uint8_t* lum, int width, int height, int stride);
+
+// Scratch memory that Apply() needs for op on a width x height plane.
+size_t ScratchBytes(Op op, int width, int height);
+
+/**
+ * Applies op in place to a luminance plane, inverting the output if invert is set. The arena must have been
+ * reset() to at least ScratchBytes(op, width, height).
+ *
+ * @return the threshold level used, or -1 for operations that do not threshold
+ */
+int Apply(Op op, uint8_t* lum, int width, int height, int stride, int param1, int param2, bool invert,
+		  ScratchArena& arena);
+
+// Apply() on RGBA_8888 pixels: they are converted to luminance first, and written back as gray.
+int ApplyRgba(Op op, uint8_t* rgba, int width, int height, int stride, int param1, int param2, bool invert,
+			  ScratchArena& arena);
+
+} // namespace ImageOps
@@ -16,16 +16,28 @@
 */
 
 #include <jni.h>
-#include <android/log.h>
 
 #include <string>
 
 #define ZX_LOG_TAG "ZXing"
 
+#ifdef __ANDROID__
+#include <android/log.h>
+
 #define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, ZX_LOG_TAG, __VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, ZX_LOG_TAG, __VA_ARGS__)
 #define LOGW(...) __android_log_print(ANDROID_LOG_WARN, ZX_LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, ZX_LOG_TAG, __VA_ARGS__)
+#else
+// Host builds (keydot_bench) log to stderr.
+#include <cstdio>
+
+#define ZX_LOG(level, fmt, ...) std::fprintf(stderr, level " " ZX_LOG_TAG ": " fmt "\n", ##__VA_ARGS__)
+#define LOGV(...) ZX_LOG("V", __VA_ARGS__)
+#define LOGD(...) ZX_LOG("D", __VA_ARGS__)
+#define LOGW(...) ZX_LOG("W", __VA_ARGS__)
+#define LOGE(...) ZX_LOG("E", __VA_ARGS__)
+#endif
 
 jstring C2JString(JNIEnv* env, const std::wstring& str);
 jstring C2JString(JNIEnv* env, const std::string& str);
@@ -18,9 +18,14 @@ package com.example.zxingcpp
 
 import android.graphics.*
 import androidx.camera.core.ImageProxy
+import java.io.Closeable
 
 
-class BarcodeReader {
+/**
+ * Decodes barcodes from bitmaps and camera images. Owners call [close] once they are done with it,
+ * to release the scratch memory of the bitmap helpers.
+ */
+class BarcodeReader : Closeable {
 
 
     private var sWidth //width
@@ -79,70 +84,18 @@ class BarcodeReader {
         return read(bitmapBuffer, image.cropRect, image.imageInfo.rotationDegrees)
     }
 
+    // Scratch memory of the bitmap helpers below, allocated on first use.
+    private val imageProcessorDelegate = lazy { ImageProcessor() }
+    private val imageProcessor by imageProcessorDelegate
+
     /**
-     * The picture is binarized black and white
+     * The picture is binarized black and white: pixels darker than 130 become white, the others
+     * black. Use [ImageProcessor.threshold] to binarize in place instead of copying.
      */
     fun zeroAndOne(bm: Bitmap): Bitmap {
-        val width = bm.width //The original image width
-        val height = bm.height //Original image height
-        var color: Int //Used to store the color value of a pixel
-        var r: Int
-        var g: Int
-        var b: Int
-        var a: Int //red, green, blue, transparency
-        //Create a blank image, the width is equal to the width of the original image, and the height is equal to the height of the original image. Use ARGB_8888 to render. You don’t need to understand this, just write it like this
-        val bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-        val oldPx = IntArray(width * height) //used to store the color information of each pixel in the original image
-        val newPx = IntArray(width * height) //Used to process the color information of each pixel after processing
-        /**
-         * The first parameter oldPix[]: the array used to receive (store) the color information of the pixels in the bm image
-         * The second parameter offset: the subscript value of the first receiving color information in the oldPix[] array
-         * The third parameter width: the number of items skipping pixels between lines, must be greater than or equal to the number of pixels in each line of the image
-         * The fourth parameter x: the abscissa of the first pixel read from the image bm
-         * The fifth parameter y: the ordinate of the first pixel read from the image bm
-         * The sixth parameter width: the number of pixels that need to be read per line
-         * The seventh parameter height: the total number of rows to be read
-         */
-        bm.getPixels(oldPx, 0, width, 0, 0, width, height) //Get the pixel information in the original image
-        for (i in 0 until width * height) { //Process the color value of each pixel in the image in a loop
-            color = oldPx[i] //Get the pixel value of a certain point
-            r = Color.red(color) //Get the r (red) component of this pixel
-            g = Color.green(color) //Get the g (green) component of this pixel
-            b = Color.blue(color) //Get the b (blue component) of this pixel
-            a = Color.alpha(color) //Get the a channel value of this pixel
-
-            //This formula calculates r, g, b to obtain the gray value, the empirical formula does not need to be understood
-            var gray = (r.toFloat() * 0.3 + g.toFloat() * 0.59 + b.toFloat() * 0.11).toInt()
-            //The first two ifs below are used for overflow processing to prevent the grayscale formula from getting grayscale beyond the range (0-255)
-            if (gray > 255) {
-                gray = 255
-            }
-            if (gray < 130) {
-                gray = 0
-            }
-            if (gray != 0) { //If the gray value of a pixel is not 0 (black), set it to 255 (white)
-                gray = 255
-            }
-
-            gray = if(gray == 0) {
-                255
-            } else {
-                0;
-            }
-            newPx[i] = Color.argb(a, gray, gray, gray) //Recompose the processed transparency (unchanged), r, g, b components into color values ​​and store them in the array
-        }
-        /**
-         * The first parameter newPix[]: the color array that needs to be assigned to the new image //The colors to write the bitmap
-         * The second parameter offset: the first one in the newPix[] array that needs to be set to the subscript value of the image color //The index of the first color to read from pixels[]
-         * The third parameter width: the number of items that skip pixels between rows//The number of colors in pixels[] to skip between rows.
-         * Normally this value will be the same as the width of the bitmap,but it can be larger(or negative).
-         * The fourth parameter x: the abscissa of the first pixel read from the image bm //The x coordinate of the first pixels to write to in the bitmap.
-         * The fifth parameter y: The y coordinate of the first pixels to write to in the bitmap.
-         * The sixth parameter width: The number of colors to copy from pixels[] per row.
-         * The seventh parameter height: the total number of rows to be read//The number of rows to write to the bitmap.
-         */
-        bmp.setPixels(newPx, 0, width, 0, 0, width, height) //Assign the processed pixel information to the new image
-        return bmp //Return to the processed image
+        val bmp = bm.copy(Bitmap.Config.ARGB_8888, true)
+        imageProcessor.threshold(bmp, 130, invert = true)
+        return bmp
     }
 /*
     fun invertBitmap(bitmap: Bitmap): Bitmap {
@@ -176,32 +129,15 @@ class BarcodeReader {
         return bitmap
     }
 */
- fun invertBitmap(src: Bitmap): Bitmap {
-    val height = src.height
-    val width = src.width
-    val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-    val canvas = Canvas(bitmap)
-    val paint = Paint()
-    val matrixGrayscale = ColorMatrix()
-    matrixGrayscale.setSaturation(0f)
-    val matrixInvert = ColorMatrix()
-    matrixInvert.set(
-        floatArrayOf(
-            -1.0f, 0.0f, 0.0f, 0.0f, 255.0f,
-            0.0f, -1.0f, 0.0f, 0.0f, 255.0f,
-            0.0f, 0.0f, -1.0f, 0.0f, 255.0f,
-            0.0f, 0.0f, 0.0f, 1.0f, 0.0f
-        )
-    )
-    matrixInvert.preConcat(matrixGrayscale)
-    val filter = ColorMatrixColorFilter(matrixInvert)
-    paint.colorFilter = filter
-
-    canvas.drawBitmap(src, 0f, 0f, paint)
-
-
-    return bitmap
-}
+    /**
+     * Returns a gray, inverted copy of [src]. Use [ImageProcessor.grayscale] to do it in place
+     * instead of copying.
+     */
+    fun invertBitmap(src: Bitmap): Bitmap {
+        val bitmap = src.copy(Bitmap.Config.ARGB_8888, true)
+        imageProcessor.grayscale(bitmap, invert = true)
+        return bitmap
+    }
 
     fun read(bitmap: Bitmap, cropRect: Rect = Rect(), rotation: Int = 0): Result? {
         return read(bitmap, options, cropRect, rotation)
@@ -214,11 +150,7 @@ class BarcodeReader {
             read(bitmap, cropRect.left, cropRect.top, cropRect.width(), cropRect.height(), rotation,
                     formats.joinToString(), tryHarder, tryRotate, result)
         }
-        return try {
-            result.copy(format = Format.valueOf(status!!))
-        } catch (e: Throwable) {
-            if (status == "NotFound") null else throw RuntimeException(status!!)
-        }
+        return toResult(status, result)
     }
 
     // setting the format enum from inside the JNI code is a hassle -> use returned String instead
@@ -232,12 +164,37 @@ class BarcodeReader {
         System.loadLibrary("zxing_android")
     }
 
+    // Only closes the processor if a helper created it, rather than creating one just to close it.
+    override fun close() {
+        if (imageProcessorDelegate.isInitialized()) {
+            imageProcessor.close()
+        }
+    }
+
+    companion object {
+        // Turns the status string returned by the native read functions into a Result (or null).
+        internal fun toResult(status: String?, result: Result): Result? {
+            return try {
+                result.copy(format = Format.valueOf(status!!))
+            } catch (e: Throwable) {
+                if (status == "NotFound") null else throw RuntimeException(status!!)
+            }
+        }
+    }
+
 
 
     /**
-     * Convert the Bitmap to ALPHA_8.  The old one will be recycled.
+     * Convert the Bitmap to ALPHA_8.  The old one will be recycled.  Opaque RGBA_8888 bitmaps are
+     * converted natively, with the alpha channel taking their luminance.
      */
     fun toAlpha8(src: Bitmap): Bitmap {
+        if (!src.hasAlpha() && src.config == Bitmap.Config.ARGB_8888) {
+            val dest = Bitmap.createBitmap(src.width, src.height, Bitmap.Config.ALPHA_8)
+            imageProcessor.toAlpha8(src, dest)
+            src.recycle()
+            return dest
+        }
         var src = src
         if (!src.hasAlpha()) src = redToAlpha(src)
         val dest = src.copy(Bitmap.Config.ALPHA_8, false)
@@ -0,0 +1,95 @@
+/*
+* Copyright 2021 Axel Waggershauser
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.zxingcpp
+
+import android.graphics.Bitmap
+import android.graphics.Rect
+import java.io.Closeable
+import java.nio.ByteBuffer
+
+/**
+ * A long-lived native decoder. The decode hints are parsed once, the reader instance and the
+ * luminance workspace (grown to the largest ROI seen so far) are kept across calls, so a read
+ * only pays for the decoding itself.
+ *
+ * A session is not thread-safe: use one session per decoding thread and [close] it when done.
+ */
+class DecoderSession(val options: BarcodeReader.Options = BarcodeReader.Options()) : Closeable {
+
+    private var handle: Long = with(options) {
+        create(formats.joinToString(), tryHarder, tryRotate)
+    }
+
+    fun read(bitmap: Bitmap, cropRect: Rect = Rect(), rotation: Int = 0): BarcodeReader.Result? {
+        check(handle != 0L) { "DecoderSession is closed" }
+        val result = BarcodeReader.Result()
+        val status = read(handle, bitmap, cropRect.left, cropRect.top, cropRect.width(), cropRect.height(),
+                rotation, result)
+        return BarcodeReader.toResult(status, result)
+    }
+
+    /**
+     * Decodes [roi] of a luminance plane in place, e.g. the Y plane of a YUV_420_888 camera frame,
+     * without creating any intermediate bitmap.
+     *
+     * @param buffer direct buffer holding [width] x [height] luminance values, [rowStride] bytes per row
+     * @param roi region to decode, in plane coordinates; clipped to the plane, nothing is found if
+     *     it lies entirely outside
+     * @param rotation rotation applied to the region before decoding, multiple of 90
+     * @param invert decode light-on-dark symbols (the inverted region is copied to the session workspace)
+     */
+    fun readLuminance(
+        buffer: ByteBuffer, width: Int, height: Int, rowStride: Int,
+        roi: Rect = Rect(), rotation: Int = 0, invert: Boolean = false
+    ): BarcodeReader.Result? {
+        check(handle != 0L) { "DecoderSession is closed" }
+        require(buffer.isDirect) { "luminance buffer must be direct" }
+        val result = BarcodeReader.Result()
+        val status = readLuminanceBuffer(handle, buffer, width, height, rowStride,
+                roi.left, roi.top, roi.width(), roi.height(), rotation, invert, result)
+        return BarcodeReader.toResult(status, result)
+    }
+
+    override fun close() {
+        if (handle != 0L) {
+            destroy(handle)
+            handle = 0L
+        }
+    }
+
+    private external fun create(formats: String, tryHarder: Boolean, tryRotate: Boolean): Long
+
+    // setting the format enum from inside the JNI code is a hassle -> use returned String instead
+    private external fun read(
+        handle: Long, bitmap: Bitmap, left: Int, top: Int, width: Int, height: Int, rotation: Int,
+        result: BarcodeReader.Result,
+    ): String?
+
+    private external fun readLuminanceBuffer(
+        handle: Long, buffer: ByteBuffer, dataWidth: Int, dataHeight: Int, rowStride: Int,
+        left: Int, top: Int, width: Int, height: Int, rotation: Int, invert: Boolean,
+        result: BarcodeReader.Result,
+    ): String?
+
+    private external fun destroy(handle: Long)
+
+    companion object {
+        init {
+            System.loadLibrary("zxing_android")
+        }
+    }
+}
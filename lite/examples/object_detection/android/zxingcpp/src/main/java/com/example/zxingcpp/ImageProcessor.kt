@@ -0,0 +1,139 @@
+/*
+* Copyright 2021 The TensorFlow Authors. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.zxingcpp
+
+import android.graphics.Bitmap
+import java.io.Closeable
+import java.nio.ByteBuffer
+
+/**
+ * Native preprocessing of keydot crops, done in place on the pixels of a bitmap or on a luminance
+ * plane in a direct buffer, e.g. the Y plane of a camera frame.
+ *
+ * ALPHA_8 bitmaps and buffers are processed as luminance. RGBA_8888 bitmaps are converted to
+ * luminance first and come out gray, with their alpha kept. The scratch memory some operations
+ * need is kept across calls and only grows, so steady-state preprocessing does not allocate.
+ *
+ * A processor is not thread-safe: use one per thread and [close] it when done.
+ */
+class ImageProcessor : Closeable {
+
+    // Note that this has to be kept synchronized with ImageOps::Op on the native side.
+    private enum class Op { GRAYSCALE, INVERT, THRESHOLD, OTSU_THRESHOLD, ADAPTIVE_THRESHOLD }
+
+    private var handle: Long = create()
+
+    /** Converts [bitmap] to gray, inverted if [invert] is set. A no-op for ALPHA_8 unless inverting. */
+    fun grayscale(bitmap: Bitmap, invert: Boolean = false) {
+        apply(bitmap, Op.GRAYSCALE, 0, 0, invert)
+    }
+
+    fun invert(bitmap: Bitmap) {
+        apply(bitmap, Op.INVERT, 0, 0, false)
+    }
+
+    fun invert(buffer: ByteBuffer, width: Int, height: Int, rowStride: Int) {
+        apply(buffer, width, height, rowStride, Op.INVERT, 0, 0, false)
+    }
+
+    /**
+     * Sets pixels of luminance [level] and above to white, the others to black, or the other way
+     * round if [invert] is set.
+     */
+    fun threshold(bitmap: Bitmap, level: Int, invert: Boolean = false) {
+        apply(bitmap, Op.THRESHOLD, level, 0, invert)
+    }
+
+    fun threshold(
+        buffer: ByteBuffer, width: Int, height: Int, rowStride: Int, level: Int, invert: Boolean = false
+    ) {
+        apply(buffer, width, height, rowStride, Op.THRESHOLD, level, 0, invert)
+    }
+
+    /** [threshold] at the level picked with Otsu's method, which is returned. */
+    fun otsuThreshold(bitmap: Bitmap, invert: Boolean = false): Int =
+        apply(bitmap, Op.OTSU_THRESHOLD, 0, 0, invert)
+
+    fun otsuThreshold(
+        buffer: ByteBuffer, width: Int, height: Int, rowStride: Int, invert: Boolean = false
+    ): Int = apply(buffer, width, height, rowStride, Op.OTSU_THRESHOLD, 0, 0, invert)
+
+    /**
+     * Sets pixels brighter than the mean of their (2 * [radius] + 1) square neighbourhood minus
+     * [offset] to white, the others to black, or the other way round if [invert] is set. Copes with
+     * uneven lighting across the image, unlike a global threshold.
+     */
+    fun adaptiveThreshold(bitmap: Bitmap, radius: Int = 15, offset: Int = 7, invert: Boolean = false) {
+        apply(bitmap, Op.ADAPTIVE_THRESHOLD, radius, offset, invert)
+    }
+
+    fun adaptiveThreshold(
+        buffer: ByteBuffer, width: Int, height: Int, rowStride: Int,
+        radius: Int = 15, offset: Int = 7, invert: Boolean = false
+    ) {
+        apply(buffer, width, height, rowStride, Op.ADAPTIVE_THRESHOLD, radius, offset, invert)
+    }
+
+    /** Writes the luminance of the RGBA_8888 [src] to the ALPHA_8 [dst] of the same size. */
+    fun toAlpha8(src: Bitmap, dst: Bitmap) {
+        toAlpha8(handle, src, dst)
+    }
+
+    override fun close() {
+        if (handle != 0L) {
+            destroy(handle)
+            handle = 0L
+        }
+    }
+
+    private fun apply(bitmap: Bitmap, op: Op, param1: Int, param2: Int, invert: Boolean): Int {
+        check(handle != 0L) { "ImageProcessor is closed" }
+        require(bitmap.isMutable) { "bitmap must be mutable" }
+        return applyBitmap(handle, bitmap, op.ordinal, param1, param2, invert)
+    }
+
+    private fun apply(
+        buffer: ByteBuffer, width: Int, height: Int, rowStride: Int,
+        op: Op, param1: Int, param2: Int, invert: Boolean
+    ): Int {
+        check(handle != 0L) { "ImageProcessor is closed" }
+        require(buffer.isDirect) { "luminance buffer must be direct" }
+        return applyBuffer(handle, buffer, width, height, rowStride, op.ordinal, param1, param2, invert)
+    }
+
+    private external fun create(): Long
+
+    // Returns the threshold level used, or -1 for operations that do not threshold.
+    private external fun applyBitmap(
+        handle: Long, bitmap: Bitmap, op: Int, param1: Int, param2: Int, invert: Boolean
+    ): Int
+
+    private external fun applyBuffer(
+        handle: Long, buffer: ByteBuffer, width: Int, height: Int, rowStride: Int,
+        op: Int, param1: Int, param2: Int, invert: Boolean
+    ): Int
+
+    private external fun toAlpha8(handle: Long, src: Bitmap, dst: Bitmap)
+
+    private external fun destroy(handle: Long)
+
+    companion object {
+        init {
+            System.loadLibrary("zxing_android")
+        }
+    }
+}